@@ -0,0 +1,176 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.benchmark;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sun.net.httpserver.HttpServer;
+
+import fr.gouv.culture.francetransfert.application.resources.model.Download;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.services.DownloadProxyServices;
+import fr.gouv.culture.francetransfert.application.services.DownloadServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureCacheServices;
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Throughput of the download proxy, from a local storage to a client reading
+ * as fast as possible. Bytes per second per node are the operations per second
+ * times enclosureMegabytes, run with -t to stream concurrent downloads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DownloadProxyBenchmark {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	@Param({ "16", "256" })
+	private int enclosureMegabytes;
+
+	@Param({ "16384", "65536" })
+	private int bufferSize;
+
+	private HttpServer storage;
+
+	private ExecutorService storageExecutor;
+
+	private DownloadProxyServices downloadProxyServices;
+
+	private DownloadPasswordMetaData downloadMeta;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		byte[] chunk = new byte[1024 * 1024];
+		storageExecutor = Executors.newCachedThreadPool();
+		storage = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		storage.setExecutor(storageExecutor);
+		storage.createContext("/bucket/enclosure.zip", exchange -> {
+			exchange.sendResponseHeaders(200, (long) enclosureMegabytes * chunk.length);
+			try (OutputStream body = exchange.getResponseBody()) {
+				for (int i = 0; i < enclosureMegabytes; i++) {
+					body.write(chunk);
+				}
+			}
+		});
+		storage.start();
+
+		DownloadServices downloadServices = mock(DownloadServices.class, withSettings().stubOnly());
+		when(downloadServices.generateDownloadUrlWithPassword(any(), any(Predicate.class))).thenReturn(
+				new Download("http://127.0.0.1:" + storage.getAddress().getPort() + "/bucket/enclosure.zip"));
+		EnclosureCacheServices enclosureCacheServices = mock(EnclosureCacheServices.class, withSettings().stubOnly());
+		when(enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID))
+				.thenReturn(EnclosureMetadata.builder().enclosureId(ENCLOSURE_ID).build());
+		StorageManager storageManager = mock(StorageManager.class, withSettings().stubOnly());
+		when(storageManager.getZippedEnclosureName(ENCLOSURE_ID)).thenReturn(ENCLOSURE_ID + ".zip");
+
+		downloadProxyServices = new DownloadProxyServices();
+		ReflectionTestUtils.setField(downloadProxyServices, "bufferSize", bufferSize);
+		ReflectionTestUtils.setField(downloadProxyServices, "maxBuffers", 256);
+		ReflectionTestUtils.setField(downloadProxyServices, "bufferWaitMillis", 1000L);
+		ReflectionTestUtils.setField(downloadProxyServices, "connectTimeoutSeconds", 5L);
+		ReflectionTestUtils.setField(downloadProxyServices, "requestTimeoutSeconds", 5L);
+		ReflectionTestUtils.setField(downloadProxyServices, "readTimeoutSeconds", 30L);
+		ReflectionTestUtils.setField(downloadProxyServices, "resumeMinutes", 60L);
+		ReflectionTestUtils.setField(downloadProxyServices, "downloadServices", downloadServices);
+		ReflectionTestUtils.setField(downloadProxyServices, "enclosureCacheServices", enclosureCacheServices);
+		ReflectionTestUtils.setField(downloadProxyServices, "storageManager", storageManager);
+		ReflectionTestUtils.setField(downloadProxyServices, "storageResilienceServices",
+				DownloadServicesBenchmark.storageResilienceServices(new SimpleMeterRegistry()));
+		ReflectionTestUtils.setField(downloadProxyServices, "meterRegistry", new SimpleMeterRegistry());
+		downloadProxyServices.init();
+
+		downloadMeta = new DownloadPasswordMetaData();
+		downloadMeta.setEnclosure(ENCLOSURE_ID);
+		downloadMeta.setRecipient("recipient@gouv.fr");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		storage.stop(0);
+		storageExecutor.shutdownNow();
+		downloadProxyServices.destroy();
+	}
+
+	@Benchmark
+	public long stream() throws Exception {
+		DiscardingResponse response = new DiscardingResponse();
+		downloadProxyServices.stream(downloadMeta, new MockHttpServletRequest(), response);
+		return response.written;
+	}
+
+	/**
+	 * Response dropping the body instead of buffering it
+	 */
+	private static class DiscardingResponse extends MockHttpServletResponse {
+
+		private long written;
+
+		private final ServletOutputStream outputStream = new ServletOutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				written++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				written += len;
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+			}
+		};
+
+		@Override
+		public ServletOutputStream getOutputStream() {
+			return outputStream;
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.benchmark;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.resources.model.Download;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadRepresentation;
+import fr.gouv.culture.francetransfert.application.services.DownloadGrantServices;
+import fr.gouv.culture.francetransfert.application.services.DownloadServices;
+import fr.gouv.culture.francetransfert.application.services.DownloadUrlServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureCacheServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureContextServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureListingServices;
+import fr.gouv.culture.francetransfert.application.services.EventOutboxServices;
+import fr.gouv.culture.francetransfert.application.services.IntegrityVerificationServices;
+import fr.gouv.culture.francetransfert.application.services.MetaloadChannelServices;
+import fr.gouv.culture.francetransfert.application.services.MetaloadReadServices;
+import fr.gouv.culture.francetransfert.application.services.MissingEnclosureServices;
+import fr.gouv.culture.francetransfert.application.services.ParallelLookupServices;
+import fr.gouv.culture.francetransfert.application.services.SingleFlightServices;
+import fr.gouv.culture.francetransfert.application.services.StorageResilienceServices;
+import fr.gouv.culture.francetransfert.core.enums.EnclosureKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RecipientKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RootFileKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.SenderKeysEnum;
+import fr.gouv.culture.francetransfert.core.services.RedisManager;
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+import fr.gouv.culture.francetransfert.core.utils.Base64CryptoService;
+import fr.gouv.culture.francetransfert.core.utils.RedisUtils;
+import fr.gouv.culture.francetransfert.core.utils.StringUploadUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Hot paths of {@link DownloadServices} against the in memory metaload and
+ * storage. Run with the jmh profile, the gc profiler reports the allocation
+ * rate and the sample time mode the latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadServicesBenchmark {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final String PUBLIC_ENCLOSURE_ID = "3c2a8e1b-9f0d-4c55-8d1e-6b7f2a4c9e01";
+
+	private static final String RECIPIENT_ID = "8ffd72f0-4432-4e07-b247-362b1eb4vfrt";
+
+	private static final String RECIPIENT_MAIL = "recipient@gouv.fr";
+
+	private static final String PASSWORD = "Secret-Password-42";
+
+	@Param({ "1", "100", "10000" })
+	private int rootFiles;
+
+	@Param({ "0", "250" })
+	private long latencyMicros;
+
+	@Param({ "true", "false" })
+	private boolean nearCache;
+
+	private DownloadServices downloadServices;
+
+	private DownloadPasswordMetaData downloadMeta;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		InMemoryMetaload metaload = new InMemoryMetaload(latencyMicros);
+		seedEnclosure(metaload, ENCLOSURE_ID, false);
+		seedEnclosure(metaload, PUBLIC_ENCLOSURE_ID, true);
+		metaload.hset(RedisKeysEnum.FT_RECIPIENTS.getKey(ENCLOSURE_ID), RECIPIENT_MAIL, RECIPIENT_ID);
+		metaload.hset(RedisKeysEnum.FT_RECIPIENT.getKey(RECIPIENT_ID), RecipientKeysEnum.NB_DL.getKey(), "0");
+		downloadServices = downloadServices(metaload.redisManager(), metaload.pool(),
+				new InMemoryStorage(latencyMicros).storageManager());
+
+		downloadMeta = new DownloadPasswordMetaData();
+		downloadMeta.setEnclosure(ENCLOSURE_ID);
+		downloadMeta.setRecipient(RECIPIENT_MAIL);
+		downloadMeta.setToken(RECIPIENT_ID);
+		downloadMeta.setPassword(PASSWORD);
+	}
+
+	@Benchmark
+	public DownloadRepresentation getDownloadInfo() throws Exception {
+		return downloadServices.getDownloadInfo(ENCLOSURE_ID, RECIPIENT_ID, RECIPIENT_MAIL);
+	}
+
+	@Benchmark
+	public DownloadRepresentation getDownloadInfoPublic() throws Exception {
+		return downloadServices.getDownloadInfoPublic(PUBLIC_ENCLOSURE_ID);
+	}
+
+	@Benchmark
+	public void validatePassword() throws Exception {
+		downloadServices.validatePassword(ENCLOSURE_ID, PASSWORD, RECIPIENT_MAIL);
+	}
+
+	@Benchmark
+	public Download generateDownloadUrlWithPassword() throws Exception {
+		return downloadServices.generateDownloadUrlWithPassword(downloadMeta);
+	}
+
+	private void seedEnclosure(InMemoryMetaload metaload, String enclosureId, boolean publicLink) {
+		String enclosureKey = RedisKeysEnum.FT_ENCLOSURE.getKey(enclosureId);
+		metaload.hset(enclosureKey, EnclosureKeysEnum.TIMESTAMP.getKey(), LocalDateTime.now().toString());
+		metaload.hset(enclosureKey, EnclosureKeysEnum.EXPIRED_TIMESTAMP.getKey(),
+				LocalDateTime.now().plusDays(30).toString());
+		metaload.hset(enclosureKey, EnclosureKeysEnum.PASSWORD.getKey(), PASSWORD);
+		metaload.hset(enclosureKey, EnclosureKeysEnum.PUBLIC_LINK.getKey(), String.valueOf(publicLink));
+		metaload.hset(RedisKeysEnum.FT_SENDER.getKey(enclosureId), SenderKeysEnum.EMAIL.getKey(), "sender@gouv.fr");
+		metaload.hset(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosureId), EnclosureKeysEnum.TOKEN.getKey(), "token");
+		for (int i = 0; i < rootFiles; i++) {
+			String rootFileName = "file-" + i + ".pdf";
+			metaload.rpush(RedisKeysEnum.FT_ROOT_FILES.getKey(enclosureId), rootFileName);
+			metaload.hset(
+					RedisKeysEnum.FT_ROOT_FILE.getKey(RedisUtils.generateHashsha1(enclosureId + ":" + rootFileName)),
+					RootFileKeysEnum.SIZE.getKey(), String.valueOf(1024L * (i + 1)));
+		}
+	}
+
+	private DownloadServices downloadServices(RedisManager redisManager, Pool<Jedis> metaloadPool,
+			StorageManager storageManager) throws Exception {
+		MeterRegistry meterRegistry = new SimpleMeterRegistry();
+		MetaloadChannelServices metaloadChannelServices = mock(MetaloadChannelServices.class,
+				withSettings().stubOnly());
+		ApplicationEventPublisher eventPublisher = event -> {
+		};
+
+		MetaloadReadServices metaloadReadServices = new MetaloadReadServices();
+		ReflectionTestUtils.setField(metaloadReadServices, "metaloadPool", metaloadPool);
+		ReflectionTestUtils.setField(metaloadReadServices, "meterRegistry", meterRegistry);
+		metaloadReadServices.init();
+
+		EnclosureListingServices enclosureListingServices = new EnclosureListingServices();
+		ReflectionTestUtils.setField(enclosureListingServices, "chunkSize", 1000);
+		ReflectionTestUtils.setField(enclosureListingServices, "metaloadReadServices", metaloadReadServices);
+
+		ParallelLookupServices parallelLookupServices = new ParallelLookupServices();
+		ReflectionTestUtils.setField(parallelLookupServices, "threads", 32);
+		ReflectionTestUtils.setField(parallelLookupServices, "queueSize", 1000);
+		ReflectionTestUtils.setField(parallelLookupServices, "meterRegistry", meterRegistry);
+		parallelLookupServices.init();
+
+		MissingEnclosureServices missingEnclosureServices = new MissingEnclosureServices();
+		ReflectionTestUtils.setField(missingEnclosureServices, "enabled", true);
+		ReflectionTestUtils.setField(missingEnclosureServices, "capacity", 1048576);
+		ReflectionTestUtils.setField(missingEnclosureServices, "ttlMinutes", 60L);
+		ReflectionTestUtils.setField(missingEnclosureServices, "metaloadChannelServices", metaloadChannelServices);
+		ReflectionTestUtils.setField(missingEnclosureServices, "meterRegistry", meterRegistry);
+		missingEnclosureServices.init();
+
+		SingleFlightServices singleFlightServices = new SingleFlightServices();
+		ReflectionTestUtils.setField(singleFlightServices, "waitMillis", 5000L);
+		ReflectionTestUtils.setField(singleFlightServices, "meterRegistry", meterRegistry);
+
+		EnclosureCacheServices enclosureCacheServices = new EnclosureCacheServices();
+		ReflectionTestUtils.setField(enclosureCacheServices, "cacheEnabled", nearCache);
+		ReflectionTestUtils.setField(enclosureCacheServices, "maxSize", 10000L);
+		ReflectionTestUtils.setField(enclosureCacheServices, "ttlMinutes", 10L);
+		ReflectionTestUtils.setField(enclosureCacheServices, "bucketPrefix", "ft-");
+		ReflectionTestUtils.setField(enclosureCacheServices, "enclosureListingServices", enclosureListingServices);
+		ReflectionTestUtils.setField(enclosureCacheServices, "metaloadReadServices", metaloadReadServices);
+		ReflectionTestUtils.setField(enclosureCacheServices, "metaloadChannelServices", metaloadChannelServices);
+		ReflectionTestUtils.setField(enclosureCacheServices, "eventPublisher", eventPublisher);
+		ReflectionTestUtils.setField(enclosureCacheServices, "meterRegistry", meterRegistry);
+		ReflectionTestUtils.setField(enclosureCacheServices, "parallelLookupServices", parallelLookupServices);
+		ReflectionTestUtils.setField(enclosureCacheServices, "singleFlightServices", singleFlightServices);
+		enclosureCacheServices.init();
+
+		StorageResilienceServices storageResilienceServices = storageResilienceServices(meterRegistry);
+
+		IntegrityVerificationServices integrityVerificationServices = new IntegrityVerificationServices();
+		ReflectionTestUtils.setField(integrityVerificationServices, "ttlMinutes", 15L);
+		ReflectionTestUtils.setField(integrityVerificationServices, "maxSize", 10000L);
+		ReflectionTestUtils.setField(integrityVerificationServices, "storageManager", storageManager);
+		ReflectionTestUtils.setField(integrityVerificationServices, "storageResilienceServices",
+				storageResilienceServices);
+		ReflectionTestUtils.setField(integrityVerificationServices, "singleFlightServices", singleFlightServices);
+		ReflectionTestUtils.setField(integrityVerificationServices, "enclosureCacheServices", enclosureCacheServices);
+		ReflectionTestUtils.setField(integrityVerificationServices, "metaloadChannelServices",
+				metaloadChannelServices);
+		ReflectionTestUtils.setField(integrityVerificationServices, "meterRegistry", meterRegistry);
+		integrityVerificationServices.init();
+
+		DownloadUrlServices downloadUrlServices = new DownloadUrlServices();
+		ReflectionTestUtils.setField(downloadUrlServices, "expireInMinutes", 2);
+		ReflectionTestUtils.setField(downloadUrlServices, "safetyMarginSeconds", 30L);
+		ReflectionTestUtils.setField(downloadUrlServices, "maxSize", 10000L);
+		ReflectionTestUtils.setField(downloadUrlServices, "storageManager", storageManager);
+		ReflectionTestUtils.setField(downloadUrlServices, "storageResilienceServices", storageResilienceServices);
+		ReflectionTestUtils.setField(downloadUrlServices, "singleFlightServices", singleFlightServices);
+		ReflectionTestUtils.setField(downloadUrlServices, "meterRegistry", meterRegistry);
+		downloadUrlServices.init();
+
+		DownloadGrantServices downloadGrantServices = new DownloadGrantServices();
+		ReflectionTestUtils.setField(downloadGrantServices, "metaloadPool", metaloadPool);
+		ReflectionTestUtils.setField(downloadGrantServices, "progressWindowSeconds", 600L);
+		ReflectionTestUtils.setField(downloadGrantServices, "progressLocalMaxSize", 100000L);
+		downloadGrantServices.init();
+
+		EnclosureContextServices enclosureContextServices = new EnclosureContextServices();
+		ReflectionTestUtils.setField(enclosureContextServices, "metaloadPool", metaloadPool);
+		ReflectionTestUtils.setField(enclosureContextServices, "metaloadReadServices", metaloadReadServices);
+
+		Base64CryptoService base64CryptoService = mock(Base64CryptoService.class, withSettings().stubOnly());
+		when(base64CryptoService.aesDecrypt(anyString())).thenAnswer(invocation -> invocation.getArgument(0));
+		StringUploadUtils stringUploadUtils = mock(StringUploadUtils.class, withSettings().stubOnly());
+		when(stringUploadUtils.isValidEmail(anyString())).thenReturn(true);
+
+		DownloadServices services = new DownloadServices();
+		ReflectionTestUtils.setField(services, "maxDownload", 5);
+		ReflectionTestUtils.setField(services, "maxPasswordTry", 5);
+		ReflectionTestUtils.setField(services, "redisManager", redisManager);
+		ReflectionTestUtils.setField(services, "base64CryptoService", base64CryptoService);
+		ReflectionTestUtils.setField(services, "stringUploadUtils", stringUploadUtils);
+		ReflectionTestUtils.setField(services, "enclosureCacheServices", enclosureCacheServices);
+		ReflectionTestUtils.setField(services, "integrityVerificationServices", integrityVerificationServices);
+		ReflectionTestUtils.setField(services, "downloadUrlServices", downloadUrlServices);
+		ReflectionTestUtils.setField(services, "downloadGrantServices", downloadGrantServices);
+		ReflectionTestUtils.setField(services, "eventOutboxServices",
+				mock(EventOutboxServices.class, withSettings().stubOnly()));
+		ReflectionTestUtils.setField(services, "enclosureContextServices", enclosureContextServices);
+		ReflectionTestUtils.setField(services, "parallelLookupServices", parallelLookupServices);
+		ReflectionTestUtils.setField(services, "missingEnclosureServices", missingEnclosureServices);
+		ReflectionTestUtils.setField(services, "metaloadReadServices", metaloadReadServices);
+		return services;
+	}
+
+	static StorageResilienceServices storageResilienceServices(MeterRegistry meterRegistry) {
+		StorageResilienceServices storageResilienceServices = new StorageResilienceServices();
+		ReflectionTestUtils.setField(storageResilienceServices, "enabled", true);
+		ReflectionTestUtils.setField(storageResilienceServices, "timeoutMillis", 2000L);
+		ReflectionTestUtils.setField(storageResilienceServices, "maxConcurrent", 64);
+		ReflectionTestUtils.setField(storageResilienceServices, "maxWaitMillis", 20L);
+		ReflectionTestUtils.setField(storageResilienceServices, "window", 100);
+		ReflectionTestUtils.setField(storageResilienceServices, "minCalls", 20);
+		ReflectionTestUtils.setField(storageResilienceServices, "failureRatePercent", 50);
+		ReflectionTestUtils.setField(storageResilienceServices, "openSeconds", 30L);
+		ReflectionTestUtils.setField(storageResilienceServices, "halfOpenCalls", 3);
+		ReflectionTestUtils.setField(storageResilienceServices, "meterRegistry", meterRegistry);
+		storageResilienceServices.init();
+		return storageResilienceServices;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.error.PasswordException;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+
+/**
+ * Cost of a business error thrown at the depth of a servlet request (filters,
+ * dispatcher, proxies) and caught by the exception handler, with and without
+ * stack trace. Run with -prof gc to compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ErrorPathBenchmark {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	@Param({ "40", "120" })
+	private int depth;
+
+	@Benchmark
+	public Object stacklessDownloadError() {
+		try {
+			return throwAt(depth, () -> new DownloadException(ErrorEnum.DOWNLOAD_LIMIT.getValue(), ENCLOSURE_ID));
+		} catch (DownloadException e) {
+			return e.getMessage();
+		}
+	}
+
+	@Benchmark
+	public Object stacklessPasswordError() {
+		try {
+			return throwAt(depth, () -> new PasswordException(ErrorEnum.WRONG_PASSWORD.getValue(), ENCLOSURE_ID, 1));
+		} catch (PasswordException e) {
+			return e.getType();
+		}
+	}
+
+	/**
+	 * Former behaviour : the stack trace is filled, then formatted by the log
+	 */
+	@Benchmark
+	public Object filledDownloadError() {
+		try {
+			return throwAt(depth, () -> new RuntimeException(ErrorEnum.DOWNLOAD_LIMIT.getValue()));
+		} catch (RuntimeException e) {
+			StringBuilder log = new StringBuilder(e.getMessage());
+			for (StackTraceElement element : e.getStackTrace()) {
+				log.append("\n\tat ").append(element);
+			}
+			return log;
+		}
+	}
+
+	private static Object throwAt(int depth, ErrorFactory errorFactory) {
+		if (depth == 0) {
+			throw errorFactory.create();
+		}
+		return throwAt(depth - 1, errorFactory);
+	}
+
+	@FunctionalInterface
+	private interface ErrorFactory {
+		RuntimeException create();
+	}
+}
@@ -0,0 +1,202 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.benchmark;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.mockito.Answers;
+import org.mockito.invocation.InvocationOnMock;
+
+import fr.gouv.culture.francetransfert.core.services.RedisManager;
+import redis.clients.jedis.Builder;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * In memory stand-in of the metaload, served both through a RedisManager and
+ * through the Jedis pool used for pipelines. Every RedisManager call, every
+ * direct Jedis call and every pipeline sync costs the configured latency.
+ */
+public class InMemoryMetaload {
+
+	private final Map<String, Map<String, String>> hashes = new ConcurrentHashMap<>();
+
+	private final Map<String, List<String>> lists = new ConcurrentHashMap<>();
+
+	private final long latencyNanos;
+
+	private final ThreadLocal<Jedis> connections = ThreadLocal.withInitial(InMemoryJedis::new);
+
+	public InMemoryMetaload(long latencyMicros) {
+		this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	}
+
+	public void hset(String key, String field, String value) {
+		hashes.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(field, value);
+	}
+
+	public void rpush(String key, String... values) {
+		lists.computeIfAbsent(key, k -> Collections.synchronizedList(new ArrayList<>())).addAll(Arrays.asList(values));
+	}
+
+	public RedisManager redisManager() {
+		return mock(RedisManager.class, withSettings().stubOnly().defaultAnswer(this::answer));
+	}
+
+	public Pool<Jedis> pool() {
+		return new Pool<Jedis>(new GenericObjectPoolConfig<>(), new InMemoryJedisFactory()) {
+			@Override
+			public Jedis getResource() {
+				return connections.get();
+			}
+		};
+	}
+
+	void roundTrip() {
+		if (latencyNanos > 0) {
+			LockSupport.parkNanos(latencyNanos);
+		}
+	}
+
+	private Map<String, String> hash(String key) {
+		return hashes.getOrDefault(key, Collections.emptyMap());
+	}
+
+	private List<String> list(String key) {
+		return lists.getOrDefault(key, Collections.emptyList());
+	}
+
+	private Object answer(InvocationOnMock invocation) throws Throwable {
+		roundTrip();
+		switch (invocation.getMethod().getName()) {
+		case "hmgetAllString":
+			return new HashMap<>(hash(invocation.getArgument(0)));
+		case "getHgetString":
+			return hash(invocation.getArgument(0)).get(invocation.getArgument(1));
+		case "lrange":
+			return new ArrayList<>(list(invocation.getArgument(0)));
+		default:
+			return Answers.RETURNS_DEFAULTS.answer(invocation);
+		}
+	}
+
+	private static <T> Response<T> response(T value) {
+		Response<T> response = new Response<>(new Builder<T>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public T build(Object data) {
+				return (T) data;
+			}
+		});
+		response.set(value);
+		return response;
+	}
+
+	private class InMemoryJedis extends Jedis {
+
+		@Override
+		public Pipeline pipelined() {
+			return new InMemoryPipeline();
+		}
+
+		@Override
+		public Map<String, String> hgetAll(String key) {
+			roundTrip();
+			return new HashMap<>(hash(key));
+		}
+
+		@Override
+		public String scriptLoad(String script) {
+			roundTrip();
+			return "grant-download";
+		}
+
+		@Override
+		public Object evalsha(String sha1, List<String> keys, List<String> args) {
+			roundTrip();
+			return 1L;
+		}
+
+		@Override
+		public void close() {
+			// kept by its thread
+		}
+	}
+
+	private class InMemoryPipeline extends Pipeline {
+
+		private int pending;
+
+		InMemoryPipeline() {
+			super((Connection) null);
+		}
+
+		@Override
+		public Response<Map<String, String>> hgetAll(String key) {
+			pending++;
+			return response(new HashMap<>(hash(key)));
+		}
+
+		@Override
+		public Response<String> hget(String key, String field) {
+			pending++;
+			return response(hash(key).get(field));
+		}
+
+		@Override
+		public Response<Boolean> exists(String key) {
+			pending++;
+			return response(hashes.containsKey(key) || lists.containsKey(key));
+		}
+
+		@Override
+		public Response<List<String>> lrange(String key, long start, long stop) {
+			pending++;
+			return response(new ArrayList<>(list(key)));
+		}
+
+		@Override
+		public void sync() {
+			if (pending > 0) {
+				pending = 0;
+				roundTrip();
+			}
+		}
+	}
+
+	private class InMemoryJedisFactory extends BasePooledObjectFactory<Jedis> {
+
+		@Override
+		public Jedis create() {
+			return new InMemoryJedis();
+		}
+
+		@Override
+		public PooledObject<Jedis> wrap(Jedis jedis) {
+			return new DefaultPooledObject<>(jedis);
+		}
+	}
+}
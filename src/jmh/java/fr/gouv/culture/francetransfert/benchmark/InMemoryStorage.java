@@ -0,0 +1,56 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.benchmark;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mockito.Answers;
+import org.mockito.invocation.InvocationOnMock;
+
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+
+/**
+ * In memory stand-in of the object storage : every call costs the configured
+ * latency, the ETag of every zip is {@link #ETAG}.
+ */
+public class InMemoryStorage {
+
+	public static final String ETAG = "d41d8cd98f00b204e9800998ecf8427e";
+
+	private final long latencyNanos;
+
+	public InMemoryStorage(long latencyMicros) {
+		this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	}
+
+	public StorageManager storageManager() {
+		return mock(StorageManager.class, withSettings().stubOnly().defaultAnswer(this::answer));
+	}
+
+	private Object answer(InvocationOnMock invocation) throws Throwable {
+		if (latencyNanos > 0) {
+			LockSupport.parkNanos(latencyNanos);
+		}
+		switch (invocation.getMethod().getName()) {
+		case "getZippedEnclosureName":
+			return invocation.getArgument(0) + ".zip";
+		case "getEtag":
+			return ETAG;
+		case "generateDownloadURL":
+			return new URL("https://storage.local/" + invocation.getArgument(0) + "/" + invocation.getArgument(1)
+					+ "?X-Amz-Expires=" + invocation.getArgument(2));
+		default:
+			return Answers.RETURNS_DEFAULTS.answer(invocation);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.configuration;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Times every call to the metaload (RedisManager) and to the object storage
+ * (StorageManager). Timers are tagged with the dependency, the method and the
+ * outcome, failed calls are also counted by exception type. They are built once
+ * per method. The raw Jedis traffic of the batch pool bypasses RedisManager, it
+ * is timed by the pool itself under the same name (see MetaloadPoolMetrics).
+ */
+@Aspect
+@Component
+public class DependencyMetricsAspect {
+
+	static final String TIMER_NAME = "ft.dependency.calls";
+
+	private static final String ERROR_COUNTER_NAME = "ft.dependency.errors";
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private final ConcurrentMap<Method, MethodTimers> timers = new ConcurrentHashMap<>();
+
+	@Around("execution(public * fr.gouv.culture.francetransfert.core.services.RedisManager.*(..))")
+	public Object timeRedis(ProceedingJoinPoint joinPoint) throws Throwable {
+		return time("redis", joinPoint);
+	}
+
+	@Around("execution(public * fr.gouv.culture.francetransfert.core.services.StorageManager.*(..))")
+	public Object timeStorage(ProceedingJoinPoint joinPoint) throws Throwable {
+		return time("storage", joinPoint);
+	}
+
+	private Object time(String dependency, ProceedingJoinPoint joinPoint) throws Throwable {
+		MethodTimers methodTimers = timers.computeIfAbsent(((MethodSignature) joinPoint.getSignature()).getMethod(),
+				method -> new MethodTimers(dependency, method.getName()));
+		Timer timer = methodTimers.success;
+		long start = System.nanoTime();
+		try {
+			return joinPoint.proceed();
+		} catch (Throwable e) {
+			timer = methodTimers.error;
+			meterRegistry.counter(ERROR_COUNTER_NAME, "dependency", dependency, "method", methodTimers.method,
+					"exception", e.getClass().getSimpleName()).increment();
+			throw e;
+		} finally {
+			timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	static Timer timer(MeterRegistry meterRegistry, String dependency, String method, String outcome) {
+		return Timer.builder(TIMER_NAME).tag("dependency", dependency).tag("method", method).tag("outcome", outcome)
+				.publishPercentileHistogram().register(meterRegistry);
+	}
+
+	private class MethodTimers {
+
+		private final String method;
+
+		private final Timer success;
+
+		private final Timer error;
+
+		MethodTimers(String dependency, String method) {
+			this.method = method;
+			success = timer(meterRegistry, dependency, method, "success");
+			error = timer(meterRegistry, dependency, method, "error");
+		}
+	}
+}
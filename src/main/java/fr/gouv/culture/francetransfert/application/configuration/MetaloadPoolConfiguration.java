@@ -0,0 +1,157 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.configuration;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisSentinelPool;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Jedis pool used for batched (pipelined) reads on the metaload. It is built
+ * from the same metaload configuration as the core RedisManager, with its own
+ * size limit and eviction settings. Connections are not pinged on borrow nor on
+ * return : idle ones are validated in the background and broken ones are
+ * dropped when a command fails.
+ * <p>
+ * Pool telemetry and health probing only cover the pools this module builds :
+ * this one, the replica pools being checked by MetaloadReadServices. The pool
+ * of the core RedisManager is private to FTR-core : it keeps the core settings,
+ * is neither measured nor probed here, and its calls are only seen through the
+ * dependency metrics of the manager.
+ */
+@Configuration
+public class MetaloadPoolConfiguration {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetaloadPoolConfiguration.class);
+
+	@Value("${metaload.host}")
+	private String host;
+
+	@Value("${metaload.port}")
+	private int port;
+
+	@Value("${metaload.password:}")
+	private String password;
+
+	@Value("${metaload.sentinel.active:false}")
+	private boolean sentinelActive;
+
+	@Value("${metaload.sentinel.nodes:}")
+	private String sentinelNodes;
+
+	@Value("${metaload.sentinel.master.name:}")
+	private String sentinelMasterName;
+
+	@Value("${metaload.batch.poolconfig.maxTotal:128}")
+	private int maxTotal;
+
+	@Value("${metaload.poolconfig.minIdle:16}")
+	private int minIdle;
+
+	@Value("${metaload.poolconfig.maxWaitMillis:30000}")
+	private long maxWaitMillis;
+
+	@Value("${metaload.poolconfig.blockWhenExhausted:true}")
+	private boolean blockWhenExhausted;
+
+	@Value("${metaload.batch.poolconfig.timeBetweenEvictionRunsMillis:30000}")
+	private long timeBetweenEvictionRunsMillis;
+
+	@Value("${metaload.batch.poolconfig.minEvictableIdleTimeMillis:60000}")
+	private long minEvictableIdleTimeMillis;
+
+	@Value("${metaload.poolconfig.numTestsPerEvictionRun:3}")
+	private int numTestsPerEvictionRun;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Bean(destroyMethod = "close")
+	public Pool<Jedis> metaloadPool() {
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(maxTotal);
+		poolConfig.setMaxIdle(maxTotal);
+		poolConfig.setMinIdle(Math.min(minIdle, maxTotal));
+		poolConfig.setMaxWait(Duration.ofMillis(maxWaitMillis));
+		poolConfig.setBlockWhenExhausted(blockWhenExhausted);
+		poolConfig.setTestOnBorrow(false);
+		poolConfig.setTestOnReturn(false);
+		poolConfig.setTestWhileIdle(true);
+		poolConfig.setTimeBetweenEvictionRuns(Duration.ofMillis(timeBetweenEvictionRunsMillis));
+		poolConfig.setMinEvictableIdleTime(Duration.ofMillis(minEvictableIdleTimeMillis));
+		poolConfig.setNumTestsPerEvictionRun(numTestsPerEvictionRun);
+
+		MetaloadPoolMetrics metrics = new MetaloadPoolMetrics(meterRegistry, "batch");
+		Pool<Jedis> pool;
+		String redisPassword = StringUtils.isNotBlank(password) ? password : null;
+		if (sentinelActive) {
+			Set<String> sentinels = Arrays.stream(sentinelNodes.split(",")).map(String::trim)
+					.filter(StringUtils::isNotBlank).collect(Collectors.toCollection(HashSet::new));
+			LOGGER.info("Metaload batch pool on sentinel master {} ({})", sentinelMasterName, sentinels);
+			pool = new JedisSentinelPool(sentinelMasterName, sentinels, poolConfig, Protocol.DEFAULT_TIMEOUT,
+					redisPassword) {
+				@Override
+				public Jedis getResource() {
+					return metrics.borrow(super::getResource);
+				}
+
+				@Override
+				public void returnResource(Jedis resource) {
+					metrics.giveBack(resource, false);
+					super.returnResource(resource);
+				}
+
+				@Override
+				public void returnBrokenResource(Jedis resource) {
+					metrics.giveBack(resource, true);
+					super.returnBrokenResource(resource);
+				}
+			};
+		} else {
+			LOGGER.info("Metaload batch pool on {}:{}", host, port);
+			pool = new JedisPool(poolConfig, host, port, Protocol.DEFAULT_TIMEOUT, redisPassword) {
+				@Override
+				public Jedis getResource() {
+					return metrics.borrow(super::getResource);
+				}
+
+				@Override
+				public void returnResource(Jedis resource) {
+					metrics.giveBack(resource, false);
+					super.returnResource(resource);
+				}
+
+				@Override
+				public void returnBrokenResource(Jedis resource) {
+					metrics.giveBack(resource, true);
+					super.returnBrokenResource(resource);
+				}
+			};
+		}
+		MetaloadPoolMetrics.bindTo(meterRegistry, "batch", pool);
+		return pool;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.configuration;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Telemetry of a Jedis pool : connection counts, borrow wait time histogram,
+ * exhaustion events and connections destroyed after a failed validation.
+ * Connections are also timed from borrow to return, as the metaload calls
+ * ({@code ft.dependency.calls}, method {@code <pool>-pool}) of the code using
+ * the pool directly. Only the pools built by this module are bound : the core
+ * RedisManager does not expose its own.
+ */
+class MetaloadPoolMetrics {
+
+	private static final String PREFIX = "ft.metaload.pool.";
+
+	private final Timer borrowTimer;
+
+	private final Counter exhaustedCounter;
+
+	private final Timer leaseTimer;
+
+	private final Timer brokenLeaseTimer;
+
+	private final ConcurrentMap<Jedis, Long> leases = new ConcurrentHashMap<>();
+
+	MetaloadPoolMetrics(MeterRegistry meterRegistry, String poolName) {
+		borrowTimer = Timer.builder(PREFIX + "borrow").tag("pool", poolName)
+				.description("Time waited for a pooled connection").publishPercentileHistogram()
+				.register(meterRegistry);
+		exhaustedCounter = Counter.builder(PREFIX + "exhausted").tag("pool", poolName)
+				.description("Borrows given up because the pool stayed exhausted").register(meterRegistry);
+		leaseTimer = DependencyMetricsAspect.timer(meterRegistry, "redis", poolName + "-pool", "success");
+		brokenLeaseTimer = DependencyMetricsAspect.timer(meterRegistry, "redis", poolName + "-pool", "error");
+	}
+
+	/**
+	 * Time a borrow, counting the ones failing on an exhausted pool
+	 */
+	Jedis borrow(Supplier<Jedis> borrow) {
+		long start = System.nanoTime();
+		try {
+			Jedis jedis = borrow.get();
+			leases.put(jedis, System.nanoTime());
+			return jedis;
+		} catch (JedisException e) {
+			if (e.getCause() instanceof NoSuchElementException) {
+				exhaustedCounter.increment();
+			}
+			throw e;
+		} finally {
+			borrowTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Time the use of a connection given back to the pool
+	 *
+	 * @param jedis
+	 * @param broken true if the connection failed a command
+	 */
+	void giveBack(Jedis jedis, boolean broken) {
+		Long leased = jedis != null ? leases.remove(jedis) : null;
+		if (leased != null) {
+			(broken ? brokenLeaseTimer : leaseTimer).record(System.nanoTime() - leased, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	static void bindTo(MeterRegistry meterRegistry, String poolName, GenericObjectPool<?> pool) {
+		Gauge.builder(PREFIX + "active", pool, GenericObjectPool::getNumActive).tag("pool", poolName)
+				.description("Connections borrowed").register(meterRegistry);
+		Gauge.builder(PREFIX + "idle", pool, GenericObjectPool::getNumIdle).tag("pool", poolName)
+				.description("Connections idle in the pool").register(meterRegistry);
+		Gauge.builder(PREFIX + "waiters", pool, GenericObjectPool::getNumWaiters).tag("pool", poolName)
+				.description("Threads waiting for a connection").register(meterRegistry);
+		Gauge.builder(PREFIX + "borrow.wait.mean", pool, GenericObjectPool::getMeanBorrowWaitTimeMillis)
+				.tag("pool", poolName).baseUnit("milliseconds")
+				.description("Mean wait for a connection over the last borrows").register(meterRegistry);
+		Gauge.builder(PREFIX + "borrow.wait.max", pool, GenericObjectPool::getMaxBorrowWaitTimeMillis)
+				.tag("pool", poolName).baseUnit("milliseconds")
+				.description("Longest wait for a connection since startup").register(meterRegistry);
+		FunctionCounter.builder(PREFIX + "created", pool, p -> p.getCreatedCount()).tag("pool", poolName)
+				.description("Connections opened").register(meterRegistry);
+		FunctionCounter.builder(PREFIX + "destroyed", pool, p -> p.getDestroyedByEvictorCount())
+				.tag("pool", poolName).tag("reason", "idle-validation")
+				.description("Idle connections evicted or failing their background validation")
+				.register(meterRegistry);
+		FunctionCounter.builder(PREFIX + "destroyed", pool, p -> p.getDestroyedByBorrowValidationCount())
+				.tag("pool", poolName).tag("reason", "borrow-validation")
+				.description("Connections failing their validation on borrow").register(meterRegistry);
+		FunctionCounter
+				.builder(PREFIX + "destroyed", pool,
+						p -> p.getDestroyedCount() - p.getDestroyedByEvictorCount()
+								- p.getDestroyedByBorrowValidationCount())
+				.tag("pool", poolName).tag("reason", "broken")
+				.description("Connections dropped after a command error or on a failover")
+				.register(meterRegistry);
+	}
+}
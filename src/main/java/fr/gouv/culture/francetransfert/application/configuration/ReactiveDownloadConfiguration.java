@@ -0,0 +1,89 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.configuration;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Beans of the opt-in non-blocking download stack : a single multiplexed
+ * lettuce connection to the metaload, built from the same metaload
+ * configuration as the Jedis pools, and the bounded scheduler on which the
+ * remaining blocking calls (object storage, core services) are run.
+ */
+@Configuration
+@ConditionalOnProperty(name = "download.reactive.enabled", havingValue = "true")
+public class ReactiveDownloadConfiguration {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveDownloadConfiguration.class);
+
+	@Value("${metaload.host}")
+	private String host;
+
+	@Value("${metaload.port}")
+	private int port;
+
+	@Value("${metaload.password:}")
+	private String password;
+
+	@Value("${metaload.sentinel.active:false}")
+	private boolean sentinelActive;
+
+	@Value("${metaload.sentinel.nodes:}")
+	private String sentinelNodes;
+
+	@Value("${metaload.sentinel.master.name:}")
+	private String sentinelMasterName;
+
+	@Value("${download.reactive.blocking.threads:16}")
+	private int blockingThreads;
+
+	@Value("${download.reactive.blocking.queue:10000}")
+	private int blockingQueue;
+
+	@Bean(destroyMethod = "shutdown")
+	public RedisClient metaloadReactiveClient() {
+		RedisURI.Builder uri;
+		if (sentinelActive) {
+			uri = RedisURI.builder().withSentinelMasterId(sentinelMasterName);
+			for (String node : StringUtils.split(sentinelNodes, ",")) {
+				uri.withSentinel(StringUtils.substringBeforeLast(node.trim(), ":"),
+						Integer.parseInt(StringUtils.substringAfterLast(node.trim(), ":")));
+			}
+			LOGGER.info("Metaload reactive connection on sentinel master {} ({})", sentinelMasterName, sentinelNodes);
+		} else {
+			uri = RedisURI.builder().withHost(host).withPort(port);
+			LOGGER.info("Metaload reactive connection on {}:{}", host, port);
+		}
+		if (StringUtils.isNotBlank(password)) {
+			uri.withPassword(password.toCharArray());
+		}
+		return RedisClient.create(uri.build());
+	}
+
+	@Bean(destroyMethod = "close")
+	public StatefulRedisConnection<String, String> metaloadReactiveConnection(RedisClient metaloadReactiveClient) {
+		return metaloadReactiveClient.connect();
+	}
+
+	@Bean(destroyMethod = "dispose")
+	public Scheduler downloadBlockingScheduler() {
+		return Schedulers.newBoundedElastic(blockingThreads, blockingQueue, "ft-download-blocking");
+	}
+}
@@ -15,7 +15,8 @@ import lombok.Getter;
 public enum ErrorEnum {
 	TECHNICAL_ERROR("TECHNICAL_ERROR"), DOWNLOAD_LIMIT("DOWNLOAD_LIMIT"), DELETED_ENCLOSURE("DELETED_ENCLOSURE"),
 	WRONG_PASSWORD("WRONG_PASSWORD"), USER_DELETED("USER_DELETED"), MAX_TRY("MAX_TRY"), HASH_INVALID("HASH_INVALID"),
-	WRONG_ENCLOSURE("WRONG_ENCLOSURE");
+	WRONG_ENCLOSURE("WRONG_ENCLOSURE"), WRONG_FILE("WRONG_FILE"), BATCH_TOO_LARGE("BATCH_TOO_LARGE"),
+	TOO_MANY_REQUESTS("TOO_MANY_REQUESTS"), STORAGE_UNAVAILABLE("STORAGE_UNAVAILABLE");
 
 	private String value;
 }
@@ -13,6 +13,7 @@ import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -33,6 +34,7 @@ import fr.gouv.culture.francetransfert.domain.exceptions.DomainNotFoundException
 import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
 import fr.gouv.culture.francetransfert.domain.exceptions.ExpirationEnclosureException;
 import fr.gouv.culture.francetransfert.domain.exceptions.InvalidHashException;
+import io.micrometer.core.instrument.MeterRegistry;
 
 /**
  * The type StarterKit exception handler.
@@ -45,6 +47,11 @@ public class FranceTransfertDownloadExceptionHandler extends ResponseEntityExcep
 
 	private static final Logger LOG = LoggerFactory.getLogger(FranceTransfertDownloadExceptionHandler.class);
 
+	private static final String OUTCOME_COUNTER_NAME = "ft.download.outcome";
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
 	@Override
 	protected ResponseEntity<Object> handleNoHandlerFoundException(NoHandlerFoundException ex, HttpHeaders headers,
 			HttpStatus status, WebRequest request) {
@@ -70,7 +77,6 @@ public class FranceTransfertDownloadExceptionHandler extends ResponseEntityExcep
 
 	@ExceptionHandler(DomainNotFoundException.class)
 	public ResponseEntity<Object> handleDomainNotFoundException(Exception ex) {
-		LOG.error("Handle error type DomainNotFoundException : " + ex.getMessage(), ex);
 		String errorId = RedisUtils.generateGUID();
 		LOG.error("Type: {} -- id: {} -- message: {}", ErrorEnum.TECHNICAL_ERROR.getValue(), errorId, ex.getMessage(),
 				ex);
@@ -81,16 +87,35 @@ public class FranceTransfertDownloadExceptionHandler extends ResponseEntityExcep
 
 	@ExceptionHandler({ MaxTryException.class })
 	public ResponseEntity<Object> handleMaxTryException(MaxTryException ex) {
-		LOG.error("Handle error type MaxTryException : " + ex.getMessage(), ex);
-		LOG.error("Type: {} -- id: {} -- message: {}", ErrorEnum.TECHNICAL_ERROR.getValue(), ex.getId(),
-				ex.getMessage(), ex);
+		countOutcome(ErrorEnum.MAX_TRY.getValue());
+		logBusinessError(ErrorEnum.MAX_TRY.getValue(), ex.getId(), ex.getMessage());
 		return new ResponseEntity<>(new ApiError(HttpStatus.UNAUTHORIZED.value(), ex.getMessage(), ex.getId()),
 				HttpStatus.UNAUTHORIZED);
 	}
 
+	@ExceptionHandler({ TooManyRequestsException.class })
+	public ResponseEntity<Object> handleTooManyRequestsException(TooManyRequestsException ex) {
+		logBusinessError(ex.getMessage(), ex.getId(), "retry after " + ex.getRetryAfterSeconds() + "s");
+		countOutcome(ErrorEnum.TOO_MANY_REQUESTS.getValue());
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+		return new ResponseEntity<>(new ApiError(HttpStatus.TOO_MANY_REQUESTS.value(), ex.getMessage(), ex.getId()),
+				headers, HttpStatus.TOO_MANY_REQUESTS);
+	}
+
+	@ExceptionHandler({ StorageUnavailableException.class })
+	public ResponseEntity<Object> handleStorageUnavailableException(StorageUnavailableException ex) {
+		logBusinessError(ex.getMessage(), null, "retry after " + ex.getRetryAfterSeconds() + "s");
+		countOutcome(ErrorEnum.STORAGE_UNAVAILABLE.getValue());
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+		return new ResponseEntity<>(
+				new ApiError(HttpStatus.SERVICE_UNAVAILABLE.value(), ErrorEnum.STORAGE_UNAVAILABLE.getValue(), null),
+				headers, HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
 	@ExceptionHandler({ AccessDeniedException.class })
 	public ResponseEntity<Object> handleUnauthorizedException(Exception ex) {
-		LOG.error("Handle error type AccessDeniedException : " + ex.getMessage(), ex);
 		String errorId = RedisUtils.generateGUID();
 		LOG.error("Type: {} -- id: {} -- message: {}", ErrorEnum.TECHNICAL_ERROR.getValue(), errorId, ex.getMessage(),
 				ex);
@@ -100,29 +125,24 @@ public class FranceTransfertDownloadExceptionHandler extends ResponseEntityExcep
 
 	@ExceptionHandler(BusinessDomainException.class)
 	public ResponseEntity<Object> handleBusinessDomainException(Exception ex) {
-		LOG.error("Handle error type BusinessDomainException : " + ex.getMessage(), ex);
 		return generateError(ex, ErrorEnum.TECHNICAL_ERROR.getValue());
 	}
 
 	@ExceptionHandler(SdkClientException.class)
 	public ResponseEntity<Object> handleSdkClientException(Exception ex) {
-		LOG.error("Handle error type SdkClientException : " + ex.getMessage(), ex);
 		return generateError(ex, ErrorEnum.TECHNICAL_ERROR.getValue());
 	}
 
 	@ExceptionHandler(UnauthorizedAccessException.class)
 	public ResponseEntity<Object> handleUnauthorizedAccessException(UnauthorizedAccessException ex) {
-		LOG.error("Handle error type UnauthorizedAccessException : " + ex.getMessage(), ex);
-		String errorId = UUID.randomUUID().toString();
-		LOG.error("Type: {} -- id: {} -- message: {}", ErrorEnum.TECHNICAL_ERROR.getValue(), errorId, ex.getMessage(),
-				ex);
+		logBusinessError(ex.getType(), null, ex.getMessage());
 		return new ResponseEntity<>(new ApiError(HttpStatus.UNAUTHORIZED.value(), ex.getType(), ex.getMessage()),
 				HttpStatus.UNAUTHORIZED);
 	}
 
 	@ExceptionHandler(InvalidHashException.class)
 	public ResponseEntity<Object> handleInvalidHashException(Exception ex) {
-		LOG.error("Handle error type InvalidHashException : " + ex.getMessage(), ex);
+		countOutcome(ErrorEnum.HASH_INVALID.getValue());
 		LOG.error("Type: {} -- id: {} -- message: {}", ErrorEnum.TECHNICAL_ERROR.getValue(), null, ex.getMessage(), ex);
 		return new ResponseEntity<>(
 				new ApiError(HttpStatus.NOT_FOUND.value(), ErrorEnum.HASH_INVALID.getValue(), ex.getMessage()),
@@ -131,8 +151,12 @@ public class FranceTransfertDownloadExceptionHandler extends ResponseEntityExcep
 
 	@ExceptionHandler(ExpirationEnclosureException.class)
 	public ResponseEntity<Object> handleExpirationEnclosureException(Exception ex) {
-		LOG.error("Handle error type ExpirationEnclosureException : " + ex.getMessage(), ex);
-		LOG.error("Type: {} -- id: {} -- message: {}", ErrorEnum.TECHNICAL_ERROR.getValue(), null, ex.getMessage(), ex);
+		if (ex.getCause() != null) {
+			LOG.error("Type: {} -- id: {} -- message: {}", ErrorEnum.TECHNICAL_ERROR.getValue(), null, ex.getMessage(),
+					ex);
+		} else {
+			logBusinessError("EXPIRED_ENCLOSURE", null, ex.getMessage());
+		}
 		return new ResponseEntity<>(
 				new ApiError(HttpStatus.NOT_FOUND.value(), ErrorEnum.TECHNICAL_ERROR.getValue(), ex.getMessage()),
 				HttpStatus.NOT_FOUND);
@@ -140,12 +164,31 @@ public class FranceTransfertDownloadExceptionHandler extends ResponseEntityExcep
 
 	@ExceptionHandler(DownloadException.class)
 	public ResponseEntity<Object> handleDownloadException(DownloadException ex) {
-		LOG.error("Handle error type DownloadException : " + ex.getMessage(), ex);
-		LOG.error("Type: {} -- id: {} -- message: {}", ex.getId(), ex.getMessage(), ex);
+		if (ErrorEnum.DOWNLOAD_LIMIT.getValue().equals(ex.getMessage())
+				|| ErrorEnum.DELETED_ENCLOSURE.getValue().equals(ex.getMessage())) {
+			countOutcome(ex.getMessage());
+		}
+		if (ex.isTechnical()) {
+			LOG.error("Type: {} -- id: {} -- message: {}", ErrorEnum.TECHNICAL_ERROR.getValue(), ex.getId(),
+					ex.getMessage(), ex);
+		} else {
+			logBusinessError(ex.getMessage(), ex.getId(), null);
+		}
 		return new ResponseEntity<>(new ApiError(HttpStatus.BAD_REQUEST.value(), ex.getMessage(), ex.getId()),
 				HttpStatus.BAD_REQUEST);
 	}
 
+	/**
+	 * Single line, without stack trace, for the errors expected in normal traffic
+	 */
+	private static void logBusinessError(String type, String id, String message) {
+		LOG.warn("Type: {} -- id: {} -- message: {}", type, id, message);
+	}
+
+	private void countOutcome(String outcome) {
+		meterRegistry.counter(OUTCOME_COUNTER_NAME, "outcome", outcome).increment();
+	}
+
 	private ResponseEntity<Object> generateError(Exception ex, String errorType) {
 		String errorId = UUID.randomUUID().toString();
 		LOG.error("generateError :Type: {} -- id: {} -- message: {}", errorType, errorId, ex.getMessage(), ex);
@@ -155,8 +198,8 @@ public class FranceTransfertDownloadExceptionHandler extends ResponseEntityExcep
 
 	@ExceptionHandler(PasswordException.class)
 	public ResponseEntity<Object> handleConfirmationCodeExcption(PasswordException ex) {
-		LOG.error("Handle error type PasswordException : " + HttpStatus.UNAUTHORIZED.toString(), ex);
-		LOG.error("Type: {} -- id: {} -- message: {}", ex.getType(), ex.getId(), HttpStatus.UNAUTHORIZED.toString(), ex);
+		countOutcome(ErrorEnum.WRONG_PASSWORD.getValue());
+		logBusinessError(ex.getType(), ex.getId(), "attempt " + ex.getCount());
 		return new ResponseEntity<>(
 				new WrongCodeError(HttpStatus.UNAUTHORIZED.value(), ex.getCount(), HttpStatus.UNAUTHORIZED.toString()),
 				HttpStatus.UNAUTHORIZED);
@@ -20,11 +20,11 @@ public class MaxTryException extends RuntimeException {
 	 * @param msg
 	 */
 	public MaxTryException(String msg) {
-		super(msg);
+		super(msg, null, false, false);
 	}
 
 	public MaxTryException(String msg, String id) {
-		super(msg);
+		super(msg, null, false, false);
 		this.id = id;
 	}
 }
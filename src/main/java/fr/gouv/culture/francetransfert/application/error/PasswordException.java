@@ -7,13 +7,25 @@
 
 package fr.gouv.culture.francetransfert.application.error;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 
-@AllArgsConstructor
 @Getter
 public class PasswordException extends RuntimeException {
     private String type;
     private String id;
     private int count;
+
+    /**
+     * Wrong password, without stack trace
+     *
+     * @param type
+     * @param id    enclosure id
+     * @param count failed attempts
+     */
+    public PasswordException(String type, String id, int count) {
+        super(type, null, false, false);
+        this.type = type;
+        this.id = id;
+        this.count = count;
+    }
 }
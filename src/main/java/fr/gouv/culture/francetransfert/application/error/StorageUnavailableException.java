@@ -0,0 +1,27 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.error;
+
+import lombok.Getter;
+
+@Getter
+public class StorageUnavailableException extends RuntimeException {
+
+	private long retryAfterSeconds;
+
+	/**
+	 * Storage call refused or abandoned without waiting for the object storage
+	 * 
+	 * @param msg
+	 * @param retryAfterSeconds delay before the storage is tried again
+	 */
+	public StorageUnavailableException(String msg, long retryAfterSeconds) {
+		super(msg, null, false, false);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+}
@@ -0,0 +1,30 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.application.error;
+
+import lombok.Getter;
+
+@Getter
+public class TooManyRequestsException extends RuntimeException {
+
+	private String id;
+
+	private long retryAfterSeconds;
+
+	/**
+	 * Too Many Requests Exception
+	 * 
+	 * @param msg
+	 * @param id                enclosure id
+	 * @param retryAfterSeconds delay before the next allowed attempt
+	 */
+	public TooManyRequestsException(String msg, String id, long retryAfterSeconds) {
+		super(msg, null, false, false);
+		this.id = id;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+}
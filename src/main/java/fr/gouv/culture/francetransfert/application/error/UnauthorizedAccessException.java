@@ -10,7 +10,7 @@ package fr.gouv.culture.francetransfert.application.error;
 import lombok.Getter;
 
 /**
- * Exception used in access treatment
+ * Exception used in access treatment, without stack trace
  *
  */
 @Getter
@@ -24,12 +24,12 @@ public class UnauthorizedAccessException extends RuntimeException {
 	 * @param msg
 	 */
 	public UnauthorizedAccessException(String msg) {
-		super(msg);
+		super(msg, null, false, false);
 		this.type = ErrorEnum.WRONG_PASSWORD.getValue();
 	}
 
 	public UnauthorizedAccessException(String msg, String type) {
-		super(msg);
+		super(msg, null, false, false);
 		this.type = type;
 	}
 }
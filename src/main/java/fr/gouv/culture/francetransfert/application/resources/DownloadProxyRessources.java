@@ -0,0 +1,107 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.application.resources;
+
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.ZipEntryRepresentation;
+import fr.gouv.culture.francetransfert.application.services.DownloadProxyServices;
+import fr.gouv.culture.francetransfert.application.services.PasswordThrottleServices;
+import fr.gouv.culture.francetransfert.application.services.ZipIndexServices;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+
+@CrossOrigin(exposedHeaders = { "Accept-Ranges", "Content-Range", "Content-Disposition", "ETag" })
+@RestController
+@RequestMapping("/api-private/download-module")
+@Tag(name = "Download resources")
+@ConditionalOnProperty(name = "download.proxy.enabled", havingValue = "true")
+public class DownloadProxyRessources {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DownloadProxyRessources.class);
+
+	@Autowired
+	private DownloadProxyServices downloadProxyServices;
+
+	@Autowired
+	private ZipIndexServices zipIndexServices;
+
+	@Autowired
+	private PasswordThrottleServices passwordThrottleServices;
+
+	@GetMapping("/download-proxy")
+	@Operation(method = "GET", description = "Download the enclosure through the API, Range and If-Range supported")
+	public void downloadProxy(HttpServletRequest request, HttpServletResponse response,
+			@RequestParam("enclosure") String enclosure, @RequestParam("recipient") String recipient,
+			@RequestParam(value = "token", required = false) String token,
+			@RequestParam(value = "senderToken", required = false) String senderToken,
+			@RequestHeader(value = "X-Download-Password", required = false) String password)
+			throws Exception {
+		LOGGER.info("start download proxy ");
+		passwordThrottleServices.<Void, Exception>attempt(enclosure, recipient, request.getRemoteAddr(), () -> {
+			downloadProxyServices.stream(downloadMeta(enclosure, recipient, token, senderToken, password), request,
+					response);
+			return null;
+		});
+	}
+
+	@GetMapping("/download-proxy-index")
+	@Operation(method = "GET", description = "Entries of the enclosure root files in the zipped enclosure")
+	public List<ZipEntryRepresentation> downloadProxyIndex(HttpServletRequest request,
+			@RequestParam("enclosure") String enclosure,
+			@RequestParam("recipient") String recipient,
+			@RequestParam(value = "token", required = false) String token,
+			@RequestParam(value = "senderToken", required = false) String senderToken,
+			@RequestHeader(value = "X-Download-Password", required = false) String password)
+			throws Exception {
+		LOGGER.info("start download proxy index ");
+		return passwordThrottleServices.attempt(enclosure, recipient, request.getRemoteAddr(),
+				() -> zipIndexServices.getRootFileEntries(downloadMeta(enclosure, recipient, token, senderToken, password)));
+	}
+
+	@GetMapping("/download-proxy-file")
+	@Operation(method = "GET", description = "Download a single file of the enclosure through the API")
+	public void downloadProxyFile(HttpServletRequest request, HttpServletResponse response, @RequestParam("enclosure") String enclosure,
+			@RequestParam("recipient") String recipient, @RequestParam("file") String file,
+			@RequestParam(value = "token", required = false) String token,
+			@RequestParam(value = "senderToken", required = false) String senderToken,
+			@RequestHeader(value = "X-Download-Password", required = false) String password)
+			throws Exception {
+		LOGGER.info("start download proxy file ");
+		passwordThrottleServices.<Void, Exception>attempt(enclosure, recipient, request.getRemoteAddr(), () -> {
+			zipIndexServices.streamEntry(downloadMeta(enclosure, recipient, token, senderToken, password), file,
+					response);
+			return null;
+		});
+	}
+
+	private static DownloadPasswordMetaData downloadMeta(String enclosure, String recipient, String token,
+			String senderToken, String password) {
+		DownloadPasswordMetaData downloadMeta = new DownloadPasswordMetaData();
+		downloadMeta.setEnclosure(enclosure);
+		downloadMeta.setRecipient(recipient);
+		downloadMeta.setToken(token);
+		downloadMeta.setSenderToken(senderToken);
+		downloadMeta.setPassword(password);
+		return downloadMeta;
+	}
+}
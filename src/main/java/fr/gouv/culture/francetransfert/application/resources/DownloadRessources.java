@@ -7,14 +7,23 @@
 
 package fr.gouv.culture.francetransfert.application.resources;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.CrossOrigin;
@@ -25,15 +34,23 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
 
 import fr.gouv.culture.francetransfert.application.error.UnauthorizedAccessException;
+import fr.gouv.culture.francetransfert.application.resources.model.BatchItemRepresentation;
 import fr.gouv.culture.francetransfert.application.resources.model.Download;
 import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadInfoBatchMetaData;
 import fr.gouv.culture.francetransfert.application.resources.model.DownloadRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureTokenMetaData;
 import fr.gouv.culture.francetransfert.application.resources.model.ValidatePasswordMetaData;
 import fr.gouv.culture.francetransfert.application.resources.model.ValidatePasswordRepresentation;
 import fr.gouv.culture.francetransfert.application.services.ConfirmationServices;
 import fr.gouv.culture.francetransfert.application.services.DownloadServices;
+import fr.gouv.culture.francetransfert.application.services.PasswordThrottleServices;
+import fr.gouv.culture.francetransfert.application.services.PublicInfoResponseServices;
 import fr.gouv.culture.francetransfert.application.services.RateServices;
 import fr.gouv.culture.francetransfert.core.exception.MetaloadException;
 import fr.gouv.culture.francetransfert.core.exception.StorageException;
@@ -48,6 +65,7 @@ import io.swagger.v3.oas.annotations.tags.Tag;
 @RequestMapping("/api-private/download-module")
 @Tag(name = "Download resources")
 @Validated
+@ConditionalOnProperty(name = "download.reactive.enabled", havingValue = "false", matchIfMissing = true)
 public class DownloadRessources {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(DownloadRessources.class);
@@ -61,32 +79,48 @@ public class DownloadRessources {
 	@Autowired
 	private ConfirmationServices confirmationServices;
 
+	@Autowired
+	private PasswordThrottleServices passwordThrottleServices;
+
+	@Autowired
+	private PublicInfoResponseServices publicInfoResponseServices;
+
+	@Value("${download.info.cache.maxAge.seconds:0}")
+	private long infoMaxAgeSeconds;
+
 	@PostMapping("/generate-download-url")
 	@Operation(method = "POST", description = "Generate download URL ")
-	public Download generateDownloadUrlWithPassword(@RequestBody DownloadPasswordMetaData downloadMeta)
-			throws ExpirationEnclosureException, UnsupportedEncodingException, MetaloadException, StorageException {
+	public Download generateDownloadUrlWithPassword(HttpServletRequest request,
+			@RequestBody DownloadPasswordMetaData downloadMeta) throws Exception {
 		LOGGER.info("start generate download URL ");
-		return downloadServices.generateDownloadUrlWithPassword(downloadMeta);
+		return passwordThrottleServices.attempt(downloadMeta.getEnclosure(), downloadMeta.getRecipient(),
+				request.getRemoteAddr(), () -> downloadServices.generateDownloadUrlWithPassword(downloadMeta));
 
 	}
 
 	@PostMapping("/generate-download-url-public")
 	@Operation(method = "POST", description = "Generate download public URL ")
-	public Download generateDownloadPublicUrlWithPassword(@RequestBody DownloadPasswordMetaData downloadMeta)
-			throws UnauthorizedAccessException, UnsupportedEncodingException, MetaloadException {
+	public Download generateDownloadPublicUrlWithPassword(HttpServletRequest request,
+			@RequestBody DownloadPasswordMetaData downloadMeta) throws Exception {
 		LOGGER.info("start generate download URL ");
-		downloadServices.validatePublic(downloadMeta.getEnclosure());
-		return downloadServices.generatePublicDownload(downloadMeta.getEnclosure(), downloadMeta.getPassword());
+		return passwordThrottleServices.attempt(downloadMeta.getEnclosure(), null, request.getRemoteAddr(), () -> {
+			downloadServices.validatePublic(downloadMeta.getEnclosure());
+			return downloadServices.generatePublicDownload(downloadMeta.getEnclosure(), downloadMeta.getPassword());
+		});
 	}
 
 	@PostMapping("/validate-password")
 	@Operation(method = "POST", description = "Validate password")
-	public ValidatePasswordRepresentation validatePassword(@RequestBody @Valid ValidatePasswordMetaData metaData)
-			throws Exception {
+	public ValidatePasswordRepresentation validatePassword(HttpServletRequest request,
+			@RequestBody @Valid ValidatePasswordMetaData metaData) throws Exception {
 		ValidatePasswordRepresentation representation = new ValidatePasswordRepresentation();
 		try {
-			String recipientId = downloadServices.getRecipientId(metaData.getEnclosureId(), metaData.getRecipientId());
-			downloadServices.validatePassword(metaData.getEnclosureId(), metaData.getPassword(), recipientId);
+			passwordThrottleServices.attempt(metaData.getEnclosureId(), metaData.getRecipientId(),
+					request.getRemoteAddr(), () -> {
+						downloadServices.validatePassword(metaData.getEnclosureId(), metaData.getPassword(),
+								metaData.getRecipientId());
+						return true;
+					});
 			representation.setValid(true);
 		} catch (Exception e) {
 			representation.setValid(false);
@@ -97,27 +131,38 @@ public class DownloadRessources {
 
 	@GetMapping("/download-info")
 	@Operation(method = "GET", description = "Download Info without URL ")
-	public DownloadRepresentation downloadinfo(HttpServletResponse response,
+	public DownloadRepresentation downloadinfo(HttpServletResponse response, WebRequest webRequest,
 			@RequestParam("enclosure") String enclosure, @RequestParam("recipient") String recipient,
 			@RequestParam("token") String token)
 			throws UnsupportedEncodingException, ExpirationEnclosureException, MetaloadException, StorageException {
 		LOGGER.info("start donlowad info ");
-		DownloadRepresentation downloadRepresentation = downloadServices.getDownloadInfo(enclosure, token, recipient);
-		response.setStatus(HttpStatus.OK.value());
-		return downloadRepresentation;
+		DownloadRepresentation downloadRepresentation = downloadServices.getDownloadInfo(enclosure, token, recipient,
+				webRequest::checkNotModified);
+		return infoResponse(response, downloadRepresentation);
 	}
 
 	@GetMapping("/download-info-connect")
 	@Operation(method = "GET", description = "Download Info without URL ")
-	public DownloadRepresentation downloadinfoConnect(HttpServletResponse response,
+	public DownloadRepresentation downloadinfoConnect(HttpServletResponse response, WebRequest webRequest,
 			@RequestParam("enclosure") String enclosure, @RequestParam("token") String token,
 			@RequestParam("recipient") String recipient)
 			throws UnsupportedEncodingException, ExpirationEnclosureException, MetaloadException, StorageException {
 		confirmationServices.validateToken(recipient.toLowerCase(), token);
 		LOGGER.info("start donwlowad info connect for recipient: {} and enclosure: {}", recipient, enclosure);
-		DownloadRepresentation downloadRepresentation = downloadServices.getDownloadInfoConnect(enclosure, recipient);
-		response.setStatus(HttpStatus.OK.value());
-		return downloadRepresentation;
+		DownloadRepresentation downloadRepresentation = downloadServices.getDownloadInfoConnect(enclosure, recipient,
+				webRequest::checkNotModified);
+		return infoResponse(response, downloadRepresentation);
+	}
+
+	@PostMapping("/download-info-connect-batch")
+	@Operation(method = "POST", description = "Download Info without URL of several enclosures")
+	public List<BatchItemRepresentation<DownloadRepresentation>> downloadinfoConnectBatch(
+			@RequestBody @Valid DownloadInfoBatchMetaData metaData)
+			throws UnsupportedEncodingException, MetaloadException {
+		confirmationServices.validateToken(metaData.getRecipient().toLowerCase(), metaData.getToken());
+		LOGGER.info("start donwlowad info connect for recipient: {} and {} enclosures", metaData.getRecipient(),
+				metaData.getEnclosures().size());
+		return downloadServices.getDownloadInfoConnect(metaData.getEnclosures(), metaData.getRecipient());
 	}
 
 	@RequestMapping(value = "/satisfaction", method = RequestMethod.POST)
@@ -135,15 +180,41 @@ public class DownloadRessources {
 		return downloadServices.getNumberOfDownloadPublic(enclosure);
 	}
 
+	@PostMapping("/download-count-public-batch")
+	@Operation(method = "POST", description = "Public download count of several enclosures")
+	public List<BatchItemRepresentation<String>> getDownloadCountBatch(
+			@RequestBody @NotEmpty List<@Valid EnclosureTokenMetaData> enclosures) {
+		return downloadServices.getNumberOfDownloadPublic(enclosures);
+	}
+
 	@GetMapping("/download-info-public")
-	public DownloadRepresentation downloadInfoPublic(HttpServletResponse response,
+	public void downloadInfoPublic(HttpServletResponse response, ServletWebRequest webRequest,
 			@RequestParam("enclosure") String enclosure)
-			throws UnauthorizedAccessException, ExpirationEnclosureException, MetaloadException {
+			throws UnauthorizedAccessException, ExpirationEnclosureException, IOException {
 		LOGGER.info("start download info public ");
 		downloadServices.validatePublic(enclosure);
-		DownloadRepresentation downloadRepresentation = downloadServices.getDownloadInfoPublic(enclosure);
-		response.setStatus(HttpStatus.OK.value());
+		EnclosureMetadata metadata = downloadServices.validateDownloadInfoPublic(enclosure);
+		setInfoCacheControl(response);
+		publicInfoResponseServices.write(metadata, webRequest);
+	}
+
+	/**
+	 * The ETag and the 304 status are set by the not modified check, a null
+	 * representation is answered without body
+	 */
+	private DownloadRepresentation infoResponse(HttpServletResponse response,
+			DownloadRepresentation downloadRepresentation) {
+		setInfoCacheControl(response);
+		if (downloadRepresentation != null) {
+			response.setStatus(HttpStatus.OK.value());
+		}
 		return downloadRepresentation;
 	}
 
+	private void setInfoCacheControl(HttpServletResponse response) {
+		// private, the client revalidates with the ETag once max-age is over
+		response.setHeader(HttpHeaders.CACHE_CONTROL,
+				CacheControl.maxAge(infoMaxAgeSeconds, TimeUnit.SECONDS).cachePrivate().getHeaderValue());
+	}
+
 }
@@ -0,0 +1,73 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.resources;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.WebRequest;
+
+/**
+ * If-None-Match check of the asynchronous endpoints. The header is read on the
+ * request thread, the check itself only compares tags and may run on any
+ * thread : the response is left to MVC, built from the tag last checked.
+ */
+public class NotModifiedCheck implements Predicate<String> {
+
+	private static final String WEAK_PREFIX = "W/";
+
+	private final List<String> ifNoneMatch;
+
+	private volatile String tag;
+
+	public NotModifiedCheck(WebRequest webRequest) {
+		String[] values = webRequest.getHeaderValues(HttpHeaders.IF_NONE_MATCH);
+		HttpHeaders headers = new HttpHeaders();
+		headers.put(HttpHeaders.IF_NONE_MATCH, values != null ? Arrays.asList(values) : Collections.emptyList());
+		ifNoneMatch = headers.getIfNoneMatch();
+	}
+
+	/**
+	 * @param representationTag unquoted ETag of the representation
+	 * @return true if the client copy is up to date
+	 */
+	@Override
+	public boolean test(String representationTag) {
+		tag = representationTag;
+		for (String clientTag : ifNoneMatch) {
+			if ("*".equals(clientTag) || unquote(clientTag).equals(representationTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param notModified
+	 * @return 304 or 200 response, with the ETag checked
+	 */
+	public ResponseEntity.BodyBuilder status(boolean notModified) {
+		ResponseEntity.BodyBuilder builder = ResponseEntity
+				.status(notModified ? HttpStatus.NOT_MODIFIED : HttpStatus.OK);
+		String checkedTag = tag;
+		return checkedTag != null ? builder.eTag(checkedTag) : builder;
+	}
+
+	private static String unquote(String clientTag) {
+		String value = clientTag.startsWith(WEAK_PREFIX) ? clientTag.substring(WEAK_PREFIX.length()) : clientTag;
+		if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+			return value.substring(1, value.length() - 1);
+		}
+		return value;
+	}
+}
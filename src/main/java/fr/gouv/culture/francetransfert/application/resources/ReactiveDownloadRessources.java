@@ -0,0 +1,213 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.resources;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.validation.Valid;
+import javax.validation.constraints.NotEmpty;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.validation.annotation.Validated;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+
+import fr.gouv.culture.francetransfert.application.resources.model.BatchItemRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.Download;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadInfoBatchMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureTokenMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.ValidatePasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.ValidatePasswordRepresentation;
+import fr.gouv.culture.francetransfert.application.services.ConfirmationServices;
+import fr.gouv.culture.francetransfert.application.services.DownloadServices;
+import fr.gouv.culture.francetransfert.application.services.PasswordThrottleServices;
+import fr.gouv.culture.francetransfert.application.services.PublicInfoResponseServices;
+import fr.gouv.culture.francetransfert.application.services.RateServices;
+import fr.gouv.culture.francetransfert.application.services.ReactiveDownloadServices;
+import fr.gouv.culture.francetransfert.core.model.RateRepresentation;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import reactor.core.publisher.Mono;
+
+/**
+ * Same endpoints and contracts as {@link DownloadRessources}, served as
+ * asynchronous requests when download.reactive.enabled is set.
+ */
+@CrossOrigin
+@RestController
+@RequestMapping("/api-private/download-module")
+@Tag(name = "Download resources")
+@Validated
+@ConditionalOnProperty(name = "download.reactive.enabled", havingValue = "true")
+public class ReactiveDownloadRessources {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveDownloadRessources.class);
+
+	@Autowired
+	private ReactiveDownloadServices reactiveDownloadServices;
+
+	@Autowired
+	private DownloadServices downloadServices;
+
+	@Autowired
+	private RateServices rateServices;
+
+	@Autowired
+	private ConfirmationServices confirmationServices;
+
+	@Autowired
+	private PasswordThrottleServices passwordThrottleServices;
+
+	@Autowired
+	private PublicInfoResponseServices publicInfoResponseServices;
+
+	@Value("${download.info.cache.maxAge.seconds:0}")
+	private long infoMaxAgeSeconds;
+
+	@PostMapping("/generate-download-url")
+	@Operation(method = "POST", description = "Generate download URL ")
+	public Mono<Download> generateDownloadUrlWithPassword(HttpServletRequest request,
+			@RequestBody DownloadPasswordMetaData downloadMeta) {
+		LOGGER.info("start generate download URL ");
+		return passwordThrottleServices.reactiveAttempt(downloadMeta.getEnclosure(), downloadMeta.getRecipient(),
+				request.getRemoteAddr(), () -> reactiveDownloadServices.generateDownloadUrlWithPassword(downloadMeta));
+	}
+
+	@PostMapping("/generate-download-url-public")
+	@Operation(method = "POST", description = "Generate download public URL ")
+	public Mono<Download> generateDownloadPublicUrlWithPassword(HttpServletRequest request,
+			@RequestBody DownloadPasswordMetaData downloadMeta) {
+		LOGGER.info("start generate download URL ");
+		return passwordThrottleServices.reactiveAttempt(downloadMeta.getEnclosure(), null, request.getRemoteAddr(),
+				() -> reactiveDownloadServices.generatePublicDownload(downloadMeta.getEnclosure(),
+						downloadMeta.getPassword()));
+	}
+
+	@PostMapping("/validate-password")
+	@Operation(method = "POST", description = "Validate password")
+	public Mono<ValidatePasswordRepresentation> validatePassword(HttpServletRequest request,
+			@RequestBody @Valid ValidatePasswordMetaData metaData) {
+		return passwordThrottleServices
+				.reactiveAttempt(metaData.getEnclosureId(), metaData.getRecipientId(), request.getRemoteAddr(),
+						() -> reactiveDownloadServices.validatePassword(metaData.getEnclosureId(),
+								metaData.getPassword(), metaData.getRecipientId()))
+				.map(valid -> {
+					ValidatePasswordRepresentation representation = new ValidatePasswordRepresentation();
+					representation.setValid(valid);
+					return representation;
+				});
+	}
+
+	@GetMapping("/download-info")
+	@Operation(method = "GET", description = "Download Info without URL ")
+	public Mono<ResponseEntity<DownloadRepresentation>> downloadinfo(WebRequest webRequest,
+			@RequestParam("enclosure") String enclosure, @RequestParam("recipient") String recipient,
+			@RequestParam("token") String token) {
+		LOGGER.info("start donlowad info ");
+		NotModifiedCheck notModified = new NotModifiedCheck(webRequest);
+		return infoResponse(reactiveDownloadServices.getDownloadInfo(enclosure, token, recipient, notModified),
+				notModified);
+	}
+
+	@GetMapping("/download-info-connect")
+	@Operation(method = "GET", description = "Download Info without URL ")
+	public Mono<ResponseEntity<DownloadRepresentation>> downloadinfoConnect(WebRequest webRequest,
+			@RequestParam("enclosure") String enclosure, @RequestParam("token") String token,
+			@RequestParam("recipient") String recipient) {
+		LOGGER.info("start donwlowad info connect for recipient: {} and enclosure: {}", recipient, enclosure);
+		NotModifiedCheck notModified = new NotModifiedCheck(webRequest);
+		return infoResponse(reactiveDownloadServices.blocking(() -> {
+			confirmationServices.validateToken(recipient.toLowerCase(), token);
+			return recipient;
+		}).flatMap(validRecipient -> reactiveDownloadServices.getDownloadInfoConnect(enclosure, validRecipient,
+				notModified)), notModified);
+	}
+
+	@PostMapping("/download-info-connect-batch")
+	@Operation(method = "POST", description = "Download Info without URL of several enclosures")
+	public Mono<List<BatchItemRepresentation<DownloadRepresentation>>> downloadinfoConnectBatch(
+			@RequestBody @Valid DownloadInfoBatchMetaData metaData) {
+		LOGGER.info("start donwlowad info connect for recipient: {} and {} enclosures", metaData.getRecipient(),
+				metaData.getEnclosures().size());
+		return reactiveDownloadServices.blocking(() -> {
+			confirmationServices.validateToken(metaData.getRecipient().toLowerCase(), metaData.getToken());
+			return downloadServices.getDownloadInfoConnect(metaData.getEnclosures(), metaData.getRecipient());
+		});
+	}
+
+	@RequestMapping(value = "/satisfaction", method = RequestMethod.POST)
+	@Operation(method = "POST", description = "Rates the app on a scvale of 1 to 4")
+	public Mono<Boolean> createSatisfactionFT(@Valid @RequestBody RateRepresentation rateRepresentation) {
+		LOGGER.info("start Satisfaction ");
+		return reactiveDownloadServices.blocking(() -> rateServices.createSatisfactionFT(rateRepresentation));
+	}
+
+	@GetMapping("/download-count-public")
+	public Mono<String> getDownloadCount(@RequestParam("enclosure") String enclosure,
+			@RequestParam("token") String token) {
+		return reactiveDownloadServices.blocking(() -> {
+			downloadServices.validateToken(enclosure, token);
+			return downloadServices.getNumberOfDownloadPublic(enclosure);
+		});
+	}
+
+	@PostMapping("/download-count-public-batch")
+	@Operation(method = "POST", description = "Public download count of several enclosures")
+	public Mono<List<BatchItemRepresentation<String>>> getDownloadCountBatch(
+			@RequestBody @NotEmpty List<@Valid EnclosureTokenMetaData> enclosures) {
+		return reactiveDownloadServices.blocking(() -> downloadServices.getNumberOfDownloadPublic(enclosures));
+	}
+
+	@GetMapping("/download-info-public")
+	public Mono<ResponseEntity<byte[]>> downloadInfoPublic(WebRequest webRequest,
+			@RequestParam("enclosure") String enclosure) {
+		LOGGER.info("start download info public ");
+		NotModifiedCheck notModified = new NotModifiedCheck(webRequest);
+		String acceptEncoding = webRequest.getHeader(HttpHeaders.ACCEPT_ENCODING);
+		return reactiveDownloadServices.validateDownloadInfoPublic(enclosure)
+				.flatMap(metadata -> reactiveDownloadServices
+						.blocking(() -> publicInfoResponseServices.response(metadata, notModified, acceptEncoding)))
+				.map(response -> ResponseEntity.status(response.getStatusCode()).headers(response.getHeaders())
+						.cacheControl(infoCacheControl()).body(response.getBody()));
+	}
+
+	/**
+	 * Nothing is written from the scheduler threads : the representation, or an
+	 * empty one when the client copy is up to date, is turned into a 200 or 304
+	 * response written by MVC
+	 */
+	private <T> Mono<ResponseEntity<T>> infoResponse(Mono<T> representation, NotModifiedCheck notModified) {
+		return representation
+				.map(body -> notModified.status(false).cacheControl(infoCacheControl()).body(body))
+				.switchIfEmpty(Mono.fromSupplier(
+						() -> notModified.status(true).cacheControl(infoCacheControl()).<T>build()));
+	}
+
+	private CacheControl infoCacheControl() {
+		return CacheControl.maxAge(infoMaxAgeSeconds, TimeUnit.SECONDS).cachePrivate();
+	}
+
+}
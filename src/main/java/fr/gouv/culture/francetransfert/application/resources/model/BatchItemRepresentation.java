@@ -0,0 +1,28 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.application.resources.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Result of one enclosure of a batch request, error holding the error type of
+ * the single enclosure endpoint when it failed
+ */
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class BatchItemRepresentation<T> {
+	private String enclosureId;
+	private T result;
+	private String error;
+}
@@ -0,0 +1,30 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.application.resources.model;
+
+import java.util.List;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotEmpty;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+public class DownloadInfoBatchMetaData {
+	@NotBlank(message = "Recipient obligatoire")
+	private String recipient;
+	@NotBlank(message = "Token obligatoire")
+	private String token;
+	@NotEmpty(message = "Enclosures obligatoires")
+	private List<String> enclosures;
+}
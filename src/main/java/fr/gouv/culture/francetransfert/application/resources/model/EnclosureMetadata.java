@@ -0,0 +1,40 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.resources.model;
+
+import java.time.LocalDate;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Enclosure level data read by the download info endpoints. It holds no
+ * recipient data and no password, only the information that a password is
+ * set. The version is a digest of the other fields, used as validator of the
+ * download info representations.
+ */
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class EnclosureMetadata {
+	private String enclosureId;
+	private LocalDate expirationDate;
+	private String senderMail;
+	private String message;
+	private boolean withPassword;
+	private boolean publicLink;
+	private String bucketName;
+	private String hashFile;
+	private EnclosureListing listing;
+	private String version;
+}
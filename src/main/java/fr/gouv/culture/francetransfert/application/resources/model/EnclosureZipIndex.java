@@ -0,0 +1,46 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.application.resources.model;
+
+import java.util.Arrays;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Entries of the zipped enclosure read from its central directory, one array
+ * slot per entry in name order
+ */
+@Getter
+@AllArgsConstructor
+public class EnclosureZipIndex {
+
+	private String[] names;
+
+	private long[] localHeaderOffsets;
+
+	/** last byte of the entry record : local header, data and data descriptor */
+	private long[] recordEnds;
+
+	private long[] compressedSizes;
+
+	private long[] sizes;
+
+	private int[] methods;
+
+	/**
+	 * @param name entry name
+	 * @return entry slot, negative if the zip has no such entry
+	 */
+	public int indexOf(String name) {
+		return Arrays.binarySearch(names, name);
+	}
+
+	public int size() {
+		return names.length;
+	}
+}
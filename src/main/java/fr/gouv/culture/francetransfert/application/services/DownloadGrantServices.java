@@ -0,0 +1,153 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import fr.gouv.culture.francetransfert.core.enums.RecipientKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RedisQueueEnum;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Grants a private download in a single round trip : the download limit check,
+ * the counter increment, the download date and the DOWNLOAD_QUEUE notification
+ * are done atomically by a Lua script, so that concurrent clicks cannot exceed
+ * the limit.
+ * <p>
+ * The notifications of a recipient are coalesced : one per window, guarded in
+ * Redis by a key set with NX and the window as expiry, so that retries on any
+ * node do not queue another "download in progress" mail. Each node also
+ * remembers the recipients it has notified and then skips the guard.
+ */
+@Service
+public class DownloadGrantServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DownloadGrantServices.class);
+
+	private static final String GRANT_SCRIPT = "scripts/grant-download.lua";
+
+	private static final String PROGRESS_GUARD_PREFIX = "download-progress:";
+
+	private static final String ALREADY_NOTIFIED = "-1";
+
+	@Value("${download.progress.window.seconds:600}")
+	private long progressWindowSeconds;
+
+	@Value("${download.progress.local.maxSize:100000}")
+	private long progressLocalMaxSize;
+
+	@Autowired
+	private Pool<Jedis> metaloadPool;
+
+	private Cache<String, Boolean> notifiedRecipients;
+
+	private String grantScript;
+
+	private volatile String grantScriptSha;
+
+	@PostConstruct
+	public void init() throws IOException {
+		try (InputStream script = new ClassPathResource(GRANT_SCRIPT).getInputStream()) {
+			grantScript = StreamUtils.copyToString(script, StandardCharsets.UTF_8);
+		}
+		notifiedRecipients = Caffeine.newBuilder().maximumSize(progressLocalMaxSize)
+				.expireAfterWrite(Math.max(0, progressWindowSeconds), TimeUnit.SECONDS).build();
+	}
+
+	/**
+	 * Grant a download to the recipient
+	 *
+	 * @param enclosureId
+	 * @param recipientId
+	 * @param maxDownload number max of download per recipient
+	 * @return false if the recipient already reached the download limit
+	 */
+	public boolean grantDownload(String enclosureId, String recipientId, int maxDownload) {
+		long count = (Long) eval(grantKeys(enclosureId, recipientId),
+				grantArgs(enclosureId, recipientId, maxDownload));
+		LOGGER.debug("download grant for enclosure {}, recipient {} : {}", enclosureId, recipientId, count);
+		return granted(enclosureId, recipientId, count);
+	}
+
+	String getGrantScript() {
+		return grantScript;
+	}
+
+	List<String> grantKeys(String enclosureId, String recipientId) {
+		return Arrays.asList(RedisKeysEnum.FT_RECIPIENT.getKey(recipientId),
+				RedisKeysEnum.FT_Download_Date.getKey(recipientId), RedisQueueEnum.DOWNLOAD_QUEUE.getValue(),
+				PROGRESS_GUARD_PREFIX + progressValue(enclosureId, recipientId));
+	}
+
+	List<String> grantArgs(String enclosureId, String recipientId, int maxDownload) {
+		String progressValue = progressValue(enclosureId, recipientId);
+		String window = String.valueOf(TimeUnit.SECONDS.toMillis(Math.max(0, progressWindowSeconds)));
+		if (progressWindowSeconds > 0 && notifiedRecipients.getIfPresent(progressValue) != null) {
+			window = ALREADY_NOTIFIED;
+		}
+		return Arrays.asList(RecipientKeysEnum.NB_DL.getKey(), String.valueOf(maxDownload),
+				LocalDateTime.now().toString(), progressValue, window);
+	}
+
+	/**
+	 * Remember the notification of a granted download, the window starting at
+	 * the first grant
+	 *
+	 * @return true if the download is granted
+	 */
+	boolean granted(String enclosureId, String recipientId, long count) {
+		if (count < 0) {
+			return false;
+		}
+		if (progressWindowSeconds > 0) {
+			notifiedRecipients.asMap().putIfAbsent(progressValue(enclosureId, recipientId), Boolean.TRUE);
+		}
+		return true;
+	}
+
+	private static String progressValue(String enclosureId, String recipientId) {
+		return enclosureId + ":" + recipientId;
+	}
+
+	private Object eval(List<String> keys, List<String> args) {
+		try (Jedis jedis = metaloadPool.getResource()) {
+			if (grantScriptSha != null) {
+				try {
+					return jedis.evalsha(grantScriptSha, keys, args);
+				} catch (JedisNoScriptException e) {
+					// script cache flushed, or failover to a replica without the script
+					LOGGER.info("Grant script not loaded on metaload, reloading it");
+				}
+			}
+			grantScriptSha = jedis.scriptLoad(grantScript);
+			return jedis.evalsha(grantScriptSha, keys, args);
+		}
+	}
+}
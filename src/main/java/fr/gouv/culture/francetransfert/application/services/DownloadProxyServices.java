@@ -0,0 +1,481 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import com.amazonaws.AmazonServiceException;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.error.StorageUnavailableException;
+import fr.gouv.culture.francetransfert.application.resources.model.Download;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.core.exception.MetaloadException;
+import fr.gouv.culture.francetransfert.core.exception.StorageException;
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import fr.gouv.culture.francetransfert.domain.exceptions.ExpirationEnclosureException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Streams the zipped enclosure through the API for recipients who cannot reach
+ * the object storage. The object is read from its presigned URL and copied with
+ * a bounded pool of fixed-size buffers, a slow client blocking the copy and so
+ * the reads from the storage. A single byte range is forwarded to the storage
+ * when the If-Range validator, if any, is the current ETag of the enclosure.
+ * <p>
+ * The storage requests go through the storage bulkhead and circuit breaker
+ * until their response headers arrive, then each read of the body has its own
+ * deadline so that a stalled storage does not hold the request thread.
+ * <p>
+ * Each request is validated as a download url request and counted, unless it
+ * resumes with a range starting after the first byte and the current ETag as
+ * If-Range, or extracts a single entry, while the recipient has a download
+ * counted within download.proxy.resume.minutes. The counted downloads are
+ * remembered in Redis, so that every node sees them, and only a counted
+ * download starts the window.
+ */
+@Service
+@ConditionalOnProperty(name = "download.proxy.enabled", havingValue = "true")
+public class DownloadProxyServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DownloadProxyServices.class);
+
+	private static final Pattern SINGLE_RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+	private static final String ZIP_CONTENT_TYPE = "application/zip";
+
+	private static final String COUNTED_DOWNLOAD_PREFIX = "download-proxy-counted:";
+
+	@Value("${download.proxy.buffer.size:65536}")
+	private int bufferSize;
+
+	@Value("${download.proxy.buffers:256}")
+	private int maxBuffers;
+
+	@Value("${download.proxy.buffer.wait.millis:1000}")
+	private long bufferWaitMillis;
+
+	@Value("${download.proxy.connect.timeout.seconds:5}")
+	private long connectTimeoutSeconds;
+
+	@Value("${download.proxy.request.timeout.seconds:5}")
+	private long requestTimeoutSeconds;
+
+	@Value("${download.proxy.read.timeout.seconds:30}")
+	private long readTimeoutSeconds;
+
+	@Value("${download.proxy.resume.minutes:60}")
+	private long resumeMinutes;
+
+	@Autowired
+	private DownloadServices downloadServices;
+
+	@Autowired
+	private EnclosureCacheServices enclosureCacheServices;
+
+	@Autowired
+	private StorageManager storageManager;
+
+	@Autowired
+	private StorageResilienceServices storageResilienceServices;
+
+	@Autowired
+	private Pool<Jedis> metaloadPool;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private HttpClient httpClient;
+
+	private BlockingQueue<ByteBuffer> buffers;
+
+	private Semaphore bufferPermits;
+
+	private Set<ReadDeadlineInputStream> reads;
+
+	private ScheduledExecutorService readWatchdog;
+
+	private Counter streamedBytes;
+
+	private Counter busyRejections;
+
+	private Counter readTimeouts;
+
+	@PostConstruct
+	public void init() {
+		httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(connectTimeoutSeconds))
+				.followRedirects(HttpClient.Redirect.NORMAL).build();
+		buffers = new ArrayBlockingQueue<>(maxBuffers);
+		bufferPermits = new Semaphore(maxBuffers);
+		reads = ConcurrentHashMap.newKeySet();
+		readWatchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "download-proxy-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		readWatchdog.scheduleWithFixedDelay(this::closeStalledReads, 1, 1, TimeUnit.SECONDS);
+		streamedBytes = Counter.builder("ft.download.proxy.bytes").description("Bytes streamed by the download proxy")
+				.baseUnit("bytes").register(meterRegistry);
+		busyRejections = Counter.builder("ft.download.proxy.rejected")
+				.description("Proxy downloads refused for want of a buffer").register(meterRegistry);
+		readTimeouts = Counter.builder("ft.download.proxy.read.timeouts")
+				.description("Storage reads abandoned by the download proxy").register(meterRegistry);
+		Gauge.builder("ft.download.proxy.buffers.available", bufferPermits, Semaphore::availablePermits)
+				.description("Download proxy buffers that can still be leased").register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		readWatchdog.shutdownNow();
+	}
+
+	/**
+	 * Validate the download and stream the zipped enclosure, or the requested
+	 * range of it, to the response
+	 *
+	 * @param downloadMeta
+	 * @param request      holding the Range and If-Range headers
+	 * @param response
+	 */
+	public void stream(DownloadPasswordMetaData downloadMeta, HttpServletRequest request,
+			HttpServletResponse response) throws ExpirationEnclosureException, UnsupportedEncodingException,
+			MetaloadException, StorageException {
+		String enclosureId = downloadMeta.getEnclosure();
+		String range = singleRange(request.getHeader(HttpHeaders.RANGE));
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		boolean currentValidator = range != null && ifRange != null && ifRange.equals(currentEtag(enclosureId));
+		if (range != null && ifRange != null && !currentValidator) {
+			// the client holds another version, or a date validator : whole enclosure
+			range = null;
+		}
+		Download download = authorize(downloadMeta, currentValidator && isResume(range));
+
+		ByteBuffer buffer = acquire(enclosureId);
+		try {
+			HttpRequest.Builder upstreamRequest = HttpRequest.newBuilder(URI.create(download.getDownloadURL()));
+			if (range != null) {
+				upstreamRequest.header(HttpHeaders.RANGE, range);
+			}
+			stream(enclosureId, send(enclosureId, upstreamRequest), response, buffer);
+		} finally {
+			release(buffer);
+		}
+	}
+
+	private void stream(String enclosureId, HttpResponse<InputStream> upstream, HttpServletResponse response,
+			ByteBuffer buffer) throws StorageException {
+		try (InputStream body = readDeadline(upstream.body())) {
+			int status = upstream.statusCode();
+			if (status == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+				response.setStatus(status);
+				copyHeader(upstream, response, HttpHeaders.CONTENT_RANGE);
+				return;
+			}
+			if (status != HttpStatus.OK.value() && status != HttpStatus.PARTIAL_CONTENT.value()) {
+				LOGGER.error("msgtype: PROXY_ERROR || enclosure: {} || storage status: {}", enclosureId, status);
+				throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId);
+			}
+			String zippedEnclosureName = storageResilienceServices.call("getZippedEnclosureName",
+					() -> storageManager.getZippedEnclosureName(enclosureId));
+			String fileName = StringUtils.substringAfterLast("/" + zippedEnclosureName, "/");
+			response.setStatus(status);
+			response.setContentType(ZIP_CONTENT_TYPE);
+			response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+			response.setHeader(HttpHeaders.CACHE_CONTROL, "private, no-store");
+			response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+					ContentDisposition.attachment().filename(fileName).build().toString());
+			copyHeader(upstream, response, HttpHeaders.CONTENT_LENGTH);
+			copyHeader(upstream, response, HttpHeaders.CONTENT_RANGE);
+			copyHeader(upstream, response, HttpHeaders.ETAG);
+			copyHeader(upstream, response, HttpHeaders.LAST_MODIFIED);
+			streamedBytes.increment(transfer(body, response.getOutputStream(), buffer));
+		} catch (IOException e) {
+			if (!response.isCommitted()) {
+				throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
+			}
+			// client gone or storage stream broken, the client resumes with a range
+			LOGGER.warn("Download of enclosure {} interrupted : {}", enclosureId, e.getMessage());
+		}
+	}
+
+	/**
+	 * Validate a download, counting it unless it is a partial one and a download
+	 * of the same enclosure by the same recipient has been counted recently. A
+	 * partial download does not extend the window.
+	 *
+	 * @param downloadMeta
+	 * @param partial      resumed download or single entry of the enclosure
+	 * @return presigned URL of the zipped enclosure
+	 */
+	Download authorize(DownloadPasswordMetaData downloadMeta, boolean partial) throws ExpirationEnclosureException,
+			UnsupportedEncodingException, MetaloadException, StorageException {
+		String enclosureId = downloadMeta.getEnclosure();
+		return downloadServices.generateDownloadUrlWithPassword(downloadMeta, recipientId -> {
+			String countedKey = COUNTED_DOWNLOAD_PREFIX + enclosureId + ":" + recipientId;
+			try (Jedis jedis = metaloadPool.getResource()) {
+				if (partial && jedis.exists(countedKey)) {
+					return true;
+				}
+				// the window starts at the first counted download
+				jedis.set(countedKey, "1", SetParams.setParams().nx().ex(TimeUnit.MINUTES.toSeconds(resumeMinutes)));
+				return false;
+			}
+		});
+	}
+
+	/**
+	 * Copy a stream with a leased buffer, each write blocking until the client
+	 * accepts it
+	 *
+	 * @return copied bytes
+	 */
+	long transfer(InputStream in, OutputStream out, ByteBuffer buffer) throws IOException {
+		long transferred = 0;
+		ReadableByteChannel source = Channels.newChannel(in);
+		WritableByteChannel sink = Channels.newChannel(out);
+		buffer.clear();
+		while (source.read(buffer) != -1) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				transferred += sink.write(buffer);
+			}
+			buffer.clear();
+		}
+		return transferred;
+	}
+
+	/**
+	 * Send a GET to the storage within the storage bulkhead and circuit breaker,
+	 * the call ending once the response headers arrive. A 5xx answer is a storage
+	 * failure.
+	 *
+	 * @param enclosureId
+	 * @param upstreamRequest presigned URL and headers of the request
+	 * @return response, whose body is to be closed by the caller
+	 * @throws StorageUnavailableException call refused or abandoned
+	 */
+	HttpResponse<InputStream> send(String enclosureId, HttpRequest.Builder upstreamRequest) throws StorageException {
+		HttpRequest request = upstreamRequest.timeout(Duration.ofSeconds(requestTimeoutSeconds)).GET().build();
+		try {
+			return storageResilienceServices.call("proxyGet", () -> {
+				HttpResponse<InputStream> response = sendUpstream(request);
+				if (Thread.currentThread().isInterrupted()) {
+					// abandoned by the caller, nobody will close the body
+					closeQuietly(response.body());
+					throw new UncheckedIOException(new InterruptedIOException("Storage request abandoned"));
+				}
+				if (response.statusCode() >= 500) {
+					closeQuietly(response.body());
+					AmazonServiceException error = new AmazonServiceException(
+							"Storage answered " + response.statusCode());
+					error.setStatusCode(response.statusCode());
+					throw error;
+				}
+				return response;
+			});
+		} catch (AmazonServiceException | UncheckedIOException e) {
+			LOGGER.error("msgtype: PROXY_ERROR || enclosure: {} || storage error: {}", enclosureId, e.getMessage());
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
+		}
+	}
+
+	private HttpResponse<InputStream> sendUpstream(HttpRequest request) {
+		try {
+			return httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException("Storage request abandoned"));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Wrap a storage response body so that each read fails once it waited more
+	 * than download.proxy.read.timeout.seconds
+	 */
+	InputStream readDeadline(InputStream body) {
+		ReadDeadlineInputStream read = new ReadDeadlineInputStream(body);
+		reads.add(read);
+		return read;
+	}
+
+	/**
+	 * Lease a buffer, waiting at most download.proxy.buffer.wait.millis for one
+	 *
+	 * @throws StorageUnavailableException every buffer is in use
+	 */
+	ByteBuffer acquire(String enclosureId) {
+		try {
+			if (!bufferPermits.tryAcquire(bufferWaitMillis, TimeUnit.MILLISECONDS)) {
+				busyRejections.increment();
+				LOGGER.warn("No download proxy buffer left for enclosure {}", enclosureId);
+				throw new StorageUnavailableException(ErrorEnum.STORAGE_UNAVAILABLE.getValue() + " : proxy-busy", 1);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageUnavailableException(ErrorEnum.STORAGE_UNAVAILABLE.getValue() + " : interrupted", 1);
+		}
+		ByteBuffer buffer = buffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+	}
+
+	void release(ByteBuffer buffer) {
+		buffer.clear();
+		buffers.offer(buffer);
+		bufferPermits.release();
+	}
+
+	private void closeStalledReads() {
+		long now = System.nanoTime();
+		for (ReadDeadlineInputStream read : reads) {
+			if (read.isStalled(now)) {
+				readTimeouts.increment();
+				LOGGER.warn("Storage read stalled for {}s, closing it", readTimeoutSeconds);
+				closeQuietly(read);
+			}
+		}
+	}
+
+	private String currentEtag(String enclosureId) {
+		String hashFile = enclosureCacheServices.getEnclosureMetadata(enclosureId).getHashFile();
+		return StringUtils.isBlank(hashFile) ? null : "\"" + StringUtils.strip(hashFile, "\"") + "\"";
+	}
+
+	private static void copyHeader(HttpResponse<?> upstream, HttpServletResponse response, String name) {
+		upstream.headers().firstValue(name).ifPresent(value -> response.setHeader(name, value));
+	}
+
+	static void closeQuietly(InputStream body) {
+		try {
+			body.close();
+		} catch (IOException e) {
+			LOGGER.debug("Cannot close storage response : {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the header if it is a single, well formed byte range, other ranges
+	 *         being ignored
+	 */
+	static String singleRange(String header) {
+		if (header == null) {
+			return null;
+		}
+		Matcher matcher = SINGLE_RANGE.matcher(header.trim());
+		if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+			return null;
+		}
+		return header.trim();
+	}
+
+	/**
+	 * @return true for a range starting after the first byte, a suffix range
+	 *         being able to cover the whole enclosure
+	 */
+	private static boolean isResume(String range) {
+		Matcher matcher = SINGLE_RANGE.matcher(range);
+		return matcher.matches() && !matcher.group(1).isEmpty() && !StringUtils.containsOnly(matcher.group(1), '0');
+	}
+
+	/**
+	 * Storage response body whose pending read is closed by the watchdog past
+	 * its deadline, which unblocks the reading thread
+	 */
+	private class ReadDeadlineInputStream extends FilterInputStream {
+
+		private volatile long readStart;
+
+		private volatile boolean reading;
+
+		ReadDeadlineInputStream(InputStream body) {
+			super(body);
+		}
+
+		@Override
+		public int read() throws IOException {
+			start();
+			try {
+				return super.read();
+			} finally {
+				reading = false;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			start();
+			try {
+				return super.read(b, off, len);
+			} finally {
+				reading = false;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			reads.remove(this);
+			super.close();
+		}
+
+		boolean isStalled(long now) {
+			return reading && now - readStart > TimeUnit.SECONDS.toNanos(readTimeoutSeconds);
+		}
+
+		private void start() {
+			readStart = System.nanoTime();
+			reading = true;
+		}
+	}
+}
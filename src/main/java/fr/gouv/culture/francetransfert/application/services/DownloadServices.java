@@ -8,11 +8,18 @@
 package fr.gouv.culture.francetransfert.application.services;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -20,30 +27,30 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 
 import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
 import fr.gouv.culture.francetransfert.application.error.MaxTryException;
 import fr.gouv.culture.francetransfert.application.error.PasswordException;
+import fr.gouv.culture.francetransfert.application.error.StorageUnavailableException;
 import fr.gouv.culture.francetransfert.application.error.UnauthorizedAccessException;
-import fr.gouv.culture.francetransfert.application.resources.model.DirectoryRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.BatchItemRepresentation;
 import fr.gouv.culture.francetransfert.application.resources.model.Download;
 import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
 import fr.gouv.culture.francetransfert.application.resources.model.DownloadRepresentation;
-import fr.gouv.culture.francetransfert.application.resources.model.FileRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureListing;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureTokenMetaData;
 import fr.gouv.culture.francetransfert.core.enums.EnclosureKeysEnum;
 import fr.gouv.culture.francetransfert.core.enums.RecipientKeysEnum;
 import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
 import fr.gouv.culture.francetransfert.core.enums.RedisQueueEnum;
-import fr.gouv.culture.francetransfert.core.enums.RootDirKeysEnum;
-import fr.gouv.culture.francetransfert.core.enums.RootFileKeysEnum;
 import fr.gouv.culture.francetransfert.core.enums.TypeStat;
 import fr.gouv.culture.francetransfert.core.exception.MetaloadException;
 import fr.gouv.culture.francetransfert.core.exception.StatException;
 import fr.gouv.culture.francetransfert.core.exception.StorageException;
 import fr.gouv.culture.francetransfert.core.services.RedisManager;
-import fr.gouv.culture.francetransfert.core.services.StorageManager;
 import fr.gouv.culture.francetransfert.core.utils.Base64CryptoService;
-import fr.gouv.culture.francetransfert.core.utils.DateUtils;
 import fr.gouv.culture.francetransfert.core.utils.RedisUtils;
 import fr.gouv.culture.francetransfert.core.utils.StringUploadUtils;
 import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
@@ -55,17 +62,16 @@ public class DownloadServices {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(DownloadServices.class);
 
+	private static final Predicate<String> NEVER_NOT_MODIFIED = tag -> false;
+
 	@Value("${enclosure.max.download}")
 	private int maxDownload;
 
 	@Value("${enclosure.max.password.try}")
 	private int maxPasswordTry;
 
-	@Value("${bucket.prefix}")
-	private String bucketPrefix;
-
-	@Autowired
-	private StorageManager storageManager;
+	@Value("${download.batch.maxSize:100}")
+	private int batchMaxSize;
 
 	@Autowired
 	private RedisManager redisManager;
@@ -76,17 +82,69 @@ public class DownloadServices {
 	@Autowired
 	private StringUploadUtils stringUploadUtils;
 
+	@Autowired
+	private EnclosureCacheServices enclosureCacheServices;
+
+	@Autowired
+	private IntegrityVerificationServices integrityVerificationServices;
+
+	@Autowired
+	private DownloadUrlServices downloadUrlServices;
+
+	@Autowired
+	private DownloadGrantServices downloadGrantServices;
+
+	@Autowired
+	private EventOutboxServices eventOutboxServices;
+
+	@Autowired
+	private EnclosureContextServices enclosureContextServices;
+
+	@Autowired
+	private ParallelLookupServices parallelLookupServices;
+
+	@Autowired
+	private MissingEnclosureServices missingEnclosureServices;
+
+	@Autowired
+	private MetaloadReadServices metaloadReadServices;
+
 	public Download generateDownloadUrlWithPassword(DownloadPasswordMetaData downloadMeta)
 			throws ExpirationEnclosureException, UnsupportedEncodingException, MetaloadException, StorageException {
+		return generateDownloadUrlWithPassword(downloadMeta, true);
+	}
+
+	/**
+	 * Validate a recipient download and get its url
+	 *
+	 * @param downloadMeta
+	 * @param counted      false when resuming a download already counted, only the
+	 *                     validations are done
+	 * @return download url
+	 */
+	public Download generateDownloadUrlWithPassword(DownloadPasswordMetaData downloadMeta, boolean counted)
+			throws ExpirationEnclosureException, UnsupportedEncodingException, MetaloadException, StorageException {
+		return generateDownloadUrlWithPassword(downloadMeta, recipientId -> !counted);
+	}
+
+	/**
+	 * Validate a recipient download and get its url
+	 *
+	 * @param downloadMeta
+	 * @param alreadyCounted tells from the recipient id, once the download is
+	 *                       validated, whether it resumes a download already
+	 *                       counted, only the validations being then done
+	 * @return download url
+	 */
+	public Download generateDownloadUrlWithPassword(DownloadPasswordMetaData downloadMeta,
+			Predicate<String> alreadyCounted)
+			throws ExpirationEnclosureException, UnsupportedEncodingException, MetaloadException, StorageException {
 
-		String recipientIdRedis;
+		String recipientIdRedis = null;
 		String recipientMail = downloadMeta.getRecipient();
 
 		if (downloadMeta.getSenderToken() != null) {
 			redisManager.validateToken(downloadMeta.getRecipient().toLowerCase(), downloadMeta.getSenderToken());
-			recipientIdRedis = RedisUtils.getRecipientId(redisManager, downloadMeta.getEnclosure(),
-					downloadMeta.getRecipient().toLowerCase());
-
 		} else {
 			recipientIdRedis = downloadMeta.getToken();
 		}
@@ -97,22 +155,49 @@ public class DownloadServices {
 
 		recipientMail = recipientMail.toLowerCase();
 
-		checkDeletePlis(downloadMeta.getEnclosure());
-		validateDownloadAuthorization(downloadMeta.getEnclosure(), recipientMail, recipientIdRedis);
-		validatePassword(downloadMeta.getEnclosure(), downloadMeta.getPassword(), recipientIdRedis);
-		downloadProgress(downloadMeta.getEnclosure(), recipientIdRedis);
-		String statMessage = TypeStat.DOWNLOAD + ";" + downloadMeta.getEnclosure() + ";" + recipientMail;
-		redisManager.publishFT(RedisQueueEnum.STAT_QUEUE.getValue(), statMessage);
-		return getDownloadUrl(downloadMeta.getEnclosure());
+		// the recipient id is resolved from the mail when connected as sender
+		EnclosureRequestContext context = loadContext(downloadMeta.getEnclosure(), recipientMail, recipientIdRedis,
+				true);
+		validateDownload(context, recipientMail, downloadMeta.getPassword());
+		if (alreadyCounted.test(context.getRecipientId())) {
+			return getDownloadUrl(downloadMeta.getEnclosure());
+		}
+		downloadProgress(downloadMeta.getEnclosure(), context.getRecipientId());
+		return completeDownload(downloadMeta.getEnclosure(), recipientMail);
 
 	}
 
+	/**
+	 * Validations of a recipient download, before the download is granted
+	 */
+	void validateDownload(EnclosureRequestContext context, String recipientMail, String password)
+			throws UnsupportedEncodingException, MetaloadException, StorageException {
+		checkDeletePlis(context);
+		validateDownloadAuthorization(context, recipientMail, context.getRecipientId());
+		validatePassword(context, password);
+	}
+
+	/**
+	 * Stat and download url of a granted recipient download
+	 */
+	Download completeDownload(String enclosureId, String recipientMail) {
+		String statMessage = TypeStat.DOWNLOAD + ";" + enclosureId + ";" + recipientMail;
+		eventOutboxServices.publish(RedisQueueEnum.STAT_QUEUE.getValue(), statMessage);
+		return getDownloadUrl(enclosureId);
+	}
+
 	public Download generatePublicDownload(String enclosureId, String password)
 			throws MetaloadException, UnsupportedEncodingException {
-		validatePassword(enclosureId, password, null);
+		return generatePublicDownload(loadContext(enclosureId, null, null, true), password);
+	}
+
+	Download generatePublicDownload(EnclosureRequestContext context, String password)
+			throws MetaloadException, UnsupportedEncodingException {
+		String enclosureId = context.getEnclosureId();
+		validatePassword(context, password);
 		RedisUtils.incrementNumberOfDownloadPublic(redisManager, enclosureId);
 		String statMessage = TypeStat.DOWNLOAD + ";" + enclosureId;
-		redisManager.publishFT(RedisQueueEnum.STAT_QUEUE.getValue(), statMessage);
+		eventOutboxServices.publish(RedisQueueEnum.STAT_QUEUE.getValue(), statMessage);
 		return getDownloadUrl(enclosureId);
 	}
 
@@ -127,44 +212,152 @@ public class DownloadServices {
 
 	public DownloadRepresentation getDownloadInfoConnect(String enclosureId, String recipient)
 			throws UnsupportedEncodingException, ExpirationEnclosureException, MetaloadException, StorageException {
+		return getDownloadInfoConnect(enclosureId, recipient, NEVER_NOT_MODIFIED);
+	}
+
+	public DownloadRepresentation getDownloadInfoConnect(String enclosureId, String recipient,
+			Predicate<String> notModified)
+			throws UnsupportedEncodingException, ExpirationEnclosureException, MetaloadException, StorageException {
 
-		String recipientIdRedis = RedisUtils.getRecipientId(redisManager, enclosureId, recipient);
-		DownloadRepresentation downloadRepresentation = getDownloadInfo(enclosureId, recipientIdRedis, recipient);
+		String recipientMail = decodeRecipientMail(recipient);
+		EnclosureRequestContext context = loadContext(enclosureId, recipientMail, null, false);
+		return getDownloadInfo(context, recipientMail, notModified);
 
-		return downloadRepresentation;
+	}
 
+	/**
+	 * Download info of several enclosures of a connected recipient, whose token
+	 * has been validated once. The contexts are loaded in two round trips and the
+	 * near-cache misses concurrently.
+	 *
+	 * @param enclosureIds
+	 * @param recipient
+	 * @return download info or error of each enclosure
+	 */
+	public List<BatchItemRepresentation<DownloadRepresentation>> getDownloadInfoConnect(List<String> enclosureIds,
+			String recipient) throws UnsupportedEncodingException {
+		validateBatchSize(enclosureIds.size());
+		String recipientMail = decodeRecipientMail(recipient);
+		Set<String> distinctIds = new LinkedHashSet<>(enclosureIds);
+		// enclosures known to be deleted are neither read nor loaded
+		Set<String> missingIds = new HashSet<>();
+		distinctIds.removeIf(
+				enclosureId -> missingEnclosureServices.isMissing(enclosureId) && missingIds.add(enclosureId));
+		Map<String, CompletableFuture<EnclosureMetadata>> metadata = new HashMap<>();
+		distinctIds.forEach(enclosureId -> metadata.put(enclosureId,
+				parallelLookupServices.submit(() -> enclosureCacheServices.getEnclosureMetadata(enclosureId))));
+		Map<String, EnclosureRequestContext> contexts = enclosureContextServices.loadAll(distinctIds, recipientMail);
+
+		List<BatchItemRepresentation<DownloadRepresentation>> items = new ArrayList<>(enclosureIds.size());
+		for (String enclosureId : enclosureIds) {
+			try {
+				EnclosureRequestContext context = contexts.get(enclosureId);
+				if (missingIds.contains(enclosureId)) {
+					throw new DownloadException(ErrorEnum.DELETED_ENCLOSURE.getValue(), enclosureId);
+				}
+				checkDeletePlis(context);
+				context.setMetadata(parallelLookupServices.join(enclosureId, metadata.get(enclosureId)));
+				items.add(BatchItemRepresentation.<DownloadRepresentation>builder().enclosureId(enclosureId)
+						.result(getDownloadInfo(context, recipientMail)).build());
+			} catch (Exception e) {
+				items.add(batchError(enclosureId, e));
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * Public download counts of several enclosures, every admin token and
+	 * enclosure being read in a single round trip
+	 *
+	 * @param enclosures enclosure ids and their admin token
+	 * @return download count or error of each enclosure
+	 */
+	public List<BatchItemRepresentation<String>> getNumberOfDownloadPublic(List<EnclosureTokenMetaData> enclosures) {
+		validateBatchSize(enclosures.size());
+		List<String> keys = new ArrayList<>(enclosures.size() * 2);
+		for (EnclosureTokenMetaData enclosure : enclosures) {
+			keys.add(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosure.getEnclosure()));
+			keys.add(RedisKeysEnum.FT_ENCLOSURE.getKey(enclosure.getEnclosure()));
+		}
+		// a replica missing one of the admin tokens is read again on the master
+		List<Map<String, String>> hashes = enclosureContextServices.hgetAll(keys, read -> {
+			for (int i = 0; i < read.size(); i += 2) {
+				if (read.get(i).isEmpty()) {
+					return false;
+				}
+			}
+			return true;
+		});
+
+		List<BatchItemRepresentation<String>> items = new ArrayList<>(enclosures.size());
+		for (int i = 0; i < enclosures.size(); i++) {
+			EnclosureTokenMetaData enclosure = enclosures.get(i);
+			String adminToken = hashes.get(2 * i).get(EnclosureKeysEnum.TOKEN.getKey());
+			Map<String, String> enclosureMap = hashes.get(2 * i + 1);
+			if (adminToken == null || !adminToken.equals(enclosure.getToken())) {
+				items.add(batchError(enclosure.getEnclosure(), new UnauthorizedAccessException("Invalid Token")));
+			} else if (enclosureMap.isEmpty()) {
+				items.add(batchError(enclosure.getEnclosure(),
+						new DownloadException(ErrorEnum.WRONG_ENCLOSURE.getValue(), enclosure.getEnclosure())));
+			} else {
+				items.add(BatchItemRepresentation.<String>builder().enclosureId(enclosure.getEnclosure())
+						.result(enclosureMap.get(EnclosureKeysEnum.PUBLIC_DOWNLOAD_COUNT.getKey())).build());
+			}
+		}
+		return items;
 	}
 
 	public DownloadRepresentation getDownloadInfo(String enclosureId, String senderToken, String recipientMailInBase64)
 			throws UnsupportedEncodingException, ExpirationEnclosureException, MetaloadException, StorageException {
+		return getDownloadInfo(enclosureId, senderToken, recipientMailInBase64, NEVER_NOT_MODIFIED);
+	}
 
-		// validate Enclosure download right
-		String recipientMail = recipientMailInBase64;
+	/**
+	 * Download info of a recipient, only built if the client copy is outdated
+	 *
+	 * @param enclosureId
+	 * @param senderToken
+	 * @param recipientMailInBase64
+	 * @param notModified tells from the representation ETag whether the client
+	 *                    copy is up to date
+	 * @return download info, null if not modified
+	 */
+	public DownloadRepresentation getDownloadInfo(String enclosureId, String senderToken, String recipientMailInBase64,
+			Predicate<String> notModified)
+			throws UnsupportedEncodingException, ExpirationEnclosureException, MetaloadException, StorageException {
 
-		if (!stringUploadUtils.isValidEmail(recipientMailInBase64)) {
-			recipientMail = base64CryptoService.base64Decoder(recipientMailInBase64);
-		}
+		String recipientMail = decodeRecipientMail(recipientMailInBase64);
+		EnclosureRequestContext context = loadContext(enclosureId, recipientMail, senderToken, false);
+		return getDownloadInfo(context, recipientMail, notModified);
+	}
 
-		checkDeletePlis(enclosureId);
-		LocalDate expirationDate = validateDownloadAuthorization(enclosureId, recipientMail, senderToken);
+	DownloadRepresentation getDownloadInfo(EnclosureRequestContext context, String recipientMail)
+			throws UnsupportedEncodingException, ExpirationEnclosureException, MetaloadException, StorageException {
+		return getDownloadInfo(context, recipientMail, NEVER_NOT_MODIFIED);
+	}
 
-		try {
+	DownloadRepresentation getDownloadInfo(EnclosureRequestContext context, String recipientMail,
+			Predicate<String> notModified)
+			throws UnsupportedEncodingException, ExpirationEnclosureException, MetaloadException, StorageException {
 
-			String passwordRedis = RedisUtils.getEnclosureValue(redisManager, enclosureId,
-					EnclosureKeysEnum.PASSWORD.getKey());
-			String message = RedisUtils.getEnclosureValue(redisManager, enclosureId,
-					EnclosureKeysEnum.MESSAGE.getKey());
-			String senderMail = RedisUtils.getEmailSenderEnclosure(redisManager, enclosureId);
+		// validate Enclosure download right
+		String enclosureId = context.getEnclosureId();
+		checkDeletePlis(context);
+		LocalDate expirationDate = validateDownloadAuthorization(context, recipientMail, context.getRecipientId());
+		if (notModified.test(representationTag(getMetadata(context), recipientMail))) {
+			return null;
+		}
 
-			List<FileRepresentation> rootFiles = getRootFiles(enclosureId);
-			List<DirectoryRepresentation> rootDirs = getRootDirs(enclosureId);
+		try {
 
-			DownloadRepresentation downloadRepresentation = DownloadRepresentation.builder()
-					.validUntilDate(expirationDate).senderEmail(senderMail).recipientMail(recipientMail)
-					.message(message).rootFiles(rootFiles).rootDirs(rootDirs)
-					.withPassword(!StringUtils.isEmpty(passwordRedis)).build();
+			EnclosureMetadata metadata = getMetadata(context);
+			EnclosureListing listing = metadata.getListing();
 
-			passwordRedis = null;
+			DownloadRepresentation downloadRepresentation = DownloadRepresentation.builder()
+					.validUntilDate(expirationDate).senderEmail(metadata.getSenderMail()).recipientMail(recipientMail)
+					.message(metadata.getMessage()).rootFiles(listing.getRootFiles()).rootDirs(listing.getRootDirs())
+					.withPassword(metadata.isWithPassword()).build();
 
 			return downloadRepresentation;
 		} catch (Exception e) {
@@ -174,35 +367,111 @@ public class DownloadServices {
 
 	public DownloadRepresentation getDownloadInfoPublic(String enclosureId)
 			throws ExpirationEnclosureException, MetaloadException {
-		checkDeletePlis(enclosureId);
-		LocalDate expirationDate = validateDownloadAuthorizationPublic(enclosureId);
+		return getDownloadInfoPublic(validateDownloadInfoPublic(enclosureId));
+	}
+
+	/**
+	 * Validate a public download info request
+	 *
+	 * @param enclosureId
+	 * @return metadata of the enclosure, not deleted nor expired
+	 * @throws ExpirationEnclosureException
+	 */
+	public EnclosureMetadata validateDownloadInfoPublic(String enclosureId) throws ExpirationEnclosureException {
+		return validateDownloadInfoPublic(loadContext(enclosureId, null, null, false));
+	}
+
+	EnclosureMetadata validateDownloadInfoPublic(EnclosureRequestContext context)
+			throws ExpirationEnclosureException {
+		checkDeletePlis(context);
+		validateExpirationDate(getMetadata(context));
+		return getMetadata(context);
+	}
+
+	/**
+	 * @param metadata validated enclosure metadata
+	 * @return public download info
+	 */
+	public DownloadRepresentation getDownloadInfoPublic(EnclosureMetadata metadata) {
 		try {
-			List<FileRepresentation> rootFiles = getRootFiles(enclosureId);
-			List<DirectoryRepresentation> rootDirs = getRootDirs(enclosureId);
-			return DownloadRepresentation.builder().validUntilDate(expirationDate).rootFiles(rootFiles)
-					.rootDirs(rootDirs).build();
+			EnclosureListing listing = metadata.getListing();
+			return DownloadRepresentation.builder().validUntilDate(metadata.getExpirationDate())
+					.rootFiles(listing.getRootFiles()).rootDirs(listing.getRootDirs()).build();
 		} catch (Exception e) {
-			throw new DownloadException("Cannot get Download Info : " + e.getMessage(), enclosureId, e);
+			throw new DownloadException("Cannot get Download Info : " + e.getMessage(), metadata.getEnclosureId(), e);
+		}
+	}
+
+	/**
+	 * Strong validator of a download info representation : the enclosure version
+	 * and, for a recipient, a digest of the recipient mail it holds
+	 */
+	static String representationTag(EnclosureMetadata metadata, String recipientMail) {
+		if (recipientMail == null) {
+			return metadata.getVersion();
+		}
+		return metadata.getVersion() + "-" + DigestUtils.md5DigestAsHex(recipientMail.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void validateBatchSize(int size) {
+		if (size > batchMaxSize) {
+			throw new DownloadException(ErrorEnum.BATCH_TOO_LARGE.getValue(), null);
+		}
+	}
+
+	/**
+	 * Error of a batch item, typed as the error of the single enclosure endpoint
+	 */
+	private static <T> BatchItemRepresentation<T> batchError(String enclosureId, Exception e) {
+		String error = ErrorEnum.TECHNICAL_ERROR.getValue();
+		if (e instanceof InvalidHashException) {
+			error = ErrorEnum.HASH_INVALID.getValue();
+		} else if (e instanceof UnauthorizedAccessException) {
+			error = ((UnauthorizedAccessException) e).getType();
+		} else if (e instanceof DownloadException) {
+			error = e.getMessage();
+		} else if (e instanceof StorageUnavailableException) {
+			error = ErrorEnum.STORAGE_UNAVAILABLE.getValue();
+		} else {
+			LOGGER.error("Batch item error for enclosure {}", enclosureId, e);
 		}
+		return BatchItemRepresentation.<T>builder().enclosureId(enclosureId).error(error).build();
 	}
 
-	private void checkDeletePlis(String enclosureId) {
-		Map<String, String> tokenMap = redisManager.hmgetAllString(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosureId));
+	String decodeRecipientMail(String recipientParam) throws UnsupportedEncodingException {
+		if (!stringUploadUtils.isValidEmail(recipientParam)) {
+			return base64CryptoService.base64Decoder(recipientParam);
+		}
+		return recipientParam;
+	}
 
-		if (tokenMap.size() == 0) {
+	/**
+	 * Fail fast on an enclosure known to be deleted, without any Redis read
+	 *
+	 * @param enclosureId
+	 */
+	void checkNotMissing(String enclosureId) {
+		if (missingEnclosureServices.isMissing(enclosureId)) {
 			throw new DownloadException(ErrorEnum.DELETED_ENCLOSURE.getValue(), enclosureId);
 		}
 	}
 
+	private void checkDeletePlis(EnclosureRequestContext context) {
+		if (!context.isAdminTokenPresent()) {
+			// every node is told, the other ones would still serve their cached copy
+			enclosureCacheServices.invalidate(context.getEnclosureId());
+			missingEnclosureServices.publishDeleted(context.getEnclosureId());
+			throw new DownloadException(ErrorEnum.DELETED_ENCLOSURE.getValue(), context.getEnclosureId());
+		}
+	}
+
 	private Download getDownloadUrl(String enclosureId) throws DownloadException {
 		try {
-			String bucketName = RedisUtils.getBucketName(redisManager, enclosureId, bucketPrefix);
-
-			String fileToDownload = storageManager.getZippedEnclosureName(enclosureId);
-			int expireInMinutes = 2; // periode to exipre the generated URL
-			String downloadURL = storageManager.generateDownloadURL(bucketName, fileToDownload, expireInMinutes)
-					.toString();
+			String bucketName = enclosureCacheServices.getEnclosureMetadata(enclosureId).getBucketName();
+			String downloadURL = downloadUrlServices.getDownloadUrl(enclosureId, bucketName);
 			return Download.builder().downloadURL(downloadURL).build();
+		} catch (StorageUnavailableException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new DownloadException("Cannot get Download URL : " + e.getMessage(), enclosureId, e);
 		}
@@ -212,35 +481,32 @@ public class DownloadServices {
 	 * Method to validate download authorization : validate number of download,
 	 * validate expiration date and validate recipientId sended by the front
 	 *
-	 * @param enclosureId
+	 * @param context
 	 * @param recipientMail
 	 * @param recipientId
 	 * @return enclosure expiration Date
 	 * @throws MetaloadException
 	 * @throws ExpirationEnclosureException
 	 */
-	private LocalDate validateDownloadAuthorization(String enclosureId, String recipientMail, String recipientId)
-			throws InvalidHashException, MetaloadException, StorageException {
+	private LocalDate validateDownloadAuthorization(EnclosureRequestContext context, String recipientMail,
+			String recipientId) throws InvalidHashException, MetaloadException, StorageException {
 		Boolean recipientDeleted = false;
-		String bucketName = RedisUtils.getBucketName(redisManager, enclosureId, bucketPrefix);
+		String enclosureId = context.getEnclosureId();
+		EnclosureMetadata metadata = getMetadata(context);
 
-		validateRecipientId(enclosureId, recipientMail, recipientId);
+		validateRecipientId(context, recipientMail, recipientId);
 
 		if (StringUtils.isNotBlank(recipientMail)) {
-			recipientDeleted = RedisUtils.isRecipientDeleted(redisManager, recipientId);
+			recipientDeleted = context.isRecipientDeleted();
 		}
 		if (!recipientDeleted) {
 
-			String fileToDownload = storageManager.getZippedEnclosureName(enclosureId);
-			String hashFileFromS3 = storageManager.getEtag(bucketName, fileToDownload);
-			String hashFileFromRedis = RedisUtils.getHashFileFromredis(redisManager, enclosureId);
-
-			if (StringUtils.isNotBlank(hashFileFromRedis) && !hashFileFromRedis.equals(hashFileFromS3)) {
+			if (!integrityVerificationServices.isIntegrityValid(metadata)) {
 				LOGGER.warn("msgtype: INVALID_HASH || enclosure: {} || recipient: {}", enclosureId, recipientMail);
 				throw new InvalidHashException("Hash incorrect pour le pli " + enclosureId);
 			}
-			validateNumberOfDownload(recipientId, enclosureId);
-			LocalDate expirationDate = validateExpirationDate(enclosureId);
+			validateNumberOfDownload(context);
+			LocalDate expirationDate = validateExpirationDate(metadata);
 			return expirationDate;
 		} else {
 			throw new ExpirationEnclosureException("Vous ne pouvez plus telecharger les fichiers de l'enclosure : "
@@ -249,29 +515,29 @@ public class DownloadServices {
 
 	}
 
-	private LocalDate validateExpirationDate(String enclosureId)
-			throws ExpirationEnclosureException, MetaloadException {
-		LocalDate expirationDate = DateUtils.convertStringToLocalDate(
-				RedisUtils.getEnclosureValue(redisManager, enclosureId, EnclosureKeysEnum.EXPIRED_TIMESTAMP.getKey()));
+	private LocalDate validateExpirationDate(EnclosureMetadata metadata) throws ExpirationEnclosureException {
+		LocalDate expirationDate = metadata.getExpirationDate();
 		if (LocalDate.now().isAfter(expirationDate)) {
 			throw new ExpirationEnclosureException("Vous ne pouvez plus telecharger ces fichiers");
 		}
 		return expirationDate;
 	}
 
-	private int validateNumberOfDownload(String recipientId, String enclosureId) throws MetaloadException {
-		int numberOfDownload = RedisUtils.getNumberOfDownloadsPerRecipient(redisManager, recipientId);
+	private int validateNumberOfDownload(EnclosureRequestContext context) {
+		int numberOfDownload = context.getNumberOfDownload();
 		if (maxDownload <= numberOfDownload) {
-			LOGGER.error("DOWNLOAD_LIMIT for enclosure {}, for recipient {}", enclosureId, recipientId);
-			throw new DownloadException(ErrorEnum.DOWNLOAD_LIMIT.getValue(), enclosureId);
+			LOGGER.error("DOWNLOAD_LIMIT for enclosure {}, for recipient {}", context.getEnclosureId(),
+					context.getRecipientId());
+			throw new DownloadException(ErrorEnum.DOWNLOAD_LIMIT.getValue(), context.getEnclosureId());
 		}
 		return numberOfDownload;
 	}
 
-	private void validateRecipientId(String enclosureId, String recipientMail, String recipientId) {
+	private void validateRecipientId(EnclosureRequestContext context, String recipientMail, String recipientId) {
+		String enclosureId = context.getEnclosureId();
 		try {
-			String recipientIdRedis = RedisUtils.getRecipientId(redisManager, enclosureId, recipientMail);
-			if (!recipientIdRedis.equals(recipientId)) {
+			String recipientIdRedis = context.getRecipientId(recipientMail);
+			if (recipientIdRedis == null || !recipientIdRedis.equals(recipientId)) {
 				throw new DownloadException("NewRecipient id send not equals to Redis recipient id for this enclosure",
 						enclosureId);
 			}
@@ -280,36 +546,40 @@ public class DownloadServices {
 		}
 	}
 
-	public String getRecipientId(String enclosureId, String recipientParam)
-			throws MetaloadException, UnsupportedEncodingException {
-
-		String recipientMail;
-		String recipientId = null;
+	/**
+	 * Validate the password of an enclosure for the recipient (mail or base64
+	 * mail) or for a public link when the recipient is blank
+	 *
+	 * @param enclosureId
+	 * @param password
+	 * @param recipientParam
+	 * @throws UnsupportedEncodingException
+	 * @throws MetaloadException
+	 */
+	public void validatePassword(String enclosureId, String password, String recipientParam)
+			throws UnsupportedEncodingException, MetaloadException {
+		checkNotMissing(enclosureId);
+		EnclosureRequestContext context;
 		if (StringUtils.isNotBlank(recipientParam)) {
-			// Get recipientid from enclosure
-			if (!stringUploadUtils.isValidEmail(recipientParam)) {
-				recipientMail = base64CryptoService.base64Decoder(recipientParam);
-			} else {
-				recipientMail = recipientParam;
-			}
-			recipientId = RedisUtils.getRecipientId(redisManager, enclosureId, recipientMail);
+			context = enclosureContextServices.load(enclosureId, decodeRecipientMail(recipientParam), null, true);
+		} else {
+			context = enclosureContextServices.load(enclosureId, true);
 		}
-
-		return recipientId;
-
+		validatePassword(context, password);
 	}
 
-	public void validatePassword(String enclosureId, String password, String recipientId)
+	void validatePassword(EnclosureRequestContext context, String password)
 			throws UnsupportedEncodingException, MetaloadException {
 		String passwordUnHashed = "";
 		int passwordCountTry = 0;
 		Boolean recipientDeleted = false;
+		String enclosureId = context.getEnclosureId();
+		String recipientId = context.getRecipientId();
 
-		Map<String, String> enclosureMap = redisManager.hmgetAllString(RedisKeysEnum.FT_ENCLOSURE.getKey(enclosureId));
-		Boolean publicLink = Boolean.valueOf(enclosureMap.get(EnclosureKeysEnum.PUBLIC_LINK.getKey()));
+		Boolean publicLink = context.isPublicLink();
 
 		try {
-			passwordUnHashed = getUnhashedPassword(enclosureId);
+			passwordUnHashed = getUnhashedPassword(context);
 		} catch (Exception e) {
 			passwordUnHashed = "";
 			throw new DownloadException("Error Unhashing password", enclosureId, e);
@@ -332,15 +602,15 @@ public class DownloadServices {
 		}
 
 		// Check recipientId valid for enclosure
-		recipientDeleted = RedisUtils.isRecipientDeleted(redisManager, recipientId);
-		boolean recipientInEnclosure = RedisUtils.checkRecipientIdInEnclosure(redisManager, enclosureId, recipientId);
+		recipientDeleted = context.isRecipientDeleted();
+		boolean recipientInEnclosure = context.isRecipientInEnclosure();
 		if (recipientDeleted || !recipientInEnclosure) {
 			passwordUnHashed = "";
 			throw new ExpirationEnclosureException("Vous ne pouvez plus telecharger les fichiers de l'enclosure : "
 					+ enclosureId + " recipient : " + recipientId);
 		}
 
-		passwordCountTry = RedisUtils.getPasswordTryCountPerRecipient(redisManager, recipientId);
+		passwordCountTry = context.getPasswordTryCount();
 
 		if (!(password != null && passwordUnHashed != null && password.equals(passwordUnHashed))) {
 			passwordUnHashed = "";
@@ -353,17 +623,18 @@ public class DownloadServices {
 			throw new PasswordException(ErrorEnum.WRONG_PASSWORD.getValue(), enclosureId, passwordCountTry + 1);
 		} else {
 			passwordUnHashed = "";
-			if (passwordCountTry < maxPasswordTry) {
-				RedisUtils.resetPasswordTryCountPerRecipient(redisManager, recipientId);
-			} else {
+			if (passwordCountTry >= maxPasswordTry) {
 				throw new MaxTryException("Nombre d'essais maximum atteint", enclosureId);
+			} else if (passwordCountTry > 0) {
+				RedisUtils.resetPasswordTryCountPerRecipient(redisManager, recipientId);
 			}
 		}
 	}
 
-	private String getUnhashedPassword(String enclosureId) throws MetaloadException, StatException {
+	private String getUnhashedPassword(EnclosureRequestContext context) throws StatException {
+		String enclosureId = context.getEnclosureId();
 		String passwordRedis;
-		passwordRedis = RedisUtils.getEnclosureValue(redisManager, enclosureId, EnclosureKeysEnum.PASSWORD.getKey());
+		passwordRedis = context.getEncryptedPassword();
 		if (passwordRedis != null && !StringUtils.isEmpty(passwordRedis)) {
 			return base64CryptoService.aesDecrypt(passwordRedis);
 		} else {
@@ -373,72 +644,42 @@ public class DownloadServices {
 	}
 
 	private void downloadProgress(String enclosureId, String recipientId) throws DownloadException {
+		boolean granted;
 		try {
-			// increment nb_download for this recipient
-			RedisUtils.incrementNumberOfDownloadsForRecipient(redisManager, recipientId);
-			String keyPli = RedisKeysEnum.FT_Download_Date.getKey(recipientId);
-			LocalDateTime date = LocalDateTime.now();
-
-			redisManager.saddString(keyPli, date.toString());
-			// add to queue Redis download progress: to send download mail in progress to
-			// the sender
-			String downloadQueueValue = enclosureId + ":" + recipientId;
-			redisManager.rpush(RedisQueueEnum.DOWNLOAD_QUEUE.getValue(), downloadQueueValue);
+			// increment nb_download for this recipient, save the download date and add to
+			// queue Redis download progress (to send download mail in progress to the
+			// sender) if the download limit is not reached
+			granted = downloadGrantServices.grantDownload(enclosureId, recipientId, maxDownload);
 		} catch (Exception e) {
 			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue() + " : " + e.getMessage(), enclosureId, e);
 		}
-	}
-
-	private List<FileRepresentation> getRootFiles(String enclosureId) throws DownloadException {
-		List<FileRepresentation> rootFiles = new ArrayList<>();
-		redisManager.lrange(RedisKeysEnum.FT_ROOT_FILES.getKey(enclosureId), 0, -1).forEach(rootFileName -> {
-			String size = "";
-			String hashRootFile = RedisUtils.generateHashsha1(enclosureId + ":" + rootFileName);
-			try {
-				size = redisManager.getHgetString(RedisKeysEnum.FT_ROOT_FILE.getKey(hashRootFile),
-						RootFileKeysEnum.SIZE.getKey());
-			} catch (Exception e) {
-				throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
-			}
-			FileRepresentation rootFile = new FileRepresentation();
-			rootFile.setName(rootFileName);
-			rootFile.setSize(Long.valueOf(size));
-			rootFiles.add(rootFile);
-			LOGGER.debug("root file: {}", rootFileName);
-		});
-		return rootFiles;
-	}
-
-	private List<DirectoryRepresentation> getRootDirs(String enclosureId) throws DownloadException {
-		List<DirectoryRepresentation> rootDirs = new ArrayList<>();
-		redisManager.lrange(RedisKeysEnum.FT_ROOT_DIRS.getKey(enclosureId), 0, -1).forEach(rootDirName -> {
-			String size = "";
-			String hashRootDir = RedisUtils.generateHashsha1(enclosureId + ":" + rootDirName);
-			try {
-				size = redisManager.getHgetString(RedisKeysEnum.FT_ROOT_DIR.getKey(hashRootDir),
-						RootDirKeysEnum.TOTAL_SIZE.getKey());
-			} catch (Exception e) {
-				throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
-			}
-			DirectoryRepresentation rootDir = new DirectoryRepresentation();
-			rootDir.setName(rootDirName);
-			rootDir.setTotalSize(Long.valueOf(size));
-			rootDirs.add(rootDir);
-			LOGGER.debug("root Dir: {}", rootDirName);
-		});
-		return rootDirs;
+		if (!granted) {
+			LOGGER.error("DOWNLOAD_LIMIT for enclosure {}, for recipient {}", enclosureId, recipientId);
+			throw new DownloadException(ErrorEnum.DOWNLOAD_LIMIT.getValue(), enclosureId);
+		}
 	}
 
 	public void validatePublic(String enclosureId) throws UnauthorizedAccessException {
-		Map<String, String> enclosureMap = redisManager.hmgetAllString(RedisKeysEnum.FT_ENCLOSURE.getKey(enclosureId));
-		Boolean publicLink = Boolean.valueOf(enclosureMap.get(EnclosureKeysEnum.PUBLIC_LINK.getKey()));
+		if (missingEnclosureServices.isMissing(enclosureId)) {
+			throw new UnauthorizedAccessException("Unauthorized");
+		}
+		boolean publicLink = false;
+		try {
+			publicLink = enclosureCacheServices.getEnclosureMetadata(enclosureId).isPublicLink();
+		} catch (DownloadException e) {
+			if (!ErrorEnum.WRONG_ENCLOSURE.getValue().equals(e.getMessage())) {
+				throw e;
+			}
+			missingEnclosureServices.markMissing(enclosureId);
+		}
 		if (!publicLink) {
 			throw new UnauthorizedAccessException("Unauthorized");
 		}
 	}
 
 	public void validateToken(String enclosureId, String token) {
-		Map<String, String> tokenMap = redisManager.hmgetAllString(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosureId));
+		Map<String, String> tokenMap = metaloadReadServices.read(
+				jedis -> jedis.hgetAll(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosureId)), map -> !map.isEmpty());
 		if (tokenMap != null) {
 			if (!token.equals(tokenMap.get(EnclosureKeysEnum.TOKEN.getKey()))) {
 				throw new UnauthorizedAccessException("Invalid Token");
@@ -448,9 +689,39 @@ public class DownloadServices {
 		}
 	}
 
-	private LocalDate validateDownloadAuthorizationPublic(String enclosureId)
-			throws ExpirationEnclosureException, MetaloadException {
-		LocalDate expirationDate = validateExpirationDate(enclosureId);
-		return expirationDate;
+	/**
+	 * Load the request context while the enclosure metadata is read from the
+	 * near-cache, a deleted enclosure being reported before a missing one
+	 *
+	 * @param enclosureId
+	 * @param recipientMail
+	 * @param recipientId
+	 * @param withEnclosure read the enclosure hash too, for the password
+	 *                      validations
+	 * @return request context holding the enclosure metadata
+	 */
+	private EnclosureRequestContext loadContext(String enclosureId, String recipientMail, String recipientId,
+			boolean withEnclosure) {
+		checkNotMissing(enclosureId);
+		CompletableFuture<EnclosureRequestContext> context = parallelLookupServices.submit(
+				() -> recipientMail == null ? enclosureContextServices.load(enclosureId, withEnclosure)
+						: enclosureContextServices.load(enclosureId, recipientMail, recipientId, withEnclosure));
+		EnclosureMetadata metadata;
+		try {
+			metadata = enclosureCacheServices.getEnclosureMetadata(enclosureId);
+		} catch (DownloadException e) {
+			checkDeletePlis(parallelLookupServices.join(enclosureId, context));
+			throw e;
+		}
+		EnclosureRequestContext loaded = parallelLookupServices.join(enclosureId, context);
+		loaded.setMetadata(metadata);
+		return loaded;
+	}
+
+	private EnclosureMetadata getMetadata(EnclosureRequestContext context) {
+		if (context.getMetadata() == null) {
+			context.setMetadata(enclosureCacheServices.getEnclosureMetadata(context.getEnclosureId()));
+		}
+		return context.getMetadata();
 	}
 }
@@ -0,0 +1,121 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import fr.gouv.culture.francetransfert.core.exception.StorageException;
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Presigned download URLs, reused for the same bucket and enclosure until a
+ * safety margin before their expiry : a reused URL costs no storage call, the
+ * zipped enclosure name is only listed when a URL is minted. The URL only grants access to the zipped
+ * enclosure, the download authorization and the per-recipient download count
+ * are still checked on each request before it is returned.
+ */
+@Service
+public class DownloadUrlServices {
+
+	@Value("${download.url.expire.minutes:2}")
+	private int expireInMinutes;
+
+	@Value("${download.url.safety.margin.seconds:30}")
+	private long safetyMarginSeconds;
+
+	@Value("${download.url.cache.maxSize:10000}")
+	private long maxSize;
+
+	@Autowired
+	private StorageManager storageManager;
+
+	@Autowired
+	private StorageResilienceServices storageResilienceServices;
+
+	@Autowired
+	private SingleFlightServices singleFlightServices;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private Cache<String, SignedUrl> signedUrls;
+
+	private Timer mintTimer;
+
+	@PostConstruct
+	public void init() {
+		long reuseSeconds = Math.max(0, TimeUnit.MINUTES.toSeconds(expireInMinutes) - safetyMarginSeconds);
+		signedUrls = Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(reuseSeconds, TimeUnit.SECONDS)
+				.recordStats().build();
+		CaffeineCacheMetrics.monitor(meterRegistry, signedUrls, "download-url");
+		mintTimer = Timer.builder("ft.download.url.mint").description("Presigned download URL generation")
+				.register(meterRegistry);
+	}
+
+	/**
+	 * Get a presigned URL of the zipped enclosure valid for at least the safety
+	 * margin
+	 *
+	 * @param enclosureId
+	 * @param bucketName
+	 * @return download URL
+	 * @throws StorageException
+	 */
+	public String getDownloadUrl(String enclosureId, String bucketName) throws StorageException {
+		// concurrent downloads of an enclosure share the storage calls
+		return singleFlightServices.execute("download-url", bucketName + "/" + enclosureId,
+				() -> loadDownloadUrl(enclosureId, bucketName));
+	}
+
+	private String loadDownloadUrl(String enclosureId, String bucketName) throws StorageException {
+		String key = bucketName + "/" + enclosureId;
+		SignedUrl signedUrl = signedUrls.getIfPresent(key);
+		if (signedUrl == null) {
+			String fileToDownload = storageResilienceServices.call("getZippedEnclosureName",
+					() -> storageManager.getZippedEnclosureName(enclosureId));
+			long start = System.nanoTime();
+			String downloadURL = storageResilienceServices.call("generateDownloadURL",
+					() -> storageManager.generateDownloadURL(bucketName, fileToDownload, expireInMinutes)).toString();
+			mintTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			signedUrl = new SignedUrl(enclosureId, downloadURL);
+			signedUrls.put(key, signedUrl);
+		}
+		return signedUrl.getUrl();
+	}
+
+	@EventListener
+	public void onEnclosureInvalidated(EnclosureInvalidatedEvent event) {
+		if (event.getEnclosureId() == null) {
+			signedUrls.invalidateAll();
+		} else {
+			signedUrls.asMap().values().removeIf(signedUrl -> event.getEnclosureId().equals(signedUrl.getEnclosureId()));
+		}
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class SignedUrl {
+		private String enclosureId;
+		private String url;
+	}
+}
@@ -0,0 +1,310 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.resources.model.DirectoryRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureListing;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.resources.model.FileRepresentation;
+import fr.gouv.culture.francetransfert.core.enums.EnclosureKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.SenderKeysEnum;
+import fr.gouv.culture.francetransfert.core.utils.DateUtils;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * In memory near-cache of the enclosure metadata read by the download info
+ * endpoints. Entries never outlive the enclosure expiration date and are
+ * invalidated on every node through a Redis pub/sub channel, the message being
+ * the enclosure id. Concurrent misses on the same enclosure share a single
+ * load, a load overtaken by an invalidation is returned to its callers but not
+ * kept.
+ * <p>
+ * This API does not write the cached fields, it only invalidates the
+ * enclosures it finds deleted. The components updating an enclosure (upload
+ * API on an expiration change, worker on a deletion) must publish its id on the
+ * invalidation channel. Until they do, an update is seen after at most the
+ * ttl.
+ */
+@Service
+public class EnclosureCacheServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EnclosureCacheServices.class);
+
+	private static final String FLIGHT = "enclosure";
+
+	@Value("${enclosure.cache.enabled:true}")
+	private boolean cacheEnabled;
+
+	@Value("${enclosure.cache.maxSize:10000}")
+	private long maxSize;
+
+	@Value("${enclosure.cache.ttl.minutes:10}")
+	private long ttlMinutes;
+
+	@Value("${enclosure.cache.invalidation.channel:ft-enclosure-invalidation}")
+	private String invalidationChannel;
+
+	@Value("${bucket.prefix}")
+	private String bucketPrefix;
+
+	@Autowired
+	private EnclosureListingServices enclosureListingServices;
+
+	@Autowired
+	private MetaloadReadServices metaloadReadServices;
+
+	@Autowired
+	private MetaloadChannelServices metaloadChannelServices;
+
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private ParallelLookupServices parallelLookupServices;
+
+	@Autowired
+	private SingleFlightServices singleFlightServices;
+
+	private Cache<String, EnclosureMetadata> cache;
+
+	/**
+	 * Bumped by every invalidation, before the entries are dropped
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	@PostConstruct
+	public void init() {
+		cache = Caffeine.newBuilder().maximumSize(maxSize).expireAfter(new EnclosureExpiry()).recordStats().build();
+		CaffeineCacheMetrics.monitor(meterRegistry, cache, "enclosure");
+		if (cacheEnabled) {
+			// messages may have been missed while the channel was down
+			metaloadChannelServices.subscribe(invalidationChannel, this::onInvalidation, () -> onInvalidation(null));
+		}
+	}
+
+	/**
+	 * Get the enclosure metadata from the near-cache, loading it from Redis on a
+	 * miss
+	 *
+	 * @param enclosureId
+	 * @return enclosure metadata
+	 */
+	public EnclosureMetadata getEnclosureMetadata(String enclosureId) throws DownloadException {
+		if (!cacheEnabled) {
+			return singleFlightServices.execute(FLIGHT, enclosureId, () -> loadEnclosureMetadata(enclosureId));
+		}
+		EnclosureMetadata metadata = cache.getIfPresent(enclosureId);
+		if (metadata == null) {
+			metadata = singleFlightServices.execute(FLIGHT, enclosureId, () -> {
+				long loadGeneration = generation.get();
+				EnclosureMetadata loaded = loadEnclosureMetadata(enclosureId);
+				cache.put(enclosureId, loaded);
+				if (generation.get() != loadGeneration) {
+					// invalidated while loading, the data read may be outdated
+					cache.invalidate(enclosureId);
+				}
+				return loaded;
+			});
+		}
+		return metadata;
+	}
+
+	/**
+	 * Drop the enclosure from the local near-cache only
+	 *
+	 * @param enclosureId
+	 */
+	public void evictLocal(String enclosureId) {
+		onInvalidation(enclosureId);
+	}
+
+	/**
+	 * Drop the enclosure from the near-cache of every node
+	 *
+	 * @param enclosureId
+	 */
+	public void invalidate(String enclosureId) {
+		onInvalidation(enclosureId);
+		metaloadChannelServices.publish(invalidationChannel, enclosureId);
+	}
+
+	private EnclosureMetadata loadEnclosureMetadata(String enclosureId) throws DownloadException {
+		try {
+			// independent reads, the enclosure and sender hashes are read by the current
+			// thread in a single round trip
+			CompletableFuture<EnclosureListing> listing = parallelLookupServices
+					.submit(() -> enclosureListingServices.getEnclosureListing(enclosureId));
+			EnclosureHashes hashes = metaloadReadServices.read(jedis -> readHashes(jedis, enclosureId),
+					read -> !read.getEnclosure().isEmpty() && read.getSenderMail() != null);
+			Map<String, String> enclosureMap = hashes.getEnclosure();
+			if (enclosureMap.isEmpty()) {
+				throw new DownloadException(ErrorEnum.WRONG_ENCLOSURE.getValue(), enclosureId);
+			}
+			EnclosureMetadata metadata = EnclosureMetadata.builder().enclosureId(enclosureId)
+					.expirationDate(DateUtils.convertStringToLocalDate(
+							enclosureMap.get(EnclosureKeysEnum.EXPIRED_TIMESTAMP.getKey())))
+					.message(enclosureMap.get(EnclosureKeysEnum.MESSAGE.getKey()))
+					.withPassword(StringUtils.isNotEmpty(enclosureMap.get(EnclosureKeysEnum.PASSWORD.getKey())))
+					.publicLink(Boolean.valueOf(enclosureMap.get(EnclosureKeysEnum.PUBLIC_LINK.getKey())))
+					.senderMail(hashes.getSenderMail()).bucketName(bucketName(enclosureMap))
+					.hashFile(enclosureMap.get(EnclosureKeysEnum.HASH_FILE.getKey()))
+					.listing(parallelLookupServices.join(enclosureId, listing)).build();
+			metadata.setVersion(version(metadata));
+			return metadata;
+		} catch (DownloadException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
+		}
+	}
+
+	private static EnclosureHashes readHashes(Jedis jedis, String enclosureId) {
+		Pipeline pipeline = jedis.pipelined();
+		Response<Map<String, String>> enclosure = pipeline.hgetAll(RedisKeysEnum.FT_ENCLOSURE.getKey(enclosureId));
+		Response<String> senderMail = pipeline.hget(RedisKeysEnum.FT_SENDER.getKey(enclosureId),
+				SenderKeysEnum.EMAIL.getKey());
+		pipeline.sync();
+		return new EnclosureHashes(enclosure.get(), senderMail.get());
+	}
+
+	/**
+	 * Bucket of the enclosure, one per creation day, named from the enclosure
+	 * hash as RedisUtils.getBucketName does
+	 */
+	private String bucketName(Map<String, String> enclosureMap) {
+		String timestamp = enclosureMap.get(EnclosureKeysEnum.TIMESTAMP.getKey());
+		if (StringUtils.isBlank(timestamp)) {
+			return null;
+		}
+		return bucketPrefix + DateUtils.convertStringToLocalDate(timestamp).format(DateTimeFormatter.BASIC_ISO_DATE);
+	}
+
+	/**
+	 * Digest of the enclosure data exposed by the download info endpoints,
+	 * computed once per load
+	 */
+	static String version(EnclosureMetadata metadata) throws NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		update(digest, metadata.getHashFile());
+		update(digest, String.valueOf(metadata.getExpirationDate()));
+		update(digest, metadata.getSenderMail());
+		update(digest, metadata.getMessage());
+		update(digest, String.valueOf(metadata.isWithPassword()));
+		EnclosureListing listing = metadata.getListing();
+		if (listing != null) {
+			for (FileRepresentation rootFile : listing.getRootFiles()) {
+				update(digest, rootFile.getName());
+				update(digest, String.valueOf(rootFile.getSize()));
+			}
+			update(digest, "");
+			for (DirectoryRepresentation rootDir : listing.getRootDirs()) {
+				update(digest, rootDir.getName());
+				update(digest, String.valueOf(rootDir.getTotalSize()));
+			}
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 16));
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		if (value != null) {
+			digest.update(value.getBytes(StandardCharsets.UTF_8));
+		}
+		// separator, so that consecutive fields cannot be shifted
+		digest.update((byte) 0);
+	}
+
+	private void onInvalidation(String enclosureId) {
+		LOGGER.debug("enclosure {} invalidated", enclosureId);
+		generation.incrementAndGet();
+		singleFlightServices.forget(FLIGHT, enclosureId);
+		if (enclosureId == null) {
+			cache.invalidateAll();
+		} else {
+			cache.invalidate(enclosureId);
+		}
+		eventPublisher.publishEvent(new EnclosureInvalidatedEvent(enclosureId));
+	}
+
+	/**
+	 * Expire entries after the configured ttl, or at the end of the enclosure
+	 * validity if it comes first
+	 */
+	private class EnclosureExpiry implements Expiry<String, EnclosureMetadata> {
+
+		@Override
+		public long expireAfterCreate(String enclosureId, EnclosureMetadata metadata, long currentTime) {
+			long ttl = TimeUnit.MINUTES.toNanos(ttlMinutes);
+			if (metadata.getExpirationDate() == null) {
+				return ttl;
+			}
+			LocalDateTime endOfValidity = metadata.getExpirationDate().plusDays(1).atStartOfDay();
+			long untilEndOfValidity = Duration
+					.between(LocalDateTime.now(ZoneId.systemDefault()), endOfValidity).toNanos();
+			return Math.max(0, Math.min(ttl, untilEndOfValidity));
+		}
+
+		@Override
+		public long expireAfterUpdate(String enclosureId, EnclosureMetadata metadata, long currentTime,
+				long currentDuration) {
+			return expireAfterCreate(enclosureId, metadata, currentTime);
+		}
+
+		@Override
+		public long expireAfterRead(String enclosureId, EnclosureMetadata metadata, long currentTime,
+				long currentDuration) {
+			return currentDuration;
+		}
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class EnclosureHashes {
+		private Map<String, String> enclosure;
+		private String senderMail;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Loads the {@link EnclosureRequestContext} of a download request : the admin
+ * token existence, the recipients of the enclosure, the recipient hash and, for
+ * the password validations only, the enclosure hash are read in a single
+ * pipeline, plus one round trip when the recipient id has to be resolved from
+ * its mail. The info requests get the enclosure fields from the near-cache and
+ * are served by a replica when one is in sync, the password validations are
+ * read on the master.
+ */
+@Service
+public class EnclosureContextServices {
+
+	@Autowired
+	private Pool<Jedis> metaloadPool;
+
+	@Autowired
+	private MetaloadReadServices metaloadReadServices;
+
+	/**
+	 * Load the context of a public download, without recipient
+	 *
+	 * @param enclosureId
+	 * @param withEnclosure read the enclosure hash too, for the password
+	 *                      validations
+	 * @return request context
+	 */
+	public EnclosureRequestContext load(String enclosureId, boolean withEnclosure) throws DownloadException {
+		return load(enclosureId, null, null, withEnclosure);
+	}
+
+	/**
+	 * Load the context of a recipient download. The recipient id is resolved from
+	 * the recipient mail when it is not known yet.
+	 *
+	 * @param enclosureId
+	 * @param recipientMail
+	 * @param recipientId
+	 * @param withEnclosure read the enclosure hash too, for the password
+	 *                      validations
+	 * @return request context
+	 */
+	public EnclosureRequestContext load(String enclosureId, String recipientMail, String recipientId,
+			boolean withEnclosure) throws DownloadException {
+		boolean withRecipient = StringUtils.isNotBlank(recipientMail) || StringUtils.isNotBlank(recipientId);
+		try {
+			if (withEnclosure) {
+				// password validations, read on the master along with the try count
+				try (Jedis jedis = metaloadPool.getResource()) {
+					return read(jedis, enclosureId, recipientMail, recipientId, true);
+				}
+			}
+			// a lagging replica may not have the enclosure or the recipient yet
+			return metaloadReadServices.read(jedis -> read(jedis, enclosureId, recipientMail, recipientId, false),
+					context -> context.isAdminTokenPresent() && (!withRecipient || !context.getRecipient().isEmpty()));
+		} catch (Exception e) {
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
+		}
+	}
+
+	private static EnclosureRequestContext read(Jedis jedis, String enclosureId, String recipientMail,
+			String recipientId, boolean withEnclosure) {
+		boolean withRecipient = StringUtils.isNotBlank(recipientMail) || StringUtils.isNotBlank(recipientId);
+		Pipeline pipeline = jedis.pipelined();
+		Response<Map<String, String>> enclosureResponse = withEnclosure
+				? pipeline.hgetAll(RedisKeysEnum.FT_ENCLOSURE.getKey(enclosureId))
+				: null;
+		Response<Boolean> adminTokenResponse = pipeline.exists(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosureId));
+		Response<Map<String, String>> recipientsResponse = null;
+		Response<Map<String, String>> recipientResponse = null;
+		if (withRecipient) {
+			recipientsResponse = pipeline.hgetAll(RedisKeysEnum.FT_RECIPIENTS.getKey(enclosureId));
+		}
+		if (StringUtils.isNotBlank(recipientId)) {
+			recipientResponse = pipeline.hgetAll(RedisKeysEnum.FT_RECIPIENT.getKey(recipientId));
+		}
+		pipeline.sync();
+
+		Map<String, String> recipients = recipientsResponse != null
+				? EnclosureRequestContext.orEmpty(recipientsResponse.get())
+				: Collections.emptyMap();
+		String resolvedRecipientId = recipientId;
+		if (withRecipient && StringUtils.isBlank(resolvedRecipientId)) {
+			resolvedRecipientId = recipients.get(recipientMail);
+			if (resolvedRecipientId != null) {
+				recipientResponse = pipeline.hgetAll(RedisKeysEnum.FT_RECIPIENT.getKey(resolvedRecipientId));
+				pipeline.sync();
+			}
+		}
+		return new EnclosureRequestContext(enclosureId,
+				enclosureResponse != null ? EnclosureRequestContext.orEmpty(enclosureResponse.get()) : null,
+				Boolean.TRUE.equals(adminTokenResponse.get()), recipients, resolvedRecipientId,
+				recipientResponse != null ? EnclosureRequestContext.orEmpty(recipientResponse.get())
+						: Collections.emptyMap());
+	}
+
+	/**
+	 * Load the info contexts of several enclosures for the same recipient in two
+	 * round trips, whatever the number of enclosures. The enclosure hashes are
+	 * not read, the lookups are served by a replica unless one of the enclosures
+	 * is missing there.
+	 *
+	 * @param enclosureIds
+	 * @param recipientMail
+	 * @return request contexts by enclosure id, in the given order
+	 */
+	public Map<String, EnclosureRequestContext> loadAll(Collection<String> enclosureIds, String recipientMail)
+			throws DownloadException {
+		try {
+			return metaloadReadServices.read(jedis -> readAll(jedis, enclosureIds, recipientMail),
+					contexts -> contexts.values().stream().allMatch(EnclosureRequestContext::isAdminTokenPresent));
+		} catch (Exception e) {
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), String.join(",", enclosureIds), e);
+		}
+	}
+
+	private static Map<String, EnclosureRequestContext> readAll(Jedis jedis, Collection<String> enclosureIds,
+			String recipientMail) {
+		Pipeline pipeline = jedis.pipelined();
+		Map<String, Response<Boolean>> adminTokenResponses = new LinkedHashMap<>();
+		Map<String, Response<Map<String, String>>> recipientsResponses = new LinkedHashMap<>();
+		for (String enclosureId : enclosureIds) {
+			adminTokenResponses.put(enclosureId, pipeline.exists(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosureId)));
+			recipientsResponses.put(enclosureId, pipeline.hgetAll(RedisKeysEnum.FT_RECIPIENTS.getKey(enclosureId)));
+		}
+		pipeline.sync();
+
+		Map<String, Response<Map<String, String>>> recipientResponses = new LinkedHashMap<>();
+		for (String enclosureId : enclosureIds) {
+			String recipientId = EnclosureRequestContext.orEmpty(recipientsResponses.get(enclosureId).get())
+					.get(recipientMail);
+			if (recipientId != null) {
+				recipientResponses.put(enclosureId, pipeline.hgetAll(RedisKeysEnum.FT_RECIPIENT.getKey(recipientId)));
+			}
+		}
+		if (!recipientResponses.isEmpty()) {
+			pipeline.sync();
+		}
+
+		Map<String, EnclosureRequestContext> contexts = new LinkedHashMap<>();
+		for (String enclosureId : enclosureIds) {
+			Map<String, String> recipients = EnclosureRequestContext
+					.orEmpty(recipientsResponses.get(enclosureId).get());
+			Response<Map<String, String>> recipientResponse = recipientResponses.get(enclosureId);
+			contexts.put(enclosureId, new EnclosureRequestContext(enclosureId, null,
+					Boolean.TRUE.equals(adminTokenResponses.get(enclosureId).get()), recipients,
+					recipients.get(recipientMail), recipientResponse != null
+							? EnclosureRequestContext.orEmpty(recipientResponse.get())
+							: Collections.emptyMap()));
+		}
+		return contexts;
+	}
+
+	/**
+	 * Read several hashes of the info endpoints in a single round trip
+	 *
+	 * @param keys
+	 * @param complete tells whether the hashes read on a replica can be trusted,
+	 *                 they are read again on the master otherwise
+	 * @return the hashes in the order of the keys, empty for missing keys
+	 */
+	public List<Map<String, String>> hgetAll(List<String> keys, Predicate<List<Map<String, String>>> complete)
+			throws DownloadException {
+		try {
+			return metaloadReadServices.read(jedis -> {
+				Pipeline pipeline = jedis.pipelined();
+				List<Response<Map<String, String>>> responses = new ArrayList<>(keys.size());
+				keys.forEach(key -> responses.add(pipeline.hgetAll(key)));
+				pipeline.sync();
+				List<Map<String, String>> hashes = new ArrayList<>(keys.size());
+				responses.forEach(response -> hashes.add(EnclosureRequestContext.orEmpty(response.get())));
+				return hashes;
+			}, complete);
+		} catch (Exception e) {
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), null, e);
+		}
+	}
+}
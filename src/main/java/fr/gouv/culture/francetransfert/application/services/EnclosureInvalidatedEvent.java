@@ -0,0 +1,21 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Published when an enclosure is deleted or changed, either locally or on
+ * another node. A null enclosure id means every enclosure.
+ */
+@Getter
+@AllArgsConstructor
+public class EnclosureInvalidatedEvent {
+	private String enclosureId;
+}
@@ -0,0 +1,113 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.resources.model.DirectoryRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureListing;
+import fr.gouv.culture.francetransfert.application.resources.model.FileRepresentation;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RootDirKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RootFileKeysEnum;
+import fr.gouv.culture.francetransfert.core.utils.RedisUtils;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Reads the root files and root dirs of an enclosure with pipelined requests :
+ * one round trip for both lists, then one round trip per chunk of size fields,
+ * instead of one round trip per entry. Served by a metaload replica when
+ * replica reads are enabled.
+ */
+@Service
+public class EnclosureListingServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EnclosureListingServices.class);
+
+	@Value("${enclosure.listing.pipeline.chunk:1000}")
+	private int chunkSize;
+
+	@Autowired
+	private MetaloadReadServices metaloadReadServices;
+
+	public EnclosureListing getEnclosureListing(String enclosureId) throws DownloadException {
+		try {
+			// an enclosure always holds a root file or dir, an empty listing is not
+			// replicated yet
+			return metaloadReadServices.read(jedis -> readListing(jedis, enclosureId),
+					listing -> !listing.getRootFiles().isEmpty() || !listing.getRootDirs().isEmpty());
+		} catch (Exception e) {
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
+		}
+	}
+
+	private EnclosureListing readListing(Jedis jedis, String enclosureId) {
+		Pipeline pipeline = jedis.pipelined();
+		Response<List<String>> rootFilesResponse = pipeline
+				.lrange(RedisKeysEnum.FT_ROOT_FILES.getKey(enclosureId), 0, -1);
+		Response<List<String>> rootDirsResponse = pipeline.lrange(RedisKeysEnum.FT_ROOT_DIRS.getKey(enclosureId),
+				0, -1);
+		pipeline.sync();
+
+		List<String> rootFileNames = rootFilesResponse.get();
+		List<String> rootDirNames = rootDirsResponse.get();
+
+		// size fields of files and dirs share the same chunks
+		List<Response<String>> sizes = new ArrayList<>(rootFileNames.size() + rootDirNames.size());
+		for (String rootFileName : rootFileNames) {
+			String hashRootFile = RedisUtils.generateHashsha1(enclosureId + ":" + rootFileName);
+			sizes.add(pipeline.hget(RedisKeysEnum.FT_ROOT_FILE.getKey(hashRootFile),
+					RootFileKeysEnum.SIZE.getKey()));
+			syncIfChunkFull(pipeline, sizes.size());
+		}
+		for (String rootDirName : rootDirNames) {
+			String hashRootDir = RedisUtils.generateHashsha1(enclosureId + ":" + rootDirName);
+			sizes.add(pipeline.hget(RedisKeysEnum.FT_ROOT_DIR.getKey(hashRootDir),
+					RootDirKeysEnum.TOTAL_SIZE.getKey()));
+			syncIfChunkFull(pipeline, sizes.size());
+		}
+		if (sizes.size() % chunkSize != 0) {
+			pipeline.sync();
+		}
+
+		List<FileRepresentation> rootFiles = new ArrayList<>(rootFileNames.size());
+		for (int i = 0; i < rootFileNames.size(); i++) {
+			FileRepresentation rootFile = new FileRepresentation();
+			rootFile.setName(rootFileNames.get(i));
+			rootFile.setSize(Long.valueOf(sizes.get(i).get()));
+			rootFiles.add(rootFile);
+		}
+		List<DirectoryRepresentation> rootDirs = new ArrayList<>(rootDirNames.size());
+		for (int i = 0; i < rootDirNames.size(); i++) {
+			DirectoryRepresentation rootDir = new DirectoryRepresentation();
+			rootDir.setName(rootDirNames.get(i));
+			rootDir.setTotalSize(Long.valueOf(sizes.get(rootFileNames.size() + i).get()));
+			rootDirs.add(rootDir);
+		}
+		LOGGER.debug("enclosure {} listing: {} root files, {} root dirs", enclosureId, rootFiles.size(),
+				rootDirs.size());
+		return new EnclosureListing(rootFiles, rootDirs);
+	}
+
+	private void syncIfChunkFull(Pipeline pipeline, int pending) {
+		if (pending % chunkSize == 0) {
+			pipeline.sync();
+		}
+	}
+}
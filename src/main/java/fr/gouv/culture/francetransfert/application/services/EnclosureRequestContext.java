@@ -0,0 +1,91 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.core.enums.EnclosureKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RecipientKeysEnum;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Snapshot of the enclosure and recipient hashes read once at the beginning of
+ * a download request, shared by every validation step of that request.
+ */
+@Getter
+@RequiredArgsConstructor
+public class EnclosureRequestContext {
+
+	private final String enclosureId;
+
+	/** enclosure hash, only read for the password validations */
+	private final Map<String, String> enclosure;
+
+	private final boolean adminTokenPresent;
+
+	/** recipient mail to recipient id */
+	private final Map<String, String> recipients;
+
+	private final String recipientId;
+
+	private final Map<String, String> recipient;
+
+	/** near-cached enclosure metadata, loaded along with the context */
+	@Setter
+	private EnclosureMetadata metadata;
+
+	public boolean isPublicLink() {
+		return Boolean.parseBoolean(getEnclosureValue(EnclosureKeysEnum.PUBLIC_LINK));
+	}
+
+	public String getEncryptedPassword() {
+		return getEnclosureValue(EnclosureKeysEnum.PASSWORD);
+	}
+
+	public String getRecipientId(String recipientMail) {
+		return recipients.get(recipientMail);
+	}
+
+	public boolean isRecipientInEnclosure() {
+		return recipientId != null && recipients.containsValue(recipientId);
+	}
+
+	public boolean isRecipientDeleted() {
+		return StringUtils.equalsAny(getRecipientValue(RecipientKeysEnum.IS_DELETED), "1", "true");
+	}
+
+	public int getNumberOfDownload() {
+		return NumberUtils.toInt(getRecipientValue(RecipientKeysEnum.NB_DL));
+	}
+
+	public int getPasswordTryCount() {
+		return NumberUtils.toInt(getRecipientValue(RecipientKeysEnum.PASSWORD_TRY_COUNT));
+	}
+
+	private String getEnclosureValue(EnclosureKeysEnum key) {
+		if (enclosure == null) {
+			throw new IllegalStateException("Enclosure hash of " + enclosureId + " not loaded");
+		}
+		return enclosure.get(key.getKey());
+	}
+
+	private String getRecipientValue(RecipientKeysEnum key) {
+		return recipient != null ? recipient.get(key.getKey()) : null;
+	}
+
+	static Map<String, String> orEmpty(Map<String, String> map) {
+		return map != null ? map : Collections.emptyMap();
+	}
+}
@@ -0,0 +1,339 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Outbox of the events pushed to the Redis worker queues (stat, satisfaction,
+ * ...). Requests only add the event to a bounded in memory buffer, a
+ * background worker pushes the buffer in pipelined batches. Events that cannot
+ * be pushed, or that do not fit in the buffer, are appended to a local spool
+ * file. After a failed push Redis is retried with an exponential backoff, the
+ * buffer being spooled meanwhile, and the spool is replayed before the buffer
+ * so that events keep their order, except those overflowing the buffer which
+ * overtake the buffered ones.
+ * <p>
+ * Events are pushed with RPUSH on the queue, the command behind
+ * {@code RedisManager.publishFT} : the workers keep popping the same lists, in
+ * the same order, only the round trips are shared.
+ */
+@Service
+public class EventOutboxServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(EventOutboxServices.class);
+
+	private static final String SPOOL_FILE = "outbox.spool";
+
+	private static final String REPLAY_FILE = "outbox.replay";
+
+	private static final String OFFSET_FILE = "outbox.replay.offset";
+
+	private static final String SEPARATOR = "\t";
+
+	private static final String NEWLINE = "\n";
+
+	@Value("${event.outbox.capacity:10000}")
+	private int capacity;
+
+	@Value("${event.outbox.batch.size:500}")
+	private int batchSize;
+
+	@Value("${event.outbox.flush.interval.millis:100}")
+	private long flushIntervalMillis;
+
+	@Value("${event.outbox.spool.dir:/var/opt/FTR/spool/FTR-download-api}")
+	private String spoolDir;
+
+	@Value("${event.outbox.retry.backoff.min.millis:1000}")
+	private long minRetryBackoffMillis;
+
+	@Value("${event.outbox.retry.backoff.max.millis:30000}")
+	private long maxRetryBackoffMillis;
+
+	@Autowired
+	private Pool<Jedis> metaloadPool;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private final Queue<OutboxEvent> buffer = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger depth = new AtomicInteger();
+
+	private final Object spoolLock = new Object();
+
+	private ScheduledExecutorService worker;
+
+	private Path spoolFile;
+
+	private Path replayFile;
+
+	private Path offsetFile;
+
+	/** worker thread only */
+	private long retryBackoffMillis;
+
+	/** worker thread only, no push before this nano time */
+	private long retryAt = System.nanoTime();
+
+	private Timer flushTimer;
+
+	private Counter spooledCounter;
+
+	private Counter droppedCounter;
+
+	@PostConstruct
+	public void init() throws IOException {
+		spoolFile = Paths.get(spoolDir, SPOOL_FILE);
+		replayFile = Paths.get(spoolDir, REPLAY_FILE);
+		offsetFile = Paths.get(spoolDir, OFFSET_FILE);
+		Files.createDirectories(spoolFile.getParent());
+		Gauge.builder("ft.outbox.depth", depth, AtomicInteger::get).description("Events waiting to be pushed")
+				.register(meterRegistry);
+		flushTimer = Timer.builder("ft.outbox.flush").description("Pipelined push of a batch of events")
+				.register(meterRegistry);
+		spooledCounter = Counter.builder("ft.outbox.spooled").description("Events written to the local spool")
+				.register(meterRegistry);
+		droppedCounter = Counter.builder("ft.outbox.dropped").description("Events lost").register(meterRegistry);
+		worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "event-outbox");
+			thread.setDaemon(true);
+			return thread;
+		});
+		worker.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void destroy() throws InterruptedException {
+		worker.shutdown();
+		worker.awaitTermination(flushIntervalMillis * 10, TimeUnit.MILLISECONDS);
+		// last chance, anything left goes to the spool
+		flush();
+	}
+
+	/**
+	 * Add an event to the outbox, never blocks on Redis
+	 *
+	 * @param queue   Redis queue
+	 * @param message event
+	 */
+	public void publish(String queue, String message) {
+		OutboxEvent event = new OutboxEvent(queue, message);
+		if (depth.incrementAndGet() <= capacity) {
+			buffer.offer(event);
+		} else {
+			// short append, the lock is never held while pushing to Redis
+			depth.decrementAndGet();
+			spool(List.of(event));
+		}
+	}
+
+	void flush() {
+		try {
+			if (hasBacklog()) {
+				// older events first : the buffer is pushed once the spool is drained
+				if (System.nanoTime() - retryAt < 0 || !replaySpool()) {
+					spool(drain(Integer.MAX_VALUE));
+					return;
+				}
+			}
+			List<OutboxEvent> batch = drain(batchSize);
+			while (!batch.isEmpty()) {
+				if (!push(batch)) {
+					spool(batch);
+					return;
+				}
+				batch = drain(batchSize);
+			}
+		} catch (Exception e) {
+			LOGGER.error("Event outbox flush failed : {}", e.getMessage(), e);
+		}
+	}
+
+	private List<OutboxEvent> drain(int maxEvents) {
+		List<OutboxEvent> batch = new ArrayList<>();
+		OutboxEvent event;
+		while (batch.size() < maxEvents && (event = buffer.poll()) != null) {
+			depth.decrementAndGet();
+			batch.add(event);
+		}
+		return batch;
+	}
+
+	private boolean push(List<OutboxEvent> batch) {
+		Map<String, List<String>> messagesByQueue = new LinkedHashMap<>();
+		batch.forEach(event -> messagesByQueue.computeIfAbsent(event.getQueue(), queue -> new ArrayList<>())
+				.add(event.getMessage()));
+		long start = System.nanoTime();
+		try (Jedis jedis = metaloadPool.getResource()) {
+			Pipeline pipeline = jedis.pipelined();
+			messagesByQueue.forEach((queue, messages) -> pipeline.rpush(queue, messages.toArray(new String[0])));
+			pipeline.sync();
+			retryBackoffMillis = 0;
+			return true;
+		} catch (Exception e) {
+			LOGGER.warn("Cannot push {} events to Redis : {}", batch.size(), e.getMessage());
+			// Redis is left alone until the backoff elapses, events are spooled meanwhile
+			retryBackoffMillis = Math.min(Math.max(retryBackoffMillis * 2, minRetryBackoffMillis),
+					maxRetryBackoffMillis);
+			retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryBackoffMillis);
+			return false;
+		} finally {
+			flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private boolean hasBacklog() {
+		return Files.exists(replayFile) || Files.exists(spoolFile);
+	}
+
+	private void spool(List<OutboxEvent> events) {
+		if (events.isEmpty()) {
+			return;
+		}
+		synchronized (spoolLock) {
+			try (BufferedWriter writer = Files.newBufferedWriter(spoolFile, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				for (OutboxEvent event : events) {
+					writer.write(event.getQueue() + SEPARATOR
+							+ Base64.getEncoder().encodeToString(event.getMessage().getBytes(StandardCharsets.UTF_8))
+							+ NEWLINE);
+				}
+				spooledCounter.increment(events.size());
+			} catch (IOException e) {
+				LOGGER.error("Cannot spool {} events, they are lost : {}", events.size(), e.getMessage(), e);
+				droppedCounter.increment(events.size());
+			}
+		}
+	}
+
+	/**
+	 * Stream the spool to Redis batch by batch, events spooled meanwhile go to a
+	 * new spool file. The spool lock is only held to switch the files, the
+	 * position reached in the replay file is saved after each batch so that a
+	 * failed replay, or a restarted node, resumes where it stopped.
+	 *
+	 * @return true if the spool is drained
+	 */
+	private boolean replaySpool() throws IOException {
+		while (true) {
+			synchronized (spoolLock) {
+				// a replay file left by a failed replay or a stopped node is replayed first
+				if (!Files.exists(replayFile)) {
+					if (!Files.exists(spoolFile)) {
+						return true;
+					}
+					Files.move(spoolFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+					saveReplayOffset(0);
+				}
+			}
+			if (!replay()) {
+				return false;
+			}
+			Files.delete(replayFile);
+			Files.deleteIfExists(offsetFile);
+		}
+	}
+
+	private boolean replay() throws IOException {
+		long offset = readReplayOffset();
+		int pushed = 0;
+		try (FileChannel channel = FileChannel.open(replayFile, StandardOpenOption.READ)) {
+			channel.position(offset);
+			BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+			List<OutboxEvent> batch = new ArrayList<>(batchSize);
+			long batchBytes = 0;
+			String line;
+			while ((line = reader.readLine()) != null || !batch.isEmpty()) {
+				if (line != null) {
+					// spooled lines are ASCII : queue name and Base64 message
+					batchBytes += line.length() + NEWLINE.length();
+					int separator = line.indexOf(SEPARATOR);
+					if (separator > 0) {
+						batch.add(new OutboxEvent(line.substring(0, separator), new String(
+								Base64.getDecoder().decode(line.substring(separator + 1)), StandardCharsets.UTF_8)));
+					}
+					if (batch.size() < batchSize) {
+						continue;
+					}
+				}
+				if (!push(batch)) {
+					LOGGER.info("{} spooled events pushed to Redis, replay resumed later", pushed);
+					return false;
+				}
+				pushed += batch.size();
+				offset += batchBytes;
+				saveReplayOffset(offset);
+				batch.clear();
+				batchBytes = 0;
+			}
+		}
+		LOGGER.info("{} spooled events pushed to Redis", pushed);
+		return true;
+	}
+
+	private long readReplayOffset() throws IOException {
+		if (!Files.exists(offsetFile)) {
+			return 0;
+		}
+		return NumberUtils.toLong(Files.readString(offsetFile, StandardCharsets.UTF_8).trim());
+	}
+
+	private void saveReplayOffset(long offset) throws IOException {
+		Files.writeString(offsetFile, Long.toString(offset), StandardCharsets.UTF_8);
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class OutboxEvent {
+		private String queue;
+		private String message;
+	}
+}
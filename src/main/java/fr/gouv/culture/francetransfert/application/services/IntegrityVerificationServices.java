@@ -0,0 +1,164 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.core.exception.StorageException;
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Memoizes the comparison between the hash stored in Redis and the ETag of the
+ * zipped enclosure in the object storage, so that the storage HEAD is done once
+ * per enclosure and ttl instead of once per request. A verification is only
+ * reused for the same Redis hash, concurrent verifications of the same hash
+ * share a single HEAD.
+ */
+@Service
+public class IntegrityVerificationServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(IntegrityVerificationServices.class);
+
+	@Value("${enclosure.integrity.ttl.minutes:15}")
+	private long ttlMinutes;
+
+	@Value("${enclosure.integrity.maxSize:10000}")
+	private long maxSize;
+
+	@Value("${enclosure.integrity.prefetch.enabled:false}")
+	private boolean prefetchEnabled;
+
+	@Value("${enclosure.integrity.prefetch.channel:ft-enclosure-uploaded}")
+	private String prefetchChannel;
+
+	@Autowired
+	private StorageManager storageManager;
+
+	@Autowired
+	private StorageResilienceServices storageResilienceServices;
+
+	@Autowired
+	private SingleFlightServices singleFlightServices;
+
+	@Autowired
+	private EnclosureCacheServices enclosureCacheServices;
+
+	@Autowired
+	private MetaloadChannelServices metaloadChannelServices;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private Cache<String, VerifiedIntegrity> verifiedEnclosures;
+
+	private ThreadPoolExecutor prefetchExecutor;
+
+	@PostConstruct
+	public void init() {
+		verifiedEnclosures = Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+				.recordStats().build();
+		CaffeineCacheMetrics.monitor(meterRegistry, verifiedEnclosures, "enclosure-integrity");
+		if (prefetchEnabled) {
+			// a single worker, newly uploaded enclosures beyond the queue are verified
+			// on their first request
+			prefetchExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000),
+					new ThreadPoolExecutor.DiscardPolicy());
+			metaloadChannelServices.subscribe(prefetchChannel, this::prefetch, () -> {
+			});
+		}
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (prefetchExecutor != null) {
+			prefetchExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Check that the zipped enclosure in the object storage is the one described
+	 * in Redis
+	 *
+	 * @param metadata enclosure metadata holding bucket name and Redis hash
+	 * @return false if the ETag differs from the Redis hash
+	 * @throws StorageException
+	 */
+	public boolean isIntegrityValid(EnclosureMetadata metadata) throws StorageException {
+		String hashFileFromRedis = metadata.getHashFile();
+		if (StringUtils.isBlank(hashFileFromRedis)) {
+			return true;
+		}
+		VerifiedIntegrity verified = verifiedEnclosures.getIfPresent(metadata.getEnclosureId());
+		if (verified != null && hashFileFromRedis.equals(verified.getHashFile())) {
+			return true;
+		}
+		return singleFlightServices.execute("integrity", metadata.getEnclosureId() + ":" + hashFileFromRedis,
+				() -> verify(metadata, hashFileFromRedis));
+	}
+
+	private boolean verify(EnclosureMetadata metadata, String hashFileFromRedis) throws StorageException {
+		String fileToDownload = storageResilienceServices.call("getZippedEnclosureName",
+				() -> storageManager.getZippedEnclosureName(metadata.getEnclosureId()));
+		String hashFileFromS3 = storageResilienceServices.call("getEtag",
+				() -> storageManager.getEtag(metadata.getBucketName(), fileToDownload));
+		if (!hashFileFromRedis.equals(hashFileFromS3)) {
+			verifiedEnclosures.invalidate(metadata.getEnclosureId());
+			return false;
+		}
+		verifiedEnclosures.put(metadata.getEnclosureId(), new VerifiedIntegrity(hashFileFromRedis));
+		return true;
+	}
+
+	@EventListener
+	public void onEnclosureInvalidated(EnclosureInvalidatedEvent event) {
+		if (event.getEnclosureId() == null) {
+			verifiedEnclosures.invalidateAll();
+		} else {
+			verifiedEnclosures.invalidate(event.getEnclosureId());
+		}
+	}
+
+	private void prefetch(String enclosureId) {
+		prefetchExecutor.execute(() -> {
+			try {
+				if (!isIntegrityValid(enclosureCacheServices.getEnclosureMetadata(enclosureId))) {
+					LOGGER.warn("msgtype: INVALID_HASH || enclosure: {} || prefetch", enclosureId);
+				}
+			} catch (Exception e) {
+				LOGGER.warn("Cannot verify integrity of enclosure {} ahead of time : {}", enclosureId, e.getMessage());
+			}
+		});
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class VerifiedIntegrity {
+		private String hashFile;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Redis pub/sub channels shared by the API nodes. Each subscription runs on its
+ * own daemon thread and is re-established after a connection loss.
+ */
+@Service
+public class MetaloadChannelServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetaloadChannelServices.class);
+
+	private static final long RESUBSCRIBE_DELAY_MILLIS = 5000;
+
+	@Autowired
+	private Pool<Jedis> metaloadPool;
+
+	private final List<JedisPubSub> subscriptions = new CopyOnWriteArrayList<>();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Publish a message on a channel, failures are logged and not propagated
+	 *
+	 * @param channel
+	 * @param message
+	 */
+	public void publish(String channel, String message) {
+		try (Jedis jedis = metaloadPool.getResource()) {
+			jedis.publish(channel, message);
+		} catch (Exception e) {
+			LOGGER.error("Cannot publish {} on channel {} : {}", message, channel, e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Subscribe to a channel
+	 *
+	 * @param channel
+	 * @param onMessage    called with each message received
+	 * @param onSubscribed called each time the subscription is (re)established,
+	 *                     messages may have been missed before
+	 */
+	public void subscribe(String channel, Consumer<String> onMessage, Runnable onSubscribed) {
+		JedisPubSub listener = new JedisPubSub() {
+			@Override
+			public void onSubscribe(String subscribedChannel, int subscribedChannels) {
+				LOGGER.info("Subscribed to channel {}", subscribedChannel);
+				onSubscribed.run();
+			}
+
+			@Override
+			public void onMessage(String messageChannel, String message) {
+				try {
+					onMessage.accept(message);
+				} catch (Exception e) {
+					LOGGER.error("Error handling {} from channel {} : {}", message, messageChannel, e.getMessage(), e);
+				}
+			}
+		};
+		subscriptions.add(listener);
+		Thread subscriber = new Thread(() -> listen(channel, listener), "channel-" + channel);
+		subscriber.setDaemon(true);
+		subscriber.start();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		running = false;
+		subscriptions.stream().filter(JedisPubSub::isSubscribed).forEach(JedisPubSub::unsubscribe);
+	}
+
+	private void listen(String channel, JedisPubSub listener) {
+		while (running) {
+			try (Jedis jedis = metaloadPool.getResource()) {
+				jedis.subscribe(listener, channel);
+			} catch (Exception e) {
+				LOGGER.warn("Channel {} lost : {}", channel, e.getMessage());
+			}
+			if (running) {
+				try {
+					TimeUnit.MILLISECONDS.sleep(RESUBSCRIBE_DELAY_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Periodic health probe of the metaload batch pool, replacing the PING done on
+ * every borrow and return. When the probe fails, the idle connections of the
+ * pool are dropped so that none opened before a failover or a restart is
+ * reused. Only the pool built by this module is probed : the pool of the core
+ * RedisManager is not exposed by FTR-core and keeps its own validation.
+ */
+@Service
+public class MetaloadPoolHealthServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetaloadPoolHealthServices.class);
+
+	@Value("${metaload.pool.health.interval.seconds:10}")
+	private long intervalSeconds;
+
+	@Autowired
+	private Pool<Jedis> metaloadPool;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private ScheduledExecutorService prober;
+
+	private PoolProbe batchProbe;
+
+	@PostConstruct
+	public void init() {
+		batchProbe = new PoolProbe("batch", metaloadPool);
+		if (intervalSeconds <= 0) {
+			return;
+		}
+		prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metaload-pool-health");
+			thread.setDaemon(true);
+			return thread;
+		});
+		prober.scheduleWithFixedDelay(this::probe, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (prober != null) {
+			prober.shutdownNow();
+		}
+	}
+
+	/**
+	 * Ping the metaload through the batch pool
+	 *
+	 * @return false if the metaload did not answer
+	 */
+	public boolean probe() {
+		return batchProbe.probe();
+	}
+
+	private class PoolProbe {
+
+		private final String name;
+
+		private final Pool<Jedis> pool;
+
+		private final Counter failures;
+
+		private volatile boolean healthy = true;
+
+		PoolProbe(String name, Pool<Jedis> pool) {
+			this.name = name;
+			this.pool = pool;
+			failures = Counter.builder("ft.metaload.pool.probe.failures").tag("pool", name)
+					.description("Failed health probes of the metaload pool").register(meterRegistry);
+		}
+
+		boolean probe() {
+			try (Jedis jedis = pool.getResource()) {
+				jedis.ping();
+				if (!healthy) {
+					LOGGER.info("Metaload {} pool healthy again", name);
+				}
+				healthy = true;
+				return true;
+			} catch (Exception e) {
+				failures.increment();
+				if (healthy) {
+					LOGGER.warn("Metaload {} pool health probe failed, idle connections dropped : {}", name,
+							e.getMessage());
+				}
+				healthy = false;
+				// the broken connection itself is invalidated when closed
+				pool.clear();
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Routes the read-only lookups of the info endpoints to the metaload replicas
+ * discovered from Sentinel. A replica is only used while its link to the master
+ * is up and its replication lag stays under the configured bounds. A read that
+ * fails on a replica or finds incomplete data, e.g. an enclosure not replicated
+ * yet, is done again on the master, so a lagging replica never reports a
+ * missing enclosure.
+ */
+@Service
+public class MetaloadReadServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetaloadReadServices.class);
+
+	@Value("${metaload.read.replicas.enabled:false}")
+	private boolean replicasEnabled;
+
+	@Value("${metaload.read.replicas.refresh.seconds:5}")
+	private long refreshSeconds;
+
+	@Value("${metaload.read.replicas.maxLag.seconds:2}")
+	private long maxLagSeconds;
+
+	@Value("${metaload.read.replicas.maxLag.bytes:1048576}")
+	private long maxLagBytes;
+
+	@Value("${metaload.read.replicas.poolconfig.maxTotal:64}")
+	private int replicaMaxTotal;
+
+	@Value("${metaload.sentinel.active:false}")
+	private boolean sentinelActive;
+
+	@Value("${metaload.sentinel.nodes:}")
+	private String sentinelNodes;
+
+	@Value("${metaload.sentinel.master.name:}")
+	private String sentinelMasterName;
+
+	@Value("${metaload.password:}")
+	private String password;
+
+	@Autowired
+	private Pool<Jedis> metaloadPool;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private final Map<HostAndPort, JedisPool> replicaPools = new ConcurrentHashMap<>();
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private volatile List<JedisPool> healthyReplicas = Collections.emptyList();
+
+	private ScheduledExecutorService refresher;
+
+	private Counter replicaReads;
+
+	private Counter masterReads;
+
+	private Counter fallbackReads;
+
+	@PostConstruct
+	public void init() {
+		replicaReads = readCounter("replica");
+		masterReads = readCounter("master");
+		fallbackReads = readCounter("fallback");
+		Gauge.builder("ft.metaload.replicas.healthy", this, services -> services.healthyReplicas.size())
+				.description("Replicas serving read-only lookups").register(meterRegistry);
+		if (!replicasEnabled) {
+			return;
+		}
+		if (!sentinelActive) {
+			LOGGER.warn("Metaload read replicas need the sentinel topology, every read stays on the master");
+			return;
+		}
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metaload-replicas");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (refresher != null) {
+			refresher.shutdownNow();
+		}
+		healthyReplicas = Collections.emptyList();
+		replicaPools.values().forEach(JedisPool::close);
+		replicaPools.clear();
+	}
+
+	/**
+	 * Read-only lookup, served by a healthy replica when there is one
+	 *
+	 * @param reader   read commands only
+	 * @param complete tells whether the replica result can be trusted, the
+	 *                 lookup being done again on the master otherwise
+	 * @return the result of the reader
+	 */
+	public <T> T read(Function<Jedis, T> reader, Predicate<T> complete) {
+		JedisPool replica = nextReplica();
+		if (replica != null) {
+			try (Jedis jedis = replica.getResource()) {
+				T result = reader.apply(jedis);
+				if (complete.test(result)) {
+					replicaReads.increment();
+					return result;
+				}
+			} catch (RuntimeException e) {
+				LOGGER.debug("Replica read failed, read again on the master : {}", e.getMessage());
+			}
+			fallbackReads.increment();
+		} else {
+			masterReads.increment();
+		}
+		try (Jedis jedis = metaloadPool.getResource()) {
+			return reader.apply(jedis);
+		}
+	}
+
+	int healthyReplicaCount() {
+		return healthyReplicas.size();
+	}
+
+	private JedisPool nextReplica() {
+		List<JedisPool> replicas = healthyReplicas;
+		if (replicas.isEmpty()) {
+			return null;
+		}
+		return replicas.get(Math.floorMod(next.getAndIncrement(), replicas.size()));
+	}
+
+	/**
+	 * Discover the replicas from Sentinel and keep the ones close enough to the
+	 * master
+	 */
+	void refresh() {
+		try {
+			List<HostAndPort> discovered = discoverReplicas();
+			long masterOffset;
+			try (Jedis master = metaloadPool.getResource()) {
+				masterOffset = offset(parseInfo(master.info("replication")), "master_repl_offset");
+			}
+			List<JedisPool> healthy = new ArrayList<>(discovered.size());
+			for (HostAndPort address : discovered) {
+				JedisPool pool = replicaPools.computeIfAbsent(address, this::replicaPool);
+				if (isInSync(address, pool, masterOffset)) {
+					healthy.add(pool);
+				}
+			}
+			healthyReplicas = Collections.unmodifiableList(healthy);
+			// replicas gone from the topology
+			replicaPools.keySet().removeIf(address -> {
+				if (discovered.contains(address)) {
+					return false;
+				}
+				replicaPools.get(address).close();
+				return true;
+			});
+		} catch (Exception e) {
+			// without a topology the master serves every read
+			healthyReplicas = Collections.emptyList();
+			LOGGER.warn("Cannot refresh the metaload replicas : {}", e.getMessage());
+		}
+	}
+
+	private List<HostAndPort> discoverReplicas() {
+		RuntimeException lastError = null;
+		for (String node : sentinelNodes.split(",")) {
+			if (StringUtils.isBlank(node)) {
+				continue;
+			}
+			try (Jedis sentinel = new Jedis(HostAndPort.from(node.trim()))) {
+				List<HostAndPort> replicas = new ArrayList<>();
+				for (Map<String, String> replica : sentinel.sentinelReplicas(sentinelMasterName)) {
+					if (isUsable(replica)) {
+						replicas.add(new HostAndPort(replica.get("ip"), Integer.parseInt(replica.get("port"))));
+					}
+				}
+				return replicas;
+			} catch (RuntimeException e) {
+				lastError = e;
+			}
+		}
+		throw lastError != null ? lastError : new IllegalStateException("no sentinel configured");
+	}
+
+	private static boolean isUsable(Map<String, String> replica) {
+		List<String> flags = Arrays.asList(StringUtils.defaultString(replica.get("flags")).split(","));
+		return !flags.contains("s_down") && !flags.contains("o_down") && !flags.contains("disconnected")
+				&& "ok".equals(replica.get("master-link-status"));
+	}
+
+	private boolean isInSync(HostAndPort address, JedisPool pool, long masterOffset) {
+		try (Jedis jedis = pool.getResource()) {
+			Map<String, String> info = parseInfo(jedis.info("replication"));
+			long lastIo = Long.parseLong(info.getOrDefault("master_last_io_seconds_ago", "-1"));
+			long lagBytes = masterOffset - offset(info, "slave_repl_offset");
+			boolean inSync = "up".equals(info.get("master_link_status")) && lastIo >= 0 && lastIo <= maxLagSeconds
+					&& lagBytes <= maxLagBytes;
+			if (!inSync) {
+				LOGGER.info("Metaload replica {} left out : link {}, last io {}s ago, {} bytes behind", address,
+						info.get("master_link_status"), lastIo, lagBytes);
+			}
+			return inSync;
+		} catch (RuntimeException e) {
+			LOGGER.info("Metaload replica {} left out : {}", address, e.getMessage());
+			return false;
+		}
+	}
+
+	private JedisPool replicaPool(HostAndPort address) {
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(replicaMaxTotal);
+		poolConfig.setMaxIdle(replicaMaxTotal);
+		poolConfig.setTestWhileIdle(true);
+		LOGGER.info("Metaload read pool on replica {}", address);
+		return new JedisPool(poolConfig, address.getHost(), address.getPort(), Protocol.DEFAULT_TIMEOUT,
+				StringUtils.isNotBlank(password) ? password : null);
+	}
+
+	private Counter readCounter(String target) {
+		return Counter.builder("ft.metaload.reads").tag("target", target)
+				.description("Read-only lookups by serving node").register(meterRegistry);
+	}
+
+	private static long offset(Map<String, String> info, String field) {
+		String value = info.get(field);
+		if (value == null) {
+			throw new IllegalStateException(field + " missing from INFO replication");
+		}
+		return Long.parseLong(value);
+	}
+
+	static Map<String, String> parseInfo(String info) {
+		Map<String, String> fields = new HashMap<>();
+		for (String line : info.split("\r?\n")) {
+			int separator = line.indexOf(':');
+			if (separator > 0 && !line.startsWith("#")) {
+				fields.put(line.substring(0, separator), line.substring(separator + 1).trim());
+			}
+		}
+		return fields;
+	}
+}
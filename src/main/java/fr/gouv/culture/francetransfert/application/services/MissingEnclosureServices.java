@@ -0,0 +1,275 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Negative cache of the enclosures known to be deleted or unknown, answering
+ * "definitely gone" without any Redis read.
+ * <p>
+ * Enclosure ids are stored as 32 bits fingerprints in open addressing tables
+ * of fixed size, 4 bytes per id : a live enclosure is only reported gone if it
+ * shares its slot neighbourhood and fingerprint with a missing one. Two
+ * generations are kept, the older one being dropped every half ttl or when the
+ * current one is three quarters full, so that an id is forgotten after at most
+ * the ttl. Deleted enclosures are added from a Redis channel and uploaded ones
+ * removed from the upload channel. The deletions found by this API are
+ * published on the deleted channel. The other deletions, by the sender or on
+ * expiration, must be published by the components doing them (upload API,
+ * worker), as the uploads on the upload channel. The messages are enclosure ids.
+ * Without them, a node only learns about a deletion on its next read.
+ */
+@Service
+public class MissingEnclosureServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MissingEnclosureServices.class);
+
+	private static final int EMPTY = 0;
+
+	private static final int REMOVED = 1;
+
+	private static final int MAX_PROBE = 16;
+
+	@Value("${enclosure.negative.enabled:true}")
+	private boolean enabled;
+
+	@Value("${enclosure.negative.capacity:1048576}")
+	private int capacity;
+
+	@Value("${enclosure.negative.ttl.minutes:60}")
+	private long ttlMinutes;
+
+	@Value("${enclosure.negative.deleted.channel:ft-enclosure-deleted}")
+	private String deletedChannel;
+
+	@Value("${enclosure.integrity.prefetch.channel:ft-enclosure-uploaded}")
+	private String uploadedChannel;
+
+	@Autowired
+	private MetaloadChannelServices metaloadChannelServices;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private volatile Generation current;
+
+	private volatile Generation previous;
+
+	private Counter hits;
+
+	private Counter inserts;
+
+	@PostConstruct
+	public void init() {
+		int size = Integer.highestOneBit(Math.max(MAX_PROBE, capacity) - 1) << 1;
+		current = new Generation(size);
+		previous = new Generation(size);
+		hits = meterRegistry.counter("ft.enclosure.negative.hits");
+		inserts = meterRegistry.counter("ft.enclosure.negative.inserts");
+		meterRegistry.gauge("ft.enclosure.negative.size", this, services -> services.size());
+		if (enabled) {
+			// ids deleted while the channel was down are found on their next request
+			metaloadChannelServices.subscribe(deletedChannel, this::markMissing, () -> {
+			});
+			metaloadChannelServices.subscribe(uploadedChannel, this::forget, () -> {
+			});
+		}
+	}
+
+	/**
+	 * @param enclosureId
+	 * @return true if the enclosure is known to be deleted or unknown
+	 */
+	public boolean isMissing(String enclosureId) {
+		if (!enabled || enclosureId == null) {
+			return false;
+		}
+		long hash = hash(enclosureId);
+		boolean missing = current.contains(hash) || previous.contains(hash);
+		if (missing) {
+			hits.increment();
+		}
+		return missing;
+	}
+
+	/**
+	 * Remember that the enclosure is deleted or unknown
+	 *
+	 * @param enclosureId
+	 */
+	public void markMissing(String enclosureId) {
+		if (!enabled || enclosureId == null) {
+			return;
+		}
+		long hash = hash(enclosureId);
+		Generation generation = rotateIfNeeded();
+		if (generation.add(hash)) {
+			inserts.increment();
+		}
+	}
+
+	/**
+	 * Remember on every node that the enclosure is deleted
+	 *
+	 * @param enclosureId
+	 */
+	public void publishDeleted(String enclosureId) {
+		markMissing(enclosureId);
+		if (enabled && enclosureId != null) {
+			metaloadChannelServices.publish(deletedChannel, enclosureId);
+		}
+	}
+
+	/**
+	 * Forget the enclosure, it is reported by Redis again
+	 *
+	 * @param enclosureId
+	 */
+	public void forget(String enclosureId) {
+		if (enclosureId == null) {
+			return;
+		}
+		long hash = hash(enclosureId);
+		current.remove(hash);
+		previous.remove(hash);
+	}
+
+	@EventListener
+	public void onEnclosureInvalidated(EnclosureInvalidatedEvent event) {
+		if (event.getEnclosureId() == null) {
+			synchronized (this) {
+				previous = new Generation(current.slots.length());
+				current = new Generation(current.slots.length());
+			}
+		} else {
+			forget(event.getEnclosureId());
+		}
+	}
+
+	int size() {
+		return current.count.get() + previous.count.get();
+	}
+
+	private Generation rotateIfNeeded() {
+		Generation generation = current;
+		if (!generation.isStale()) {
+			return generation;
+		}
+		synchronized (this) {
+			if (current == generation) {
+				LOGGER.debug("rotating missing enclosures, {} ids in the current generation", generation.count.get());
+				previous = generation;
+				current = new Generation(generation.slots.length());
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * FNV-1a 64 followed by the splitmix64 finalizer, the low bits select the
+	 * slot and the high bits make the fingerprint
+	 */
+	static long hash(String enclosureId) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : enclosureId.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+		hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+		return hash ^ (hash >>> 31);
+	}
+
+	private class Generation {
+
+		private final AtomicIntegerArray slots;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		private final long createdAt = System.nanoTime();
+
+		private Generation(int size) {
+			slots = new AtomicIntegerArray(size);
+		}
+
+		private boolean isStale() {
+			return count.get() > slots.length() / 4 * 3
+					|| System.nanoTime() - createdAt > TimeUnit.MINUTES.toNanos(ttlMinutes) / 2;
+		}
+
+		private boolean contains(long hash) {
+			return find(hash) >= 0;
+		}
+
+		private boolean add(long hash) {
+			int fingerprint = fingerprint(hash);
+			int mask = slots.length() - 1;
+			int slot = (int) hash & mask;
+			for (int probe = 0; probe < MAX_PROBE; probe++, slot = (slot + 1) & mask) {
+				int value = slots.get(slot);
+				if (value == fingerprint) {
+					return false;
+				}
+				if (value == EMPTY && slots.compareAndSet(slot, EMPTY, fingerprint)) {
+					count.incrementAndGet();
+					return true;
+				}
+				if (slots.get(slot) == fingerprint) {
+					return false;
+				}
+			}
+			// neighbourhood full, the id will be read from Redis again
+			return false;
+		}
+
+		private void remove(long hash) {
+			int slot = find(hash);
+			if (slot >= 0) {
+				// tombstone, the probe sequence of the following ids goes on
+				slots.compareAndSet(slot, fingerprint(hash), REMOVED);
+			}
+		}
+
+		private int find(long hash) {
+			int fingerprint = fingerprint(hash);
+			int mask = slots.length() - 1;
+			int slot = (int) hash & mask;
+			for (int probe = 0; probe < MAX_PROBE; probe++, slot = (slot + 1) & mask) {
+				int value = slots.get(slot);
+				if (value == fingerprint) {
+					return slot;
+				}
+				if (value == EMPTY) {
+					return -1;
+				}
+			}
+			return -1;
+		}
+
+		private int fingerprint(long hash) {
+			int fingerprint = (int) (hash >>> 32);
+			return fingerprint == EMPTY || fingerprint == REMOVED ? fingerprint + 2 : fingerprint;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/**
+ * Bounded executor on which the independent Redis and object storage lookups
+ * of a request are issued concurrently, the request thread joining them.
+ * Lookups submitted from a lookup thread run inline, so that a lookup never
+ * waits for a task queued behind it. When the queue is full the request thread
+ * runs the lookup itself.
+ */
+@Service
+public class ParallelLookupServices {
+
+	private static final ThreadLocal<Boolean> LOOKUP_THREAD = ThreadLocal.withInitial(() -> false);
+
+	@Value("${download.lookup.threads:32}")
+	private int threads;
+
+	@Value("${download.lookup.queue:1000}")
+	private int queueSize;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private ThreadPoolExecutor lookupPool;
+
+	private ExecutorService lookupExecutor;
+
+	@PostConstruct
+	public void init() {
+		lookupPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory("ft-lookup-"),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		lookupPool.allowCoreThreadTimeOut(true);
+		lookupExecutor = ExecutorServiceMetrics.monitor(meterRegistry, lookupPool, "download-lookup");
+	}
+
+	@PreDestroy
+	public void destroy() {
+		lookupPool.shutdownNow();
+	}
+
+	/**
+	 * Start a lookup
+	 *
+	 * @param lookup
+	 * @return the pending lookup, to {@link #join(String, CompletableFuture)}
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> lookup) {
+		if (LOOKUP_THREAD.get()) {
+			return run(lookup);
+		}
+		CompletableFuture<T> future = new CompletableFuture<>();
+		lookupExecutor.execute(() -> {
+			LOOKUP_THREAD.set(true);
+			try {
+				future.complete(lookup.call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				LOOKUP_THREAD.remove();
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Wait for a lookup. Runtime exceptions of the lookup (DownloadException,
+	 * ExpirationEnclosureException...) are rethrown as is, checked ones are
+	 * wrapped in a technical DownloadException.
+	 *
+	 * @param enclosureId enclosure of the request, for the error
+	 * @param lookup
+	 * @return lookup result
+	 */
+	public <T> T join(String enclosureId, CompletableFuture<T> lookup) throws DownloadException {
+		try {
+			return lookup.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
+		} catch (ExecutionException | CompletionException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, cause);
+		}
+	}
+
+	private static <T> CompletableFuture<T> run(Callable<T> lookup) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			future.complete(lookup.call());
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+}
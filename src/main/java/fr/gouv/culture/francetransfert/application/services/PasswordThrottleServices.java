@@ -0,0 +1,243 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.error.MaxTryException;
+import fr.gouv.culture.francetransfert.application.error.PasswordException;
+import fr.gouv.culture.francetransfert.application.error.TooManyRequestsException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import reactor.core.publisher.Mono;
+
+/**
+ * In memory throttle of the password attempts, checked before any Redis read
+ * or password decryption. Attempts are limited per (enclosure, recipient,
+ * client ip) and per client ip, with a token bucket of each kind. An attempt
+ * is taken before the check and given back unless the password turns out wrong,
+ * so that only failed checks are charged. The client ip is the one resolved by
+ * the container from the headers of the trusted proxies.
+ * <p>
+ * The buckets are slots of a fixed array, a key being hashed to its slot, and
+ * hold the theoretical arrival time of the next attempt (generic cell rate
+ * algorithm) : one compare-and-set per attempt, no lock. Keys sharing a slot
+ * share their bucket, the array size bounds the memory. An attempt is only
+ * given back if its slot has not moved since, so that it never credits the
+ * attempts of another key sharing the slot, the attempt being otherwise kept.
+ */
+@Service
+public class PasswordThrottleServices {
+
+	@Value("${password.throttle.enabled:true}")
+	private boolean enabled;
+
+	@Value("${password.throttle.stripes:65536}")
+	private int stripes;
+
+	@Value("${password.throttle.key.burst:20}")
+	private int keyBurst;
+
+	@Value("${password.throttle.key.perMinute:20}")
+	private int keyPerMinute;
+
+	@Value("${password.throttle.ip.burst:200}")
+	private int ipBurst;
+
+	@Value("${password.throttle.ip.perMinute:600}")
+	private int ipPerMinute;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private final long origin = System.nanoTime();
+
+	private Bucket keyBuckets;
+
+	private Bucket ipBuckets;
+
+	@PostConstruct
+	public void init() {
+		int size = Integer.highestOneBit(Math.max(2, stripes) - 1) << 1;
+		keyBuckets = new Bucket("key", size, keyBurst, keyPerMinute);
+		ipBuckets = new Bucket("ip", size, ipBurst, ipPerMinute);
+	}
+
+	/**
+	 * Password check, checked exceptions included
+	 */
+	@FunctionalInterface
+	public interface Attempt<T, E extends Exception> {
+		T run() throws E;
+	}
+
+	/**
+	 * Run a password check, charged to the client only if the password is wrong
+	 *
+	 * @param enclosureId
+	 * @param recipient   recipient mail or id, null for a public link
+	 * @param clientIp
+	 * @param attempt
+	 * @return result of the check
+	 * @throws TooManyRequestsException if the attempt is over the limits
+	 */
+	public <T, E extends Exception> T attempt(String enclosureId, String recipient, String clientIp,
+			Attempt<T, E> attempt) throws E {
+		Charge charge = charge(enclosureId, recipient, clientIp);
+		try {
+			T result = attempt.run();
+			refund(charge);
+			return result;
+		} catch (Exception | Error e) {
+			if (!isFailedCheck(e)) {
+				refund(charge);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Reactive version of {@link #attempt(String, String, String, Attempt)}, the
+	 * attempt is taken on subscription
+	 */
+	public <T> Mono<T> reactiveAttempt(String enclosureId, String recipient, String clientIp, Supplier<Mono<T>> attempt) {
+		return Mono.defer(() -> {
+			Charge charge = charge(enclosureId, recipient, clientIp);
+			return attempt.get().doOnSuccess(result -> refund(charge)).doOnError(e -> !isFailedCheck(e),
+					e -> refund(charge));
+		});
+	}
+
+	/**
+	 * Take a password attempt, which is not given back
+	 *
+	 * @param enclosureId
+	 * @param recipient   recipient mail or id, null for a public link
+	 * @param clientIp
+	 * @throws TooManyRequestsException if the attempt is over the limits
+	 */
+	public void acquire(String enclosureId, String recipient, String clientIp) throws TooManyRequestsException {
+		charge(enclosureId, recipient, clientIp);
+	}
+
+	private Charge charge(String enclosureId, String recipient, String clientIp) {
+		if (!enabled) {
+			return null;
+		}
+		String ip = StringUtils.defaultString(clientIp);
+		int keyHash = keyHash(enclosureId, recipient, ip);
+		long now = System.nanoTime() - origin;
+		long ipArrival = ipBuckets.acquire(enclosureId, ip.hashCode(), now);
+		try {
+			return new Charge(keyHash, keyBuckets.acquire(enclosureId, keyHash, now), ip.hashCode(), ipArrival);
+		} catch (TooManyRequestsException e) {
+			// the attempt is not made, the client keeps its token
+			ipBuckets.release(ip.hashCode(), ipArrival);
+			throw e;
+		}
+	}
+
+	/**
+	 * Give back an attempt, the password was not wrong
+	 */
+	private void refund(Charge charge) {
+		if (charge != null) {
+			keyBuckets.release(charge.keyHash, charge.keyArrival);
+			ipBuckets.release(charge.ipHash, charge.ipArrival);
+		}
+	}
+
+	private static int keyHash(String enclosureId, String recipient, String ip) {
+		return 31 * (31 * StringUtils.defaultString(enclosureId).hashCode()
+				+ StringUtils.lowerCase(StringUtils.defaultString(recipient)).hashCode()) + ip.hashCode();
+	}
+
+	private static boolean isFailedCheck(Throwable e) {
+		return e instanceof PasswordException || e instanceof MaxTryException;
+	}
+
+	private class Bucket {
+
+		private final AtomicLongArray arrivals;
+
+		private final long emissionInterval;
+
+		private final long tolerance;
+
+		private final Counter rejected;
+
+		Bucket(String scope, int size, int burst, int perMinute) {
+			arrivals = new AtomicLongArray(size);
+			emissionInterval = TimeUnit.MINUTES.toNanos(1) / Math.max(1, perMinute);
+			tolerance = emissionInterval * (Math.max(1, burst) - 1);
+			rejected = Counter.builder("ft.password.throttle.rejected")
+					.description("Password attempts rejected before validation").tag("scope", scope)
+					.register(meterRegistry);
+		}
+
+		/**
+		 * @return arrival time set by the attempt
+		 */
+		long acquire(String enclosureId, int hash, long now) {
+			int slot = spread(hash) & (arrivals.length() - 1);
+			while (true) {
+				long arrival = arrivals.get(slot);
+				long theoretical = Math.max(arrival, now);
+				if (theoretical - now > tolerance) {
+					rejected.increment();
+					long retryAfter = TimeUnit.NANOSECONDS.toSeconds(theoretical - now - tolerance) + 1;
+					throw new TooManyRequestsException(ErrorEnum.TOO_MANY_REQUESTS.getValue(), enclosureId,
+							retryAfter);
+				}
+				if (arrivals.compareAndSet(slot, arrival, theoretical + emissionInterval)) {
+					return theoretical + emissionInterval;
+				}
+			}
+		}
+
+		/**
+		 * Give back an attempt unless another attempt was taken on the slot since
+		 *
+		 * @param arrival arrival time set by the attempt
+		 */
+		void release(int hash, long arrival) {
+			int slot = spread(hash) & (arrivals.length() - 1);
+			arrivals.compareAndSet(slot, arrival, arrival - emissionInterval);
+		}
+
+		private int spread(int hash) {
+			int h = hash * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * Slots and arrival times set by an attempt
+	 */
+	@AllArgsConstructor
+	private static class Charge {
+
+		private final int keyHash;
+
+		private final long keyArrival;
+
+		private final int ipHash;
+
+		private final long ipArrival;
+	}
+}
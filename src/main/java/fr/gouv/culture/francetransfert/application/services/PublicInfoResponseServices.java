@@ -0,0 +1,198 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Ready to send bodies of the public download info, serialized and gzipped
+ * once per enclosure version instead of once per request. The request is still
+ * validated, only the building, serialization and compression of the body are
+ * saved.
+ */
+@Service
+public class PublicInfoResponseServices {
+
+	private static final String GZIP = "gzip";
+
+	@Value("${download.info.public.cache.enabled:true}")
+	private boolean cacheEnabled;
+
+	@Value("${download.info.public.cache.maxBytes:67108864}")
+	private long maxBytes;
+
+	@Value("${download.info.public.cache.ttl.minutes:10}")
+	private long ttlMinutes;
+
+	@Autowired
+	private DownloadServices downloadServices;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private Cache<String, SerializedInfo> responses;
+
+	@PostConstruct
+	public void init() {
+		responses = Caffeine.newBuilder().maximumWeight(maxBytes)
+				.<String, SerializedInfo>weigher((enclosureId, info) -> info.getIdentity().length + info.getGzip().length)
+				.expireAfterWrite(ttlMinutes, TimeUnit.MINUTES).recordStats().build();
+		CaffeineCacheMetrics.monitor(meterRegistry, responses, "enclosure-public-info");
+	}
+
+	/**
+	 * Write the public download info, or 304 if the client copy is up to date
+	 *
+	 * @param metadata   validated enclosure metadata
+	 * @param webRequest
+	 * @throws IOException
+	 */
+	public void write(EnclosureMetadata metadata, ServletWebRequest webRequest) throws IOException {
+		String tag = DownloadServices.representationTag(metadata, null);
+		if (webRequest.checkNotModified(tag)) {
+			return;
+		}
+		SerializedInfo info = serialized(metadata, tag);
+		boolean gzip = acceptsGzip(webRequest.getHeader(HttpHeaders.ACCEPT_ENCODING));
+		byte[] body = gzip ? info.getGzip() : info.getIdentity();
+
+		HttpServletResponse response = webRequest.getResponse();
+		response.setStatus(HttpStatus.OK.value());
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (gzip) {
+			// already set, the container does not compress the body again
+			response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+		}
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+	/**
+	 * Public download info response, left to MVC to write
+	 *
+	 * @param metadata       validated enclosure metadata
+	 * @param notModified    tells from the ETag whether the client copy is up to
+	 *                       date
+	 * @param acceptEncoding Accept-Encoding request header
+	 * @return 200 with the serialized info, or 304
+	 * @throws IOException
+	 */
+	public ResponseEntity<byte[]> response(EnclosureMetadata metadata, Predicate<String> notModified,
+			String acceptEncoding) throws IOException {
+		String tag = DownloadServices.representationTag(metadata, null);
+		if (notModified.test(tag)) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(tag).build();
+		}
+		SerializedInfo info = serialized(metadata, tag);
+		boolean gzip = acceptsGzip(acceptEncoding);
+		ResponseEntity.BodyBuilder builder = ResponseEntity.ok().eTag(tag).contentType(MediaType.APPLICATION_JSON)
+				.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		if (gzip) {
+			// already set, the container does not compress the body again
+			builder.header(HttpHeaders.CONTENT_ENCODING, GZIP);
+		}
+		return builder.body(gzip ? info.getGzip() : info.getIdentity());
+	}
+
+	@EventListener
+	public void onEnclosureInvalidated(EnclosureInvalidatedEvent event) {
+		if (event.getEnclosureId() == null) {
+			responses.invalidateAll();
+		} else {
+			responses.invalidate(event.getEnclosureId());
+		}
+	}
+
+	private SerializedInfo serialized(EnclosureMetadata metadata, String tag) throws IOException {
+		SerializedInfo info = cacheEnabled ? responses.getIfPresent(metadata.getEnclosureId()) : null;
+		if (info != null && tag.equals(info.getTag())) {
+			return info;
+		}
+		byte[] identity = objectMapper.writeValueAsBytes(downloadServices.getDownloadInfoPublic(metadata));
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(identity.length / 4 + 64);
+		try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+			gzip.write(identity);
+		}
+		info = new SerializedInfo(tag, identity, compressed.toByteArray());
+		if (cacheEnabled) {
+			responses.put(metadata.getEnclosureId(), info);
+		}
+		return info;
+	}
+
+	/**
+	 * @param acceptEncoding Accept-Encoding request header
+	 * @return true if gzip, or else any coding, is accepted with a non zero
+	 *         quality
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (StringUtils.isBlank(acceptEncoding)) {
+			return false;
+		}
+		Boolean gzip = null;
+		Boolean any = null;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.split(";");
+			String name = parameters[0].trim();
+			boolean accepted = true;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					accepted = NumberUtils.toDouble(parameter.substring(2).trim(), 0) > 0;
+				}
+			}
+			if (GZIP.equalsIgnoreCase(name)) {
+				gzip = accepted;
+			} else if ("*".equals(name)) {
+				any = accepted;
+			}
+		}
+		return gzip != null ? gzip : Boolean.TRUE.equals(any);
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class SerializedInfo {
+		private String tag;
+		private byte[] identity;
+		private byte[] gzip;
+	}
+}
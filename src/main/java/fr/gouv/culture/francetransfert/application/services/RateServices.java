@@ -22,7 +22,6 @@ import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
 import fr.gouv.culture.francetransfert.core.enums.RedisQueueEnum;
 import fr.gouv.culture.francetransfert.core.enums.TypeStat;
 import fr.gouv.culture.francetransfert.core.model.RateRepresentation;
-import fr.gouv.culture.francetransfert.core.services.RedisManager;
 import fr.gouv.culture.francetransfert.core.utils.Base64CryptoService;
 import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
 
@@ -30,12 +29,14 @@ import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
 public class RateServices {
 	private static final Logger LOGGER = LoggerFactory.getLogger(RateServices.class);
 
-	@Autowired
-	RedisManager redisManager;
+	private static final Gson GSON = new Gson();
 
 	@Autowired
 	Base64CryptoService base64CryptoService;
 
+	@Autowired
+	EventOutboxServices eventOutboxServices;
+
 	public boolean createSatisfactionFT(RateRepresentation rateRepresentation) throws DownloadException {
 		try {
 
@@ -52,8 +53,8 @@ public class RateServices {
 			rateRepresentation.setHashMail(null);
 			rateRepresentation.setMailAdress(null);
 			rateRepresentation.setType(TypeStat.DOWNLOAD_SATISFACTION);
-			String jsonInString = new Gson().toJson(rateRepresentation);
-			redisManager.publishFT(RedisQueueEnum.SATISFACTION_QUEUE.getValue(), jsonInString);
+			String jsonInString = GSON.toJson(rateRepresentation);
+			eventOutboxServices.publish(RedisQueueEnum.SATISFACTION_QUEUE.getValue(), jsonInString);
 			return true;
 		} catch (Exception e) {
 			String uuid = UUID.randomUUID().toString();
@@ -0,0 +1,146 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.resources.model.Download;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.core.services.RedisManager;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * The {@link DownloadServices} flows as non-blocking pipelines : the metaload
+ * is read and the download granted through lettuce, the validation steps and
+ * the remaining blocking calls (object storage, core services) run on the
+ * bounded download scheduler, so that no servlet thread waits on a dependency.
+ */
+@Service
+@ConditionalOnProperty(name = "download.reactive.enabled", havingValue = "true")
+public class ReactiveDownloadServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveDownloadServices.class);
+
+	@Value("${enclosure.max.download}")
+	private int maxDownload;
+
+	@Autowired
+	private DownloadServices downloadServices;
+
+	@Autowired
+	private ReactiveMetaloadServices reactiveMetaloadServices;
+
+	@Autowired
+	private RedisManager redisManager;
+
+	@Autowired
+	private Scheduler downloadBlockingScheduler;
+
+	public Mono<Download> generateDownloadUrlWithPassword(DownloadPasswordMetaData downloadMeta) {
+		String enclosureId = downloadMeta.getEnclosure();
+		Mono<String> recipientMail;
+		if (downloadMeta.getSenderToken() != null) {
+			recipientMail = blocking(() -> {
+				redisManager.validateToken(downloadMeta.getRecipient().toLowerCase(), downloadMeta.getSenderToken());
+				return downloadServices.decodeRecipientMail(downloadMeta.getRecipient()).toLowerCase();
+			});
+		} else {
+			recipientMail = Mono
+					.fromCallable(() -> downloadServices.decodeRecipientMail(downloadMeta.getRecipient()).toLowerCase());
+		}
+		// the recipient id is resolved from the mail when connected as sender
+		String recipientId = downloadMeta.getSenderToken() != null ? null : downloadMeta.getToken();
+		return checkNotMissing(enclosureId).then(recipientMail).flatMap(mail -> reactiveMetaloadServices.loadContext(enclosureId, mail, recipientId, true)
+				.flatMap(context -> blocking(() -> {
+					downloadServices.validateDownload(context, mail, downloadMeta.getPassword());
+					return context;
+				})).flatMap(context -> grantDownload(enclosureId, context.getRecipientId()))
+				.then(blocking(() -> downloadServices.completeDownload(enclosureId, mail))));
+	}
+
+	public Mono<Download> generatePublicDownload(String enclosureId, String password) {
+		return blocking(() -> {
+			downloadServices.validatePublic(enclosureId);
+			return enclosureId;
+		}).flatMap(id -> reactiveMetaloadServices.loadContext(id, true))
+				.flatMap(context -> blocking(() -> downloadServices.generatePublicDownload(context, password)));
+	}
+
+	public Mono<Boolean> validatePassword(String enclosureId, String password, String recipientParam) {
+		Mono<EnclosureRequestContext> context = StringUtils.isNotBlank(recipientParam)
+				? Mono.fromCallable(() -> downloadServices.decodeRecipientMail(recipientParam))
+						.flatMap(mail -> reactiveMetaloadServices.loadContext(enclosureId, mail, null, true))
+				: reactiveMetaloadServices.loadContext(enclosureId, true);
+		return checkNotMissing(enclosureId).then(context).flatMap(requestContext -> blocking(() -> {
+			downloadServices.validatePassword(requestContext, password);
+			return true;
+		}));
+	}
+
+	/**
+	 * @return download info, empty if the client copy is up to date
+	 */
+	public Mono<DownloadRepresentation> getDownloadInfo(String enclosureId, String recipientId,
+			String recipientParam, Predicate<String> notModified) {
+		return checkNotMissing(enclosureId)
+				.then(Mono.fromCallable(() -> downloadServices.decodeRecipientMail(recipientParam)))
+				.flatMap(mail -> reactiveMetaloadServices.loadContext(enclosureId, mail, recipientId, false)
+						.flatMap(context -> blocking(() -> downloadServices.getDownloadInfo(context, mail, notModified))));
+	}
+
+	public Mono<DownloadRepresentation> getDownloadInfoConnect(String enclosureId, String recipientParam,
+			Predicate<String> notModified) {
+		return getDownloadInfo(enclosureId, null, recipientParam, notModified);
+	}
+
+	public Mono<EnclosureMetadata> validateDownloadInfoPublic(String enclosureId) {
+		return blocking(() -> {
+			downloadServices.validatePublic(enclosureId);
+			return enclosureId;
+		}).flatMap(id -> reactiveMetaloadServices.loadContext(id, false))
+				.flatMap(context -> blocking(() -> downloadServices.validateDownloadInfoPublic(context)));
+	}
+
+	/**
+	 * Run a blocking call on the bounded download scheduler
+	 */
+	public <T> Mono<T> blocking(Callable<T> call) {
+		return Mono.fromCallable(call).subscribeOn(downloadBlockingScheduler);
+	}
+
+	private Mono<Void> checkNotMissing(String enclosureId) {
+		return Mono.fromRunnable(() -> downloadServices.checkNotMissing(enclosureId));
+	}
+
+	private Mono<Boolean> grantDownload(String enclosureId, String recipientId) {
+		return reactiveMetaloadServices.grantDownload(enclosureId, recipientId, maxDownload)
+				.onErrorMap(e -> new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue() + " : " + e.getMessage(),
+						enclosureId, e))
+				.flatMap(granted -> {
+					if (!granted) {
+						LOGGER.error("DOWNLOAD_LIMIT for enclosure {}, for recipient {}", enclosureId, recipientId);
+						return Mono.error(new DownloadException(ErrorEnum.DOWNLOAD_LIMIT.getValue(), enclosureId));
+					}
+					return Mono.just(granted);
+				});
+	}
+}
@@ -0,0 +1,133 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.reactive.RedisReactiveCommands;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking metaload reads and writes of the reactive download stack. The
+ * commands of a request are issued together on the multiplexed connection, so
+ * that they share the same round trip as the Jedis pipelines.
+ */
+@Service
+@ConditionalOnProperty(name = "download.reactive.enabled", havingValue = "true")
+public class ReactiveMetaloadServices {
+
+	@Autowired
+	private StatefulRedisConnection<String, String> metaloadReactiveConnection;
+
+	@Autowired
+	private DownloadGrantServices downloadGrantServices;
+
+	private volatile String grantScriptSha;
+
+	/**
+	 * Non-blocking equivalent of
+	 * {@link EnclosureContextServices#load(String, boolean)}
+	 *
+	 * @param enclosureId
+	 * @param withEnclosure read the enclosure hash too, for the password
+	 *                      validations
+	 * @return request context
+	 */
+	public Mono<EnclosureRequestContext> loadContext(String enclosureId, boolean withEnclosure) {
+		return loadContext(enclosureId, null, null, withEnclosure);
+	}
+
+	/**
+	 * Non-blocking equivalent of
+	 * {@link EnclosureContextServices#load(String, String, String, boolean)}
+	 *
+	 * @param enclosureId
+	 * @param recipientMail
+	 * @param recipientId
+	 * @param withEnclosure read the enclosure hash too, for the password
+	 *                      validations
+	 * @return request context
+	 */
+	public Mono<EnclosureRequestContext> loadContext(String enclosureId, String recipientMail, String recipientId,
+			boolean withEnclosure) {
+		RedisReactiveCommands<String, String> commands = metaloadReactiveConnection.reactive();
+		boolean withRecipient = StringUtils.isNotBlank(recipientMail) || StringUtils.isNotBlank(recipientId);
+		// Mono.zip does not take null values, an empty map stands for the unread hash
+		Mono<Map<String, String>> enclosure = withEnclosure
+				? hgetAll(commands, RedisKeysEnum.FT_ENCLOSURE.getKey(enclosureId))
+				: Mono.just(Collections.emptyMap());
+		Mono<Boolean> adminToken = commands.exists(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosureId))
+				.map(count -> count > 0);
+		Mono<Map<String, String>> recipients = withRecipient
+				? hgetAll(commands, RedisKeysEnum.FT_RECIPIENTS.getKey(enclosureId))
+				: Mono.just(Collections.emptyMap());
+		Mono<Map<String, String>> recipient = StringUtils.isNotBlank(recipientId)
+				? hgetAll(commands, RedisKeysEnum.FT_RECIPIENT.getKey(recipientId))
+				: Mono.just(Collections.emptyMap());
+		return Mono.zip(enclosure, adminToken, recipients, recipient).flatMap(hashes -> {
+			Map<String, String> enclosureHash = withEnclosure ? hashes.getT1() : null;
+			if (withRecipient && StringUtils.isBlank(recipientId)) {
+				String resolvedRecipientId = hashes.getT3().get(recipientMail);
+				if (resolvedRecipientId != null) {
+					return hgetAll(commands, RedisKeysEnum.FT_RECIPIENT.getKey(resolvedRecipientId))
+							.map(resolvedRecipient -> new EnclosureRequestContext(enclosureId, enclosureHash,
+									hashes.getT2(), hashes.getT3(), resolvedRecipientId, resolvedRecipient));
+				}
+			}
+			return Mono.just(new EnclosureRequestContext(enclosureId, enclosureHash, hashes.getT2(), hashes.getT3(),
+					StringUtils.defaultIfBlank(recipientId, null), hashes.getT4()));
+		}).onErrorMap(e -> !(e instanceof DownloadException),
+				e -> new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e));
+	}
+
+	/**
+	 * Non-blocking equivalent of
+	 * {@link DownloadGrantServices#grantDownload(String, String, int)}
+	 *
+	 * @param enclosureId
+	 * @param recipientId
+	 * @param maxDownload number max of download per recipient
+	 * @return false if the recipient already reached the download limit
+	 */
+	public Mono<Boolean> grantDownload(String enclosureId, String recipientId, int maxDownload) {
+		RedisReactiveCommands<String, String> commands = metaloadReactiveConnection.reactive();
+		String[] keys = downloadGrantServices.grantKeys(enclosureId, recipientId).toArray(new String[0]);
+		String[] args = downloadGrantServices.grantArgs(enclosureId, recipientId, maxDownload)
+				.toArray(new String[0]);
+		Mono<Long> reload = commands.scriptLoad(downloadGrantServices.getGrantScript())
+				.doOnNext(sha -> grantScriptSha = sha)
+				.flatMap(sha -> commands.<Long>evalsha(sha, ScriptOutputType.INTEGER, keys, args).next());
+		Mono<Long> grant = Mono.defer(() -> {
+			String sha = grantScriptSha;
+			if (sha == null) {
+				return reload;
+			}
+			// script cache flushed, or failover to a replica without the script
+			return commands.<Long>evalsha(sha, ScriptOutputType.INTEGER, keys, args).next()
+					.onErrorResume(RedisNoScriptException.class, e -> reload);
+		});
+		return grant.map(count -> downloadGrantServices.granted(enclosureId, recipientId, count));
+	}
+
+	private static Mono<Map<String, String>> hgetAll(RedisReactiveCommands<String, String> commands, String key) {
+		return commands.hgetall(key).collectMap(KeyValue::getKey, KeyValue::getValue);
+	}
+}
@@ -0,0 +1,150 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.error.StorageUnavailableException;
+import fr.gouv.culture.francetransfert.core.exception.StorageException;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Coalesces concurrent identical loads : the first caller of a key runs the
+ * load, the callers arriving while it is in flight wait for its result instead
+ * of running their own. Nothing is kept once the load is over, caching stays
+ * the job of the caller. A caller waits for the leader at most the configured
+ * delay, then runs its own load, and a failure of the leader is rethrown to
+ * each caller as its own exception.
+ */
+@Service
+public class SingleFlightServices {
+
+	private static final String COUNTER_NAME = "ft.singleflight.calls";
+
+	@Value("${singleflight.wait.millis:5000}")
+	private long waitMillis;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Load of a single flight, checked exceptions included
+	 */
+	@FunctionalInterface
+	public interface Flight<T, E extends Exception> {
+		T load() throws E;
+	}
+
+	/**
+	 * Run the load, or join the identical one in flight
+	 *
+	 * @param flight kind of load, keys of different kinds never collide
+	 * @param key    identity of the load within its kind
+	 * @param load
+	 * @return result of the load, shared by every joined caller
+	 * @throws E failure of the load, a copy being rethrown to every joined caller
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, E extends Exception> T execute(String flight, String key, Flight<T, E> load) throws E {
+		String flightKey = flight + ":" + key;
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		CompletableFuture<Object> leader = inFlight.putIfAbsent(flightKey, future);
+		if (leader != null) {
+			meterRegistry.counter(COUNTER_NAME, "flight", flight, "role", "joined").increment();
+			try {
+				return (T) await(leader, key);
+			} catch (TimeoutException e) {
+				// a stuck leader does not hold its followers beyond their own deadline
+				meterRegistry.counter(COUNTER_NAME, "flight", flight, "role", "timeout").increment();
+				return load.load();
+			}
+		}
+		meterRegistry.counter(COUNTER_NAME, "flight", flight, "role", "leader").increment();
+		try {
+			T result = load.load();
+			future.complete(result);
+			return result;
+		} catch (Exception | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(flightKey, future);
+		}
+	}
+
+	/**
+	 * Callers arriving from now on start a new load instead of joining the one in
+	 * flight, which may have read outdated data
+	 *
+	 * @param flight
+	 * @param key    null to forget every load of the kind
+	 */
+	public void forget(String flight, String key) {
+		if (key == null) {
+			inFlight.keySet().removeIf(flightKey -> flightKey.startsWith(flight + ":"));
+		} else {
+			inFlight.remove(flight + ":" + key);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <E extends Exception> Object await(CompletableFuture<Object> leader, String key)
+			throws E, TimeoutException {
+		try {
+			return leader.get(waitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), key, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			// the leader rethrew it as E or as a runtime exception
+			throw (E) copy(cause, key);
+		}
+	}
+
+	/**
+	 * Exception of the leader as seen by a follower : same type and message, but
+	 * its own instance, so that callers never share a mutable exception
+	 */
+	static Throwable copy(Throwable error, String key) {
+		if (error instanceof DownloadException) {
+			DownloadException downloadException = (DownloadException) error;
+			if (downloadException.getCause() == null) {
+				return new DownloadException(downloadException.getMessage(), downloadException.getId());
+			}
+			return new DownloadException(downloadException.getMessage(), downloadException.getId(),
+					downloadException.getCause());
+		}
+		if (error instanceof StorageUnavailableException) {
+			return new StorageUnavailableException(error.getMessage(),
+					((StorageUnavailableException) error).getRetryAfterSeconds());
+		}
+		if (error instanceof StorageException) {
+			StorageException storageException = new StorageException(error.getMessage());
+			storageException.initCause(error);
+			return storageException;
+		}
+		return new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), key, error);
+	}
+}
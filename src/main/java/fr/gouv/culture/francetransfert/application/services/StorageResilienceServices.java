@@ -0,0 +1,343 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.error.StorageUnavailableException;
+import fr.gouv.culture.francetransfert.core.exception.StorageException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Guards the calls to the object storage so that a storage brown-out only
+ * fails the requests that need it :
+ * <ul>
+ * <li>a bulkhead bounds the calls in flight, a call waits at most a few
+ * milliseconds for a slot</li>
+ * <li>every call has a deadline, the request thread gives up on it while the
+ * call keeps its bulkhead slot until it really ends</li>
+ * <li>a circuit breaker opens on a failure rate over the last calls, then lets
+ * a few probe calls through once the open delay is over. Only timeouts,
+ * transport errors and 5xx answers are failures, a storage answering "not
+ * found" is healthy</li>
+ * </ul>
+ * Refused and abandoned calls throw a {@link StorageUnavailableException}.
+ */
+@Service
+public class StorageResilienceServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StorageResilienceServices.class);
+
+	private static final String REJECTED_COUNTER_NAME = "ft.storage.rejected";
+
+	@Value("${storage.resilience.enabled:true}")
+	private boolean enabled;
+
+	@Value("${storage.timeout.millis:2000}")
+	private long timeoutMillis;
+
+	@Value("${storage.bulkhead.maxConcurrent:32}")
+	private int maxConcurrent;
+
+	@Value("${storage.bulkhead.maxWait.millis:20}")
+	private long maxWaitMillis;
+
+	@Value("${storage.circuit.window:50}")
+	private int window;
+
+	@Value("${storage.circuit.minCalls:20}")
+	private int minCalls;
+
+	@Value("${storage.circuit.failureRate:50}")
+	private int failureRatePercent;
+
+	@Value("${storage.circuit.open.seconds:30}")
+	private long openSeconds;
+
+	@Value("${storage.circuit.halfOpen.calls:3}")
+	private int halfOpenCalls;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private Semaphore bulkhead;
+
+	private ThreadPoolExecutor executor;
+
+	private State state = State.CLOSED;
+
+	private boolean[] outcomes;
+
+	private int recorded;
+
+	private int next;
+
+	private int failures;
+
+	private long openUntil;
+
+	private int probesInFlight;
+
+	private int probeSuccesses;
+
+	/**
+	 * Storage call, checked exceptions included
+	 */
+	@FunctionalInterface
+	public interface StorageCall<T> {
+		T call() throws StorageException;
+	}
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	@PostConstruct
+	public void init() {
+		outcomes = new boolean[window];
+		bulkhead = new Semaphore(maxConcurrent);
+		AtomicInteger threads = new AtomicInteger();
+		// one worker per bulkhead slot, a slot is released just before its worker is
+		// idle again so the next call may briefly queue behind it
+		executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "storage-call-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		Gauge.builder("ft.storage.circuit.state", this, services -> services.state().ordinal())
+				.description("Storage circuit breaker state : 0 closed, 1 open, 2 half open").register(meterRegistry);
+		Gauge.builder("ft.storage.bulkhead.available", bulkhead, Semaphore::availablePermits)
+				.description("Storage calls that can still start").register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Run a storage call within the bulkhead, the deadline and the circuit breaker
+	 *
+	 * @param operation name of the call, for the logs and metrics
+	 * @param call
+	 * @return result of the call
+	 * @throws StorageException            failure reported by the storage
+	 * @throws StorageUnavailableException call refused or abandoned
+	 */
+	public <T> T call(String operation, StorageCall<T> call) throws StorageException {
+		if (!enabled) {
+			return call.call();
+		}
+		acquirePermission(operation);
+		if (!acquireSlot()) {
+			releasePermission();
+			throw rejected(operation, "bulkhead-full", 1);
+		}
+		// the slot is held until the call really returns, or until it is cancelled
+		// before a worker picked it
+		AtomicBoolean started = new AtomicBoolean();
+		AtomicBoolean slotHeld = new AtomicBoolean(true);
+		Runnable releaseSlot = () -> {
+			if (slotHeld.compareAndSet(true, false)) {
+				bulkhead.release();
+			}
+		};
+		Future<T> future;
+		try {
+			future = executor.submit(() -> {
+				started.set(true);
+				try {
+					return call.call();
+				} finally {
+					releaseSlot.run();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			releaseSlot.run();
+			releasePermission();
+			throw rejected(operation, "rejected", 1);
+		}
+		try {
+			T result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			onSuccess();
+			return result;
+		} catch (TimeoutException e) {
+			cancel(future, started, releaseSlot);
+			onFailure(operation);
+			throw rejected(operation, "timeout", 1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel(future, started, releaseSlot);
+			releasePermission();
+			throw rejected(operation, "interrupted", 1);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (isStorageFailure(cause)) {
+				onFailure(operation);
+			} else {
+				// the storage answered, e.g. the object does not exist
+				onSuccess();
+			}
+			if (cause instanceof StorageException) {
+				throw (StorageException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Timeouts, transport errors and 5xx or throttling answers, looked up along
+	 * the cause chain since the core wraps the SDK exceptions
+	 */
+	static boolean isStorageFailure(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof AmazonServiceException) {
+				int status = ((AmazonServiceException) cause).getStatusCode();
+				return status >= 500 || status == 429;
+			}
+			if (cause instanceof SdkClientException || cause instanceof IOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void cancel(Future<?> future, AtomicBoolean started, Runnable releaseSlot) {
+		// a task cancelled before it started never runs its finally block
+		if (future.cancel(true) && !started.get()) {
+			releaseSlot.run();
+		}
+	}
+
+	synchronized State state() {
+		if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+			return State.HALF_OPEN;
+		}
+		return state;
+	}
+
+	private boolean acquireSlot() {
+		try {
+			return bulkhead.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private synchronized void acquirePermission(String operation) {
+		if (state == State.OPEN) {
+			long remainingMillis = openUntil - System.currentTimeMillis();
+			if (remainingMillis > 0) {
+				throw rejected(operation, "circuit-open", TimeUnit.MILLISECONDS.toSeconds(remainingMillis) + 1);
+			}
+			LOGGER.info("Storage circuit half open, probing with {} calls", halfOpenCalls);
+			state = State.HALF_OPEN;
+			probesInFlight = 0;
+			probeSuccesses = 0;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probesInFlight >= halfOpenCalls) {
+				throw rejected(operation, "circuit-open", 1);
+			}
+			probesInFlight++;
+		}
+	}
+
+	private synchronized void releasePermission() {
+		if (state == State.HALF_OPEN && probesInFlight > 0) {
+			probesInFlight--;
+		}
+	}
+
+	private synchronized void onSuccess() {
+		if (state == State.HALF_OPEN) {
+			if (++probeSuccesses >= halfOpenCalls) {
+				LOGGER.info("Storage circuit closed");
+				close();
+			}
+			return;
+		}
+		record(false);
+	}
+
+	private synchronized void onFailure(String operation) {
+		if (state == State.HALF_OPEN) {
+			open(operation);
+			return;
+		}
+		record(true);
+		if (state == State.CLOSED && recorded >= minCalls && failures * 100 >= failureRatePercent * recorded) {
+			open(operation);
+		}
+	}
+
+	private void record(boolean failure) {
+		if (recorded == outcomes.length) {
+			if (outcomes[next]) {
+				failures--;
+			}
+		} else {
+			recorded++;
+		}
+		outcomes[next] = failure;
+		if (failure) {
+			failures++;
+		}
+		next = (next + 1) % outcomes.length;
+	}
+
+	private void open(String operation) {
+		LOGGER.warn("Storage circuit open for {}s after a failed {} ({} failures over {} calls)", openSeconds,
+				operation, failures, recorded);
+		state = State.OPEN;
+		openUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(openSeconds);
+	}
+
+	private void close() {
+		state = State.CLOSED;
+		recorded = 0;
+		next = 0;
+		failures = 0;
+	}
+
+	private StorageUnavailableException rejected(String operation, String reason, long retryAfterSeconds) {
+		meterRegistry.counter(REJECTED_COUNTER_NAME, "operation", operation, "reason", reason).increment();
+		return new StorageUnavailableException(ErrorEnum.STORAGE_UNAVAILABLE.getValue() + " : " + reason,
+				retryAfterSeconds);
+	}
+}
@@ -0,0 +1,463 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert.application.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.resources.model.Download;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureZipIndex;
+import fr.gouv.culture.francetransfert.application.resources.model.FileRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.ZipEntryRepresentation;
+import fr.gouv.culture.francetransfert.core.exception.MetaloadException;
+import fr.gouv.culture.francetransfert.core.exception.StorageException;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import fr.gouv.culture.francetransfert.domain.exceptions.ExpirationEnclosureException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Index of the zipped enclosure entries, built from the central directory read
+ * with ranged requests on the presigned URL : the end of the zip, then the
+ * central directory when it is not in it. Zip64 archives are supported.
+ * Concurrent misses of the same enclosure share a single build.
+ */
+@Service
+@ConditionalOnProperty(name = "download.proxy.enabled", havingValue = "true")
+public class ZipIndexServices {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZipIndexServices.class);
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+
+	private static final int EOCD_SIZE = 22;
+
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+
+	private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+
+	private static final int ZIP64_EOCD_SIZE = 56;
+
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+	private static final int CENTRAL_HEADER_SIZE = 46;
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+
+	private static final int UTF8_FLAG = 1 << 11;
+
+	/** end of central directory with the longest comment and a zip64 end record */
+	private static final int TAIL_SIZE = EOCD_SIZE + 0xFFFF + ZIP64_LOCATOR_SIZE + ZIP64_EOCD_SIZE;
+
+	private static final Charset LEGACY_CHARSET = Charset.forName("IBM437");
+
+	private static final String FLIGHT = "zip-index";
+
+	@Value("${download.zip.index.maxEntries:1000000}")
+	private long maxEntries;
+
+	@Value("${download.zip.index.ttl.minutes:60}")
+	private long ttlMinutes;
+
+	@Autowired
+	private DownloadProxyServices downloadProxyServices;
+
+	@Autowired
+	private DownloadServices downloadServices;
+
+	@Autowired
+	private EnclosureCacheServices enclosureCacheServices;
+
+	@Autowired
+	private SingleFlightServices singleFlightServices;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private Cache<String, EnclosureZipIndex> indexes;
+
+	@PostConstruct
+	public void init() {
+		indexes = Caffeine.newBuilder().maximumWeight(maxEntries)
+				.weigher((String enclosureId, EnclosureZipIndex index) -> index.size() + 1)
+				.expireAfterAccess(ttlMinutes, TimeUnit.MINUTES).recordStats().build();
+		CaffeineCacheMetrics.monitor(meterRegistry, indexes, "enclosure-zip-index");
+	}
+
+	/**
+	 * Get the entry index of the zipped enclosure
+	 *
+	 * @param enclosureId
+	 * @param downloadUrl presigned URL of the zipped enclosure
+	 * @return entry index
+	 */
+	public EnclosureZipIndex getIndex(String enclosureId, String downloadUrl) throws StorageException {
+		EnclosureZipIndex index = indexes.getIfPresent(enclosureId);
+		if (index == null) {
+			index = singleFlightServices.execute(FLIGHT, enclosureId, () -> {
+				EnclosureZipIndex read = readIndex(enclosureId, downloadUrl);
+				indexes.put(enclosureId, read);
+				return read;
+			});
+		}
+		return index;
+	}
+
+	/**
+	 * Entries of the enclosure root files, with the byte range of their record in
+	 * the zipped enclosure. The download is validated but not counted.
+	 *
+	 * @param downloadMeta
+	 * @return root file entries
+	 */
+	public List<ZipEntryRepresentation> getRootFileEntries(DownloadPasswordMetaData downloadMeta)
+			throws ExpirationEnclosureException, UnsupportedEncodingException, MetaloadException, StorageException {
+		String enclosureId = downloadMeta.getEnclosure();
+		Download download = downloadServices.generateDownloadUrlWithPassword(downloadMeta, false);
+		EnclosureZipIndex index = getIndex(enclosureId, download.getDownloadURL());
+		List<ZipEntryRepresentation> entries = new ArrayList<>();
+		for (FileRepresentation rootFile : enclosureCacheServices.getEnclosureMetadata(enclosureId).getListing()
+				.getRootFiles()) {
+			int entry = index.indexOf(rootFile.getName());
+			if (entry >= 0) {
+				entries.add(ZipEntryRepresentation.builder().name(rootFile.getName())
+						.size(index.getSizes()[entry]).compressedSize(index.getCompressedSizes()[entry])
+						.method(index.getMethods()[entry]).rangeStart(index.getLocalHeaderOffsets()[entry])
+						.rangeEnd(index.getRecordEnds()[entry]).build());
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Stream a single entry of the zipped enclosure, inflated if needed
+	 *
+	 * @param downloadMeta
+	 * @param fileName     entry name
+	 * @param response
+	 */
+	public void streamEntry(DownloadPasswordMetaData downloadMeta, String fileName, HttpServletResponse response)
+			throws ExpirationEnclosureException, UnsupportedEncodingException, MetaloadException, StorageException {
+		String enclosureId = downloadMeta.getEnclosure();
+		Download download = downloadProxyServices.authorize(downloadMeta, true);
+		EnclosureZipIndex index = getIndex(enclosureId, download.getDownloadURL());
+		int entry = StringUtils.endsWith(fileName, "/") ? -1 : index.indexOf(fileName);
+		if (entry < 0) {
+			throw new DownloadException(ErrorEnum.WRONG_FILE.getValue(), enclosureId);
+		}
+		int method = index.getMethods()[entry];
+		if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId);
+		}
+		ByteBuffer buffer = downloadProxyServices.acquire(enclosureId);
+		try {
+			streamEntry(enclosureId, download.getDownloadURL(), index, entry, fileName, response, buffer);
+		} finally {
+			downloadProxyServices.release(buffer);
+		}
+	}
+
+	private void streamEntry(String enclosureId, String downloadUrl, EnclosureZipIndex index, int entry,
+			String fileName, HttpServletResponse response, ByteBuffer buffer) throws StorageException {
+		int method = index.getMethods()[entry];
+		long dataOffset = getDataOffset(enclosureId, downloadUrl, index, entry);
+		long compressedSize = index.getCompressedSizes()[entry];
+		response.setStatus(HttpStatus.OK.value());
+		response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+		response.setContentLengthLong(index.getSizes()[entry]);
+		response.setHeader(HttpHeaders.CACHE_CONTROL, "private, no-store");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+				.filename(StringUtils.substringAfterLast("/" + fileName, "/"), StandardCharsets.UTF_8).build()
+				.toString());
+		if (compressedSize == 0) {
+			return;
+		}
+		HttpResponse<InputStream> upstream = downloadProxyServices.send(enclosureId,
+				HttpRequest.newBuilder(URI.create(downloadUrl)).header(HttpHeaders.RANGE,
+						"bytes=" + dataOffset + "-" + (dataOffset + compressedSize - 1)));
+		if (upstream.statusCode() != HttpStatus.PARTIAL_CONTENT.value()) {
+			DownloadProxyServices.closeQuietly(upstream.body());
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId);
+		}
+		InputStream body = downloadProxyServices.readDeadline(upstream.body());
+		Inflater inflater = method == ZipEntry.DEFLATED ? new Inflater(true) : null;
+		try (InputStream data = inflater != null ? new InflaterInputStream(body, inflater) : body) {
+			downloadProxyServices.transfer(data, response.getOutputStream(), buffer);
+		} catch (IOException e) {
+			if (!response.isCommitted()) {
+				throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
+			}
+			LOGGER.warn("Download of {} in enclosure {} interrupted : {}", fileName, enclosureId, e.getMessage());
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Offset of the entry data, after its local header whose extra field may
+	 * differ from the central directory one
+	 *
+	 * @param enclosureId
+	 * @param downloadUrl
+	 * @param index
+	 * @param entry       entry slot
+	 * @return offset of the first data byte
+	 */
+	long getDataOffset(String enclosureId, String downloadUrl, EnclosureZipIndex index, int entry)
+			throws StorageException {
+		long offset = index.getLocalHeaderOffsets()[entry];
+		ByteBuffer header = readRange(enclosureId, downloadUrl, offset, offset + LOCAL_HEADER_SIZE - 1).getBytes();
+		if (header.remaining() < LOCAL_HEADER_SIZE || header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+			throw corrupted(enclosureId);
+		}
+		return offset + LOCAL_HEADER_SIZE + unsignedShort(header, 26) + unsignedShort(header, 28);
+	}
+
+	@EventListener
+	public void onEnclosureInvalidated(EnclosureInvalidatedEvent event) {
+		singleFlightServices.forget(FLIGHT, event.getEnclosureId());
+		if (event.getEnclosureId() == null) {
+			indexes.invalidateAll();
+		} else {
+			indexes.invalidate(event.getEnclosureId());
+		}
+	}
+
+	private EnclosureZipIndex readIndex(String enclosureId, String downloadUrl) throws StorageException {
+		RangeContent tail = readRange(enclosureId, downloadUrl, -1, TAIL_SIZE);
+		ByteBuffer tailBytes = tail.getBytes();
+		long tailStart = tail.getTotalSize() - tailBytes.remaining();
+		int eocd = findEndOfCentralDirectory(tailBytes);
+		if (eocd < 0) {
+			throw corrupted(enclosureId);
+		}
+		long entries = unsignedShort(tailBytes, eocd + 10);
+		long centralDirectorySize = unsignedInt(tailBytes, eocd + 12);
+		long centralDirectoryOffset = unsignedInt(tailBytes, eocd + 16);
+		int locator = eocd - ZIP64_LOCATOR_SIZE;
+		if (locator >= 0 && tailBytes.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+			long zip64Offset = tailBytes.getLong(locator + 8);
+			ByteBuffer zip64 = zip64Offset >= tailStart ? slice(tailBytes, (int) (zip64Offset - tailStart))
+					: readRange(enclosureId, downloadUrl, zip64Offset, zip64Offset + ZIP64_EOCD_SIZE - 1).getBytes();
+			if (zip64.remaining() < ZIP64_EOCD_SIZE || zip64.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+				throw corrupted(enclosureId);
+			}
+			entries = zip64.getLong(32);
+			centralDirectorySize = zip64.getLong(40);
+			centralDirectoryOffset = zip64.getLong(48);
+		}
+		ByteBuffer centralDirectory = centralDirectoryOffset >= tailStart
+				? slice(tailBytes, (int) (centralDirectoryOffset - tailStart))
+				: readRange(enclosureId, downloadUrl, centralDirectoryOffset,
+						centralDirectoryOffset + centralDirectorySize - 1).getBytes();
+		return parseCentralDirectory(enclosureId, centralDirectory, entries, centralDirectoryOffset);
+	}
+
+	private EnclosureZipIndex parseCentralDirectory(String enclosureId, ByteBuffer centralDirectory, long entries,
+			long centralDirectoryOffset) {
+		if (entries > Integer.MAX_VALUE) {
+			throw corrupted(enclosureId);
+		}
+		int count = (int) entries;
+		String[] names = new String[count];
+		long[] offsets = new long[count];
+		long[] compressedSizes = new long[count];
+		long[] sizes = new long[count];
+		int[] methods = new int[count];
+		int position = 0;
+		for (int i = 0; i < count; i++) {
+			if (centralDirectory.remaining() < position + CENTRAL_HEADER_SIZE
+					|| centralDirectory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+				throw corrupted(enclosureId);
+			}
+			int flags = unsignedShort(centralDirectory, position + 8);
+			methods[i] = unsignedShort(centralDirectory, position + 10);
+			compressedSizes[i] = unsignedInt(centralDirectory, position + 20);
+			sizes[i] = unsignedInt(centralDirectory, position + 24);
+			int nameLength = unsignedShort(centralDirectory, position + 28);
+			int extraLength = unsignedShort(centralDirectory, position + 30);
+			int commentLength = unsignedShort(centralDirectory, position + 32);
+			offsets[i] = unsignedInt(centralDirectory, position + 42);
+			byte[] name = new byte[nameLength];
+			slice(centralDirectory, position + CENTRAL_HEADER_SIZE).get(name);
+			names[i] = new String(name, (flags & UTF8_FLAG) != 0 ? StandardCharsets.UTF_8 : LEGACY_CHARSET);
+			readZip64Extra(centralDirectory, position + CENTRAL_HEADER_SIZE + nameLength, extraLength, i, sizes,
+					compressedSizes, offsets);
+			position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return sortByName(names, offsets, compressedSizes, sizes, methods, centralDirectoryOffset);
+	}
+
+	/**
+	 * Replace the 32 bits values set to 0xFFFFFFFF by their zip64 extra field
+	 * value, present in this order
+	 */
+	private static void readZip64Extra(ByteBuffer centralDirectory, int extraStart, int extraLength, int i,
+			long[] sizes, long[] compressedSizes, long[] offsets) {
+		int position = extraStart;
+		while (position + 4 <= extraStart + extraLength) {
+			int id = unsignedShort(centralDirectory, position);
+			int size = unsignedShort(centralDirectory, position + 2);
+			if (id == ZIP64_EXTRA_ID) {
+				int value = position + 4;
+				if (sizes[i] == 0xFFFFFFFFL && value + 8 <= position + 4 + size) {
+					sizes[i] = centralDirectory.getLong(value);
+					value += 8;
+				}
+				if (compressedSizes[i] == 0xFFFFFFFFL && value + 8 <= position + 4 + size) {
+					compressedSizes[i] = centralDirectory.getLong(value);
+					value += 8;
+				}
+				if (offsets[i] == 0xFFFFFFFFL && value + 8 <= position + 4 + size) {
+					offsets[i] = centralDirectory.getLong(value);
+				}
+				return;
+			}
+			position += 4 + size;
+		}
+	}
+
+	private static EnclosureZipIndex sortByName(String[] names, long[] offsets, long[] compressedSizes,
+			long[] sizes, int[] methods, long centralDirectoryOffset) {
+		int count = names.length;
+		// an entry record ends where the next one in the file starts
+		long[] recordEnds = new long[count];
+		Integer[] byOffset = IntStream.range(0, count).boxed().toArray(Integer[]::new);
+		Arrays.sort(byOffset, Comparator.comparingLong(i -> offsets[i]));
+		for (int i = 0; i < count; i++) {
+			long next = i + 1 < count ? offsets[byOffset[i + 1]] : centralDirectoryOffset;
+			recordEnds[byOffset[i]] = next - 1;
+		}
+		Integer[] byName = IntStream.range(0, count).boxed().toArray(Integer[]::new);
+		Arrays.sort(byName, Comparator.comparing(i -> names[i]));
+		EnclosureZipIndex index = new EnclosureZipIndex(new String[count], new long[count], new long[count],
+				new long[count], new long[count], new int[count]);
+		for (int i = 0; i < count; i++) {
+			int entry = byName[i];
+			index.getNames()[i] = names[entry];
+			index.getLocalHeaderOffsets()[i] = offsets[entry];
+			index.getRecordEnds()[i] = recordEnds[entry];
+			index.getCompressedSizes()[i] = compressedSizes[entry];
+			index.getSizes()[i] = sizes[entry];
+			index.getMethods()[i] = methods[entry];
+		}
+		return index;
+	}
+
+	private static int findEndOfCentralDirectory(ByteBuffer tail) {
+		for (int position = tail.remaining() - EOCD_SIZE; position >= 0; position--) {
+			if (tail.getInt(position) == EOCD_SIGNATURE
+					&& position + EOCD_SIZE + unsignedShort(tail, position + 20) == tail.remaining()) {
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Read a byte range of the zipped enclosure
+	 *
+	 * @param start first byte, negative to read the last length bytes
+	 * @param end   last byte, or length of the suffix to read
+	 */
+	private RangeContent readRange(String enclosureId, String downloadUrl, long start, long end)
+			throws StorageException {
+		String range = start < 0 ? "bytes=-" + end : "bytes=" + start + "-" + end;
+		HttpResponse<InputStream> response = downloadProxyServices.send(enclosureId,
+				HttpRequest.newBuilder(URI.create(downloadUrl)).header(HttpHeaders.RANGE, range));
+		byte[] body;
+		try (InputStream bodyStream = downloadProxyServices.readDeadline(response.body())) {
+			body = bodyStream.readAllBytes();
+		} catch (IOException e) {
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId, e);
+		}
+		long totalSize = body.length;
+		if (response.statusCode() == HttpStatus.PARTIAL_CONTENT.value()) {
+			// bytes first-last/total
+			String contentRange = response.headers().firstValue(HttpHeaders.CONTENT_RANGE).orElse("");
+			totalSize = NumberUtils.toLong(StringUtils.substringAfterLast(contentRange, "/"), -1);
+		} else if (response.statusCode() != HttpStatus.OK.value()) {
+			throw new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId);
+		}
+		if (totalSize < 0) {
+			throw corrupted(enclosureId);
+		}
+		return new RangeContent(ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN), totalSize);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int position) {
+		return buffer.duplicate().position(position).slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static int unsignedShort(ByteBuffer buffer, int position) {
+		return Short.toUnsignedInt(buffer.getShort(position));
+	}
+
+	private static long unsignedInt(ByteBuffer buffer, int position) {
+		return Integer.toUnsignedLong(buffer.getInt(position));
+	}
+
+	private static DownloadException corrupted(String enclosureId) {
+		return new DownloadException(ErrorEnum.TECHNICAL_ERROR.getValue(), enclosureId);
+	}
+
+	@Getter
+	@AllArgsConstructor
+	private static class RangeContent {
+		private ByteBuffer bytes;
+		private long totalSize;
+	}
+}
@@ -9,8 +9,15 @@ package fr.gouv.culture.francetransfert.domain.exceptions;
 
 import lombok.Data;
 
+/**
+ * Download error, typed by its message. Business errors are expected traffic
+ * and carry no stack trace, technical errors and wrapped failures keep theirs.
+ */
 @Data
 public class DownloadException extends RuntimeException {
+
+	private static final String TECHNICAL_ERROR = "TECHNICAL_ERROR";
+
 	private String id;
 
 	public DownloadException(String type, String id, Throwable ex) {
@@ -19,8 +26,15 @@ public class DownloadException extends RuntimeException {
 	}
 
 	public DownloadException(String type, String id) {
-		super(type);
+		super(type, null, false, isTechnical(type));
 		this.id = id;
 	}
 
+	public boolean isTechnical() {
+		return getCause() != null || isTechnical(getMessage());
+	}
+
+	private static boolean isTechnical(String type) {
+		return type == null || type.startsWith(TECHNICAL_ERROR);
+	}
 }
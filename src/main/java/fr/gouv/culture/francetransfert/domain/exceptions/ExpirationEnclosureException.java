@@ -10,12 +10,12 @@ package fr.gouv.culture.francetransfert.domain.exceptions;
 public class ExpirationEnclosureException extends RuntimeException {
 
 	/**
-	 * throw business domain exception
+	 * throw business domain exception, without stack trace
 	 * 
 	 * @param message
 	 */
 	public ExpirationEnclosureException(String message) {
-		super(message);
+		super(message, null, false, false);
 	}
 
 	public ExpirationEnclosureException(String message, Throwable ex) {
@@ -0,0 +1,18 @@
+-- Grant a download to a recipient if the download limit is not reached
+-- KEYS[1] recipient hash, KEYS[2] recipient download dates, KEYS[3] download queue,
+-- KEYS[4] download progress notification guard
+-- ARGV[1] download count field, ARGV[2] max download, ARGV[3] download date, ARGV[4] queue value,
+-- ARGV[5] notification window in milliseconds, 0 to always notify, -1 if already notified
+-- returns the new download count, or -1 if the limit is reached
+local count = tonumber(redis.call('HGET', KEYS[1], ARGV[1]) or '0')
+if count >= tonumber(ARGV[2]) then
+	return -1
+end
+count = redis.call('HINCRBY', KEYS[1], ARGV[1], 1)
+redis.call('SADD', KEYS[2], ARGV[3])
+-- a single notification per recipient and window, whatever the node
+local window = tonumber(ARGV[5])
+if window == 0 or (window > 0 and redis.call('SET', KEYS[4], '1', 'NX', 'PX', window)) then
+	redis.call('RPUSH', KEYS[3], ARGV[4])
+end
+return count
@@ -0,0 +1,65 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.aspectj.annotation.AspectJProxyFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.configuration.DependencyMetricsAspect;
+import fr.gouv.culture.francetransfert.core.services.RedisManager;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Metaload calls are timed by method and outcome, on timers built once.
+ */
+public class DependencyMetricsAspectTest {
+
+	private SimpleMeterRegistry meterRegistry;
+
+	private RedisManager redisManager;
+
+	@Before
+	public void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		DependencyMetricsAspect aspect = new DependencyMetricsAspect();
+		ReflectionTestUtils.setField(aspect, "meterRegistry", meterRegistry);
+		AspectJProxyFactory proxyFactory = new AspectJProxyFactory(new RedisManager() {
+			@Override
+			public String getHgetString(String key, String field) {
+				if ("missing".equals(key)) {
+					throw new IllegalStateException("metaload unreachable");
+				}
+				return "value";
+			}
+		});
+		proxyFactory.setProxyTargetClass(true);
+		proxyFactory.addAspect(aspect);
+		redisManager = proxyFactory.getProxy();
+	}
+
+	@Test
+	public void callsAreTimedByOutcome() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals("value", redisManager.getHgetString("enclosure", "field"));
+		}
+		Assert.assertThrows(IllegalStateException.class, () -> redisManager.getHgetString("missing", "field"));
+
+		Timer success = meterRegistry.get("ft.dependency.calls").tag("dependency", "redis")
+				.tag("method", "getHgetString").tag("outcome", "success").timer();
+		Timer error = meterRegistry.get("ft.dependency.calls").tag("method", "getHgetString").tag("outcome", "error")
+				.timer();
+		Assert.assertEquals(3, success.count());
+		Assert.assertEquals(1, error.count());
+		Assert.assertEquals(1, meterRegistry.get("ft.dependency.errors").tag("exception", "IllegalStateException")
+				.counter().count(), 0);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.services.DownloadGrantServices;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.Pool;
+
+public class DownloadGrantServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final String RECIPIENT_ID = "8ffd72f0-4432-4e07-b247-362b1eb4vfrt";
+
+	private DownloadGrantServices downloadGrantServices;
+
+	private Jedis jedis;
+
+	@Before
+	public void setUp() throws Exception {
+		jedis = mock(Jedis.class);
+		when(jedis.scriptLoad(anyString())).thenReturn("sha");
+		when(jedis.evalsha(anyString(), anyList(), anyList())).thenReturn(1L);
+		@SuppressWarnings("unchecked")
+		Pool<Jedis> pool = mock(Pool.class);
+		when(pool.getResource()).thenReturn(jedis);
+
+		downloadGrantServices = new DownloadGrantServices();
+		ReflectionTestUtils.setField(downloadGrantServices, "metaloadPool", pool);
+		ReflectionTestUtils.setField(downloadGrantServices, "progressWindowSeconds", 600L);
+		ReflectionTestUtils.setField(downloadGrantServices, "progressLocalMaxSize", 1000L);
+		downloadGrantServices.init();
+	}
+
+	@Test
+	public void retriesSkipTheProgressNotification() {
+		Assert.assertTrue(downloadGrantServices.grantDownload(ENCLOSURE_ID, RECIPIENT_ID, 5));
+		Assert.assertTrue(downloadGrantServices.grantDownload(ENCLOSURE_ID, RECIPIENT_ID, 5));
+		Assert.assertTrue(downloadGrantServices.grantDownload("other-enclosure", RECIPIENT_ID, 5));
+
+		List<List<String>> args = grantArgs(3);
+		// guarded by Redis for the window, then known as notified by the node
+		Assert.assertEquals("600000", args.get(0).get(4));
+		Assert.assertEquals("-1", args.get(1).get(4));
+		Assert.assertEquals("600000", args.get(2).get(4));
+		Assert.assertEquals(ENCLOSURE_ID + ":" + RECIPIENT_ID, args.get(1).get(3));
+	}
+
+	@Test
+	public void refusedGrantDoesNotStartTheWindow() {
+		when(jedis.evalsha(anyString(), anyList(), anyList())).thenReturn(-1L, 1L);
+		Assert.assertFalse(downloadGrantServices.grantDownload(ENCLOSURE_ID, RECIPIENT_ID, 5));
+		Assert.assertTrue(downloadGrantServices.grantDownload(ENCLOSURE_ID, RECIPIENT_ID, 5));
+
+		Assert.assertEquals("600000", grantArgs(2).get(1).get(4));
+	}
+
+	@Test
+	public void everyGrantIsNotifiedWithoutWindow() {
+		ReflectionTestUtils.setField(downloadGrantServices, "progressWindowSeconds", 0L);
+		downloadGrantServices.grantDownload(ENCLOSURE_ID, RECIPIENT_ID, 5);
+		downloadGrantServices.grantDownload(ENCLOSURE_ID, RECIPIENT_ID, 5);
+
+		Assert.assertEquals("0", grantArgs(2).get(1).get(4));
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<List<String>> grantArgs(int grants) {
+		ArgumentCaptor<List<String>> args = ArgumentCaptor.forClass(List.class);
+		verify(jedis, times(grants)).evalsha(anyString(), anyList(), args.capture());
+		return args.getAllValues();
+	}
+}
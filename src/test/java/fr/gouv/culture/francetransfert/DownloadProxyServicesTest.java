@@ -0,0 +1,247 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sun.net.httpserver.HttpServer;
+
+import fr.gouv.culture.francetransfert.application.error.StorageUnavailableException;
+import fr.gouv.culture.francetransfert.application.resources.model.Download;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.services.DownloadProxyServices;
+import fr.gouv.culture.francetransfert.application.services.DownloadServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureCacheServices;
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.params.SetParams;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Range, If-Range and counting rules of the download proxy against a local
+ * storage serving the zipped enclosure, the counted downloads being kept in a
+ * set standing for Redis.
+ */
+public class DownloadProxyServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final String ETAG = "\"5d41402abc4b2a76b9719d911017c592\"";
+
+	private static final byte[] ZIP = new byte[300000];
+
+	private HttpServer storage;
+
+	private CountDownLatch stalledStorage;
+
+	private String downloadUrl;
+
+	private List<Boolean> counted;
+
+	private Set<String> countedKeys;
+
+	private Jedis jedis;
+
+	private DownloadProxyServices downloadProxyServices;
+
+	@Before
+	public void setUp() throws Exception {
+		Arrays.fill(ZIP, 0, ZIP.length / 2, (byte) 1);
+		stalledStorage = new CountDownLatch(1);
+		storage = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		storage.createContext("/bucket/enclosure.zip", exchange -> {
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			String first = range == null ? "0" : range.substring("bytes=".length(), range.indexOf('-'));
+			int start = first.isEmpty() ? ZIP.length - Integer.parseInt(range.substring(range.indexOf('-') + 1))
+					: Integer.parseInt(first);
+			exchange.getResponseHeaders().add("ETag", ETAG);
+			if (range != null) {
+				exchange.getResponseHeaders().add("Content-Range",
+						"bytes " + start + "-" + (ZIP.length - 1) + "/" + ZIP.length);
+			}
+			exchange.sendResponseHeaders(range == null ? 200 : 206, ZIP.length - start);
+			try (OutputStream body = exchange.getResponseBody()) {
+				body.write(ZIP, start, ZIP.length - start);
+			}
+		});
+		storage.createContext("/bucket/stalled.zip", exchange -> {
+			exchange.sendResponseHeaders(200, ZIP.length);
+			try (OutputStream body = exchange.getResponseBody()) {
+				body.write(ZIP, 0, 1000);
+				body.flush();
+				stalledStorage.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		storage.start();
+		downloadUrl = "http://127.0.0.1:" + storage.getAddress().getPort()
+				+ "/bucket/enclosure.zip?X-Amz-Signature=1";
+
+		counted = new ArrayList<>();
+		DownloadServices downloadServices = mock(DownloadServices.class);
+		when(downloadServices.generateDownloadUrlWithPassword(any(), any(Predicate.class))).thenAnswer(invocation -> {
+			Predicate<String> alreadyCounted = invocation.getArgument(1);
+			counted.add(!alreadyCounted.test("recipient-id"));
+			return new Download(downloadUrl);
+		});
+		countedKeys = new HashSet<>();
+		jedis = mock(Jedis.class);
+		when(jedis.exists(anyString())).thenAnswer(invocation -> countedKeys.contains(invocation.getArgument(0)));
+		when(jedis.set(anyString(), anyString(), any(SetParams.class)))
+				.thenAnswer(invocation -> countedKeys.add(invocation.getArgument(0)) ? "OK" : null);
+		@SuppressWarnings("unchecked")
+		Pool<Jedis> metaloadPool = mock(Pool.class);
+		when(metaloadPool.getResource()).thenReturn(jedis);
+		EnclosureCacheServices enclosureCacheServices = mock(EnclosureCacheServices.class);
+		when(enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID)).thenReturn(
+				EnclosureMetadata.builder().enclosureId(ENCLOSURE_ID).hashFile(ETAG.replace("\"", "")).build());
+		StorageManager storageManager = mock(StorageManager.class);
+		when(storageManager.getZippedEnclosureName(ENCLOSURE_ID)).thenReturn(ENCLOSURE_ID + ".zip");
+
+		downloadProxyServices = new DownloadProxyServices();
+		ReflectionTestUtils.setField(downloadProxyServices, "bufferSize", 8192);
+		ReflectionTestUtils.setField(downloadProxyServices, "maxBuffers", 4);
+		ReflectionTestUtils.setField(downloadProxyServices, "bufferWaitMillis", 10L);
+		ReflectionTestUtils.setField(downloadProxyServices, "connectTimeoutSeconds", 5L);
+		ReflectionTestUtils.setField(downloadProxyServices, "requestTimeoutSeconds", 5L);
+		ReflectionTestUtils.setField(downloadProxyServices, "readTimeoutSeconds", 1L);
+		ReflectionTestUtils.setField(downloadProxyServices, "resumeMinutes", 60L);
+		ReflectionTestUtils.setField(downloadProxyServices, "downloadServices", downloadServices);
+		ReflectionTestUtils.setField(downloadProxyServices, "enclosureCacheServices", enclosureCacheServices);
+		ReflectionTestUtils.setField(downloadProxyServices, "storageManager", storageManager);
+		ReflectionTestUtils.setField(downloadProxyServices, "storageResilienceServices",
+				StorageResilienceServicesTest.storageResilienceServices());
+		ReflectionTestUtils.setField(downloadProxyServices, "metaloadPool", metaloadPool);
+		ReflectionTestUtils.setField(downloadProxyServices, "meterRegistry", new SimpleMeterRegistry());
+		downloadProxyServices.init();
+	}
+
+	@After
+	public void tearDown() {
+		stalledStorage.countDown();
+		storage.stop(0);
+		downloadProxyServices.destroy();
+	}
+
+	@Test
+	public void wholeEnclosureIsStreamedAndCounted() throws Exception {
+		MockHttpServletResponse response = stream(null, null);
+
+		Assert.assertEquals(200, response.getStatus());
+		Assert.assertArrayEquals(ZIP, response.getContentAsByteArray());
+		Assert.assertEquals("bytes", response.getHeader("Accept-Ranges"));
+		Assert.assertTrue(response.getHeader("Content-Disposition").contains(ENCLOSURE_ID + ".zip"));
+		Assert.assertEquals(List.of(true), counted);
+		Assert.assertEquals(Set.of("download-proxy-counted:" + ENCLOSURE_ID + ":recipient-id"), countedKeys);
+	}
+
+	@Test
+	public void resumedDownloadIsNotCountedTwice() throws Exception {
+		stream(null, null);
+		MockHttpServletResponse response = stream("bytes=1000-", ETAG);
+
+		Assert.assertEquals(206, response.getStatus());
+		Assert.assertEquals("bytes 1000-299999/300000", response.getHeader("Content-Range"));
+		Assert.assertArrayEquals(Arrays.copyOfRange(ZIP, 1000, ZIP.length), response.getContentAsByteArray());
+		Assert.assertEquals(List.of(true, false), counted);
+		// only the counted download sets the window
+		verify(jedis, times(1)).set(anyString(), anyString(), any(SetParams.class));
+	}
+
+	@Test
+	public void onlyValidatedResumesAreNotCounted() throws Exception {
+		stream(null, null);
+		stream("bytes=1000-", null);
+		MockHttpServletResponse suffix = stream("bytes=-" + ZIP.length, ETAG);
+		stream("bytes=0-", ETAG);
+
+		Assert.assertEquals(206, suffix.getStatus());
+		Assert.assertEquals(ZIP.length, suffix.getContentAsByteArray().length);
+		Assert.assertEquals(List.of(true, true, true, true), counted);
+	}
+
+	@Test
+	public void resumeWithoutCountedDownloadIsCounted() throws Exception {
+		stream("bytes=1000-", ETAG);
+
+		Assert.assertEquals(List.of(true), counted);
+	}
+
+	@Test
+	public void staleValidatorGetsTheWholeEnclosure() throws Exception {
+		stream(null, null);
+		MockHttpServletResponse response = stream("bytes=1000-", "\"another-version\"");
+
+		Assert.assertEquals(200, response.getStatus());
+		Assert.assertEquals(ZIP.length, response.getContentAsByteArray().length);
+		Assert.assertEquals(List.of(true, true), counted);
+	}
+
+	@Test
+	public void stalledStorageReadIsAbandoned() {
+		downloadUrl = downloadUrl.replace("enclosure.zip", "stalled.zip");
+		long start = System.nanoTime();
+
+		Assert.assertThrows(DownloadException.class, () -> stream(null, null));
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		// the buffer went back to the pool
+		Assert.assertEquals(4, ((Semaphore) ReflectionTestUtils.getField(downloadProxyServices, "bufferPermits"))
+				.availablePermits());
+	}
+
+	@Test
+	public void downloadIsRefusedWhenEveryBufferIsInUse() {
+		((Semaphore) ReflectionTestUtils.getField(downloadProxyServices, "bufferPermits")).drainPermits();
+
+		Assert.assertThrows(StorageUnavailableException.class, () -> stream(null, null));
+	}
+
+	private MockHttpServletResponse stream(String range, String ifRange) throws Exception {
+		DownloadPasswordMetaData downloadMeta = new DownloadPasswordMetaData();
+		downloadMeta.setEnclosure(ENCLOSURE_ID);
+		downloadMeta.setRecipient("recipient@gouv.fr");
+		MockHttpServletRequest request = new MockHttpServletRequest();
+		if (range != null) {
+			request.addHeader("Range", range);
+		}
+		if (ifRange != null) {
+			request.addHeader("If-Range", ifRange);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		downloadProxyServices.stream(downloadMeta, request, response);
+		return response;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URL;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.services.DownloadUrlServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureInvalidatedEvent;
+import fr.gouv.culture.francetransfert.application.services.SingleFlightServices;
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * A presigned URL is reused until the safety margin before its expiry, without
+ * any storage call, then minted again.
+ */
+public class DownloadUrlServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final String ZIP_NAME = ENCLOSURE_ID + ".zip";
+
+	private DownloadUrlServices downloadUrlServices;
+
+	private StorageManager storageManager;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	private int minted;
+
+	@Before
+	public void setUp() throws Exception {
+		storageManager = mock(StorageManager.class);
+		when(storageManager.getZippedEnclosureName(ENCLOSURE_ID)).thenReturn(ZIP_NAME);
+		when(storageManager.generateDownloadURL(anyString(), anyString(), anyInt()))
+				.thenAnswer(invocation -> new URL("https://storage/" + invocation.getArgument(0) + "/"
+						+ invocation.getArgument(1) + "?signature=" + (++minted)));
+
+		meterRegistry = new SimpleMeterRegistry();
+		SingleFlightServices singleFlightServices = new SingleFlightServices();
+		ReflectionTestUtils.setField(singleFlightServices, "waitMillis", 5000L);
+		ReflectionTestUtils.setField(singleFlightServices, "meterRegistry", meterRegistry);
+
+		downloadUrlServices = new DownloadUrlServices();
+		// URLs valid for 1 minute, reused for 1 second
+		ReflectionTestUtils.setField(downloadUrlServices, "expireInMinutes", 1);
+		ReflectionTestUtils.setField(downloadUrlServices, "safetyMarginSeconds", 59L);
+		ReflectionTestUtils.setField(downloadUrlServices, "maxSize", 100L);
+		ReflectionTestUtils.setField(downloadUrlServices, "storageManager", storageManager);
+		ReflectionTestUtils.setField(downloadUrlServices, "storageResilienceServices",
+				StorageResilienceServicesTest.storageResilienceServices());
+		ReflectionTestUtils.setField(downloadUrlServices, "singleFlightServices", singleFlightServices);
+		ReflectionTestUtils.setField(downloadUrlServices, "meterRegistry", meterRegistry);
+		downloadUrlServices.init();
+	}
+
+	@Test
+	public void urlIsReusedWithoutStorageCall() throws Exception {
+		String url = downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "bucket");
+		Assert.assertEquals("https://storage/bucket/" + ZIP_NAME + "?signature=1", url);
+		Assert.assertEquals(url, downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "bucket"));
+		Assert.assertEquals(url, downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "bucket"));
+
+		verify(storageManager, times(1)).getZippedEnclosureName(ENCLOSURE_ID);
+		verify(storageManager, times(1)).generateDownloadURL("bucket", ZIP_NAME, 1);
+		Assert.assertEquals(1, meterRegistry.timer("ft.download.url.mint").count());
+		Assert.assertEquals(2, cacheGets("hit"), 0);
+		Assert.assertEquals(1, cacheGets("miss"), 0);
+	}
+
+	@Test
+	public void urlIsMintedAgainAtTheSafetyMargin() throws Exception {
+		String url = downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "bucket");
+
+		Thread.sleep(1100);
+		String refreshed = downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "bucket");
+		Assert.assertNotEquals(url, refreshed);
+		Assert.assertEquals(refreshed, downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "bucket"));
+
+		verify(storageManager, times(2)).getZippedEnclosureName(ENCLOSURE_ID);
+		verify(storageManager, times(2)).generateDownloadURL("bucket", ZIP_NAME, 1);
+		Assert.assertEquals(2, meterRegistry.timer("ft.download.url.mint").count());
+	}
+
+	@Test
+	public void urlIsNotSharedAcrossBucketsNorKeptAfterAnInvalidation() throws Exception {
+		String url = downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "bucket");
+		Assert.assertNotEquals(url, downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "other-bucket"));
+
+		downloadUrlServices.onEnclosureInvalidated(new EnclosureInvalidatedEvent(ENCLOSURE_ID));
+		Assert.assertNotEquals(url, downloadUrlServices.getDownloadUrl(ENCLOSURE_ID, "bucket"));
+		Assert.assertEquals(3, meterRegistry.timer("ft.download.url.mint").count());
+	}
+
+	private double cacheGets(String result) {
+		return meterRegistry.get("cache.gets").tags("cache", "download-url", "result", result).functionCounter()
+				.count();
+	}
+}
@@ -0,0 +1,165 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.services.EnclosureCacheServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureListingServices;
+import fr.gouv.culture.francetransfert.application.services.MetaloadChannelServices;
+import fr.gouv.culture.francetransfert.application.services.MetaloadReadServices;
+import fr.gouv.culture.francetransfert.application.services.ParallelLookupServices;
+import fr.gouv.culture.francetransfert.application.services.SingleFlightServices;
+import fr.gouv.culture.francetransfert.core.enums.EnclosureKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.SenderKeysEnum;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * An invalidation must win over the load it overtakes, the near-cache must not
+ * keep what was read before it.
+ */
+public class EnclosureCacheServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private EnclosureCacheServices enclosureCacheServices;
+
+	private ParallelLookupServices parallelLookupServices;
+
+	private ExecutorService callers;
+
+	private final CountDownLatch loading = new CountDownLatch(1);
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private final AtomicInteger roundTrips = new AtomicInteger();
+
+	private Jedis jedis;
+
+	@Before
+	public void setUp() {
+		Map<String, String> enclosure = new HashMap<>();
+		enclosure.put(EnclosureKeysEnum.TIMESTAMP.getKey(), "2022-10-17T12:00:00.000");
+		enclosure.put(EnclosureKeysEnum.EXPIRED_TIMESTAMP.getKey(), LocalDate.now().plusDays(10).toString());
+		enclosure.put(EnclosureKeysEnum.HASH_FILE.getKey(), "etag");
+		Pipeline pipeline = mock(Pipeline.class);
+		doAnswer(invocation -> roundTrips.incrementAndGet()).when(pipeline).sync();
+		when(pipeline.hgetAll(RedisKeysEnum.FT_ENCLOSURE.getKey(ENCLOSURE_ID))).thenAnswer(
+				invocation -> EnclosureContextServicesTest.mapResponse(enclosure));
+		when(pipeline.hget(RedisKeysEnum.FT_SENDER.getKey(ENCLOSURE_ID), SenderKeysEnum.EMAIL.getKey()))
+				.thenAnswer(invocation -> {
+					Response<String> response = new Response<>(BuilderFactory.STRING);
+					response.set("sender@gouv.fr".getBytes(StandardCharsets.UTF_8));
+					return response;
+				});
+		jedis = mock(Jedis.class);
+		when(jedis.pipelined()).thenReturn(pipeline);
+		MetaloadReadServices metaloadReadServices = mock(MetaloadReadServices.class);
+		when(metaloadReadServices.read(any(), any())).thenAnswer(invocation -> {
+			if (loads.incrementAndGet() == 1) {
+				loading.countDown();
+				release.await(5, TimeUnit.SECONDS);
+			}
+			Function<Jedis, ?> reader = invocation.getArgument(0);
+			return reader.apply(jedis);
+		});
+		SingleFlightServices singleFlightServices = new SingleFlightServices();
+		ReflectionTestUtils.setField(singleFlightServices, "waitMillis", 5000L);
+		ReflectionTestUtils.setField(singleFlightServices, "meterRegistry", new SimpleMeterRegistry());
+		parallelLookupServices = EnclosureContextServicesTest.parallelLookupServices();
+
+		enclosureCacheServices = new EnclosureCacheServices();
+		ReflectionTestUtils.setField(enclosureCacheServices, "cacheEnabled", true);
+		ReflectionTestUtils.setField(enclosureCacheServices, "maxSize", 100L);
+		ReflectionTestUtils.setField(enclosureCacheServices, "ttlMinutes", 10L);
+		ReflectionTestUtils.setField(enclosureCacheServices, "bucketPrefix", "ft-");
+		ReflectionTestUtils.setField(enclosureCacheServices, "enclosureListingServices",
+				mock(EnclosureListingServices.class));
+		ReflectionTestUtils.setField(enclosureCacheServices, "metaloadReadServices", metaloadReadServices);
+		ReflectionTestUtils.setField(enclosureCacheServices, "metaloadChannelServices",
+				mock(MetaloadChannelServices.class));
+		ReflectionTestUtils.setField(enclosureCacheServices, "eventPublisher", mock(ApplicationEventPublisher.class));
+		ReflectionTestUtils.setField(enclosureCacheServices, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(enclosureCacheServices, "parallelLookupServices", parallelLookupServices);
+		ReflectionTestUtils.setField(enclosureCacheServices, "singleFlightServices", singleFlightServices);
+		enclosureCacheServices.init();
+		callers = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		callers.shutdownNow();
+		parallelLookupServices.destroy();
+	}
+
+	@Test
+	public void hitsAreServedFromTheCache() throws Exception {
+		release.countDown();
+		enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID);
+		enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID);
+
+		Assert.assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void missReadsTheEnclosureInOneRoundTrip() throws Exception {
+		release.countDown();
+		EnclosureMetadata metadata = enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID);
+
+		Assert.assertEquals(1, roundTrips.get());
+		Assert.assertEquals("sender@gouv.fr", metadata.getSenderMail());
+		Assert.assertEquals("ft-20221017", metadata.getBucketName());
+		Assert.assertEquals("etag", metadata.getHashFile());
+	}
+
+	@Test
+	public void invalidationDuringALoadDiscardsIt() throws Exception {
+		Future<EnclosureMetadata> stale = callers.submit(() -> enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID));
+		Assert.assertTrue(loading.await(5, TimeUnit.SECONDS));
+		enclosureCacheServices.evictLocal(ENCLOSURE_ID);
+		release.countDown();
+		// the caller of the overtaken load still gets its result
+		Assert.assertNotNull(stale.get(5, TimeUnit.SECONDS));
+
+		enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID);
+		Assert.assertEquals(2, loads.get());
+		enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID);
+		Assert.assertEquals(2, loads.get());
+	}
+}
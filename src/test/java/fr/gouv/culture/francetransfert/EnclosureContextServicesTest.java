@@ -0,0 +1,395 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.error.UnauthorizedAccessException;
+import fr.gouv.culture.francetransfert.application.resources.model.BatchItemRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureListing;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureTokenMetaData;
+import fr.gouv.culture.francetransfert.application.services.DownloadGrantServices;
+import fr.gouv.culture.francetransfert.application.services.DownloadServices;
+import fr.gouv.culture.francetransfert.application.services.DownloadUrlServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureCacheServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureContextServices;
+import fr.gouv.culture.francetransfert.application.services.EventOutboxServices;
+import fr.gouv.culture.francetransfert.application.services.IntegrityVerificationServices;
+import fr.gouv.culture.francetransfert.application.services.MetaloadReadServices;
+import fr.gouv.culture.francetransfert.application.services.MetaloadChannelServices;
+import fr.gouv.culture.francetransfert.application.services.MissingEnclosureServices;
+import fr.gouv.culture.francetransfert.application.services.ParallelLookupServices;
+import fr.gouv.culture.francetransfert.core.enums.EnclosureKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RecipientKeysEnum;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import fr.gouv.culture.francetransfert.core.services.RedisManager;
+import fr.gouv.culture.francetransfert.core.utils.Base64CryptoService;
+import fr.gouv.culture.francetransfert.core.utils.StringUploadUtils;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+import fr.gouv.culture.francetransfert.domain.exceptions.InvalidHashException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Counts the Redis commands and round trips of a full download url request,
+ * every validation step must be served by the request context.
+ */
+public class EnclosureContextServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final String RECIPIENT_ID = "8ffd72f0-4432-4e07-b247-362b1eb4vfrt";
+
+	private static final String RECIPIENT_MAIL = "recipient@gouv.fr";
+
+	private static final String OTHER_ENCLOSURE_ID = "3c2a8e1b-9f0d-4c55-8d1e-6b7f2a4c9e01";
+
+	/** admin token left behind by an enclosure whose hash is gone */
+	private static final String ORPHAN_ENCLOSURE_ID = "5e7b1c0d-2a3f-4b6e-9c8d-0f1e2d3c4b5a";
+
+	private DownloadServices downloadServices;
+
+	private RedisManager redisManager;
+
+	private DownloadGrantServices downloadGrantServices;
+
+	private IntegrityVerificationServices integrityVerificationServices;
+
+	private AtomicInteger roundTrips;
+
+	private AtomicInteger pipelinedCommands;
+
+	private List<String> readHashes;
+
+	private MetaloadReadServices metaloadReadServices;
+
+	@Before
+	public void setUp() throws Exception {
+		roundTrips = new AtomicInteger();
+		pipelinedCommands = new AtomicInteger();
+		readHashes = new CopyOnWriteArrayList<>();
+		Pipeline pipeline = mock(Pipeline.class);
+		doAnswer(invocation -> roundTrips.incrementAndGet()).when(pipeline).sync();
+		when(pipeline.hgetAll(anyString())).thenAnswer(invocation -> {
+			pipelinedCommands.incrementAndGet();
+			readHashes.add(invocation.getArgument(0));
+			return mapResponse(hash(invocation.getArgument(0)));
+		});
+		when(pipeline.exists(anyString())).thenAnswer(invocation -> {
+			pipelinedCommands.incrementAndGet();
+			Response<Boolean> response = new Response<>(BuilderFactory.BOOLEAN);
+			response.set(1L);
+			return response;
+		});
+		Jedis jedis = mock(Jedis.class);
+		when(jedis.pipelined()).thenReturn(pipeline);
+		@SuppressWarnings("unchecked")
+		Pool<Jedis> pool = mock(Pool.class);
+		when(pool.getResource()).thenReturn(jedis);
+		metaloadReadServices = MetaloadReadServicesTest.masterOnly(pool);
+		EnclosureContextServices enclosureContextServices = new EnclosureContextServices();
+		ReflectionTestUtils.setField(enclosureContextServices, "metaloadPool", pool);
+		ReflectionTestUtils.setField(enclosureContextServices, "metaloadReadServices", metaloadReadServices);
+
+		EnclosureCacheServices enclosureCacheServices = mock(EnclosureCacheServices.class);
+		when(enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID)).thenReturn(EnclosureMetadata.builder()
+				.enclosureId(ENCLOSURE_ID).expirationDate(LocalDate.now().plusDays(10)).bucketName("bucket")
+				.listing(new EnclosureListing(List.of(), List.of())).version("v1").build());
+		when(enclosureCacheServices.getEnclosureMetadata(OTHER_ENCLOSURE_ID))
+				.thenThrow(new DownloadException(ErrorEnum.WRONG_ENCLOSURE.getValue(), OTHER_ENCLOSURE_ID));
+		integrityVerificationServices = mock(IntegrityVerificationServices.class);
+		when(integrityVerificationServices.isIntegrityValid(any())).thenReturn(true);
+		DownloadUrlServices downloadUrlServices = mock(DownloadUrlServices.class);
+		when(downloadUrlServices.getDownloadUrl(anyString(), anyString())).thenReturn("https://bucket/enclosure.zip");
+		downloadGrantServices = mock(DownloadGrantServices.class);
+		when(downloadGrantServices.grantDownload(anyString(), anyString(), anyInt())).thenReturn(true);
+		StringUploadUtils stringUploadUtils = mock(StringUploadUtils.class);
+		when(stringUploadUtils.isValidEmail(anyString())).thenReturn(true);
+		Base64CryptoService base64CryptoService = mock(Base64CryptoService.class);
+		when(base64CryptoService.aesDecrypt("encrypted")).thenReturn("secret");
+		redisManager = mock(RedisManager.class);
+
+		downloadServices = new DownloadServices();
+		ReflectionTestUtils.setField(downloadServices, "maxDownload", 5);
+		ReflectionTestUtils.setField(downloadServices, "maxPasswordTry", 5);
+		ReflectionTestUtils.setField(downloadServices, "batchMaxSize", 100);
+		ReflectionTestUtils.setField(downloadServices, "redisManager", redisManager);
+		ReflectionTestUtils.setField(downloadServices, "base64CryptoService", base64CryptoService);
+		ReflectionTestUtils.setField(downloadServices, "stringUploadUtils", stringUploadUtils);
+		ReflectionTestUtils.setField(downloadServices, "enclosureCacheServices", enclosureCacheServices);
+		ReflectionTestUtils.setField(downloadServices, "integrityVerificationServices", integrityVerificationServices);
+		ReflectionTestUtils.setField(downloadServices, "downloadUrlServices", downloadUrlServices);
+		ReflectionTestUtils.setField(downloadServices, "downloadGrantServices", downloadGrantServices);
+		ReflectionTestUtils.setField(downloadServices, "eventOutboxServices", mock(EventOutboxServices.class));
+		ReflectionTestUtils.setField(downloadServices, "enclosureContextServices", enclosureContextServices);
+		ReflectionTestUtils.setField(downloadServices, "parallelLookupServices", parallelLookupServices());
+		ReflectionTestUtils.setField(downloadServices, "missingEnclosureServices", missingEnclosureServices());
+	}
+
+	@Test
+	public void recipientDownloadIsServedByOneRoundTrip() throws Exception {
+		DownloadPasswordMetaData downloadMeta = downloadMeta();
+		downloadMeta.setToken(RECIPIENT_ID);
+
+		Assert.assertNotNull(downloadServices.generateDownloadUrlWithPassword(downloadMeta).getDownloadURL());
+
+		Assert.assertEquals(1, roundTrips.get());
+		// enclosure, admin token, recipients, recipient, then the grant script
+		Assert.assertEquals(5, redisCommands());
+	}
+
+	@Test
+	public void senderDownloadResolvesRecipientWithOneMoreRoundTrip() throws Exception {
+		DownloadPasswordMetaData downloadMeta = downloadMeta();
+		downloadMeta.setSenderToken("sender-token");
+
+		Assert.assertNotNull(downloadServices.generateDownloadUrlWithPassword(downloadMeta).getDownloadURL());
+
+		Assert.assertEquals(2, roundTrips.get());
+		// plus the sender token validation
+		Assert.assertEquals(6, redisCommands());
+	}
+
+	@Test
+	public void mismatchedHashRefusesTheDownload() throws Exception {
+		when(integrityVerificationServices.isIntegrityValid(any())).thenReturn(false);
+		DownloadPasswordMetaData downloadMeta = downloadMeta();
+		downloadMeta.setToken(RECIPIENT_ID);
+
+		Assert.assertThrows(InvalidHashException.class,
+				() -> downloadServices.generateDownloadUrlWithPassword(downloadMeta));
+		verify(downloadGrantServices, never()).grantDownload(anyString(), anyString(), anyInt());
+	}
+
+	@Test
+	public void batchDownloadInfoIsServedByTwoRoundTrips() throws Exception {
+		List<BatchItemRepresentation<DownloadRepresentation>> items = downloadServices
+				.getDownloadInfoConnect(List.of(ENCLOSURE_ID, OTHER_ENCLOSURE_ID), RECIPIENT_MAIL);
+
+		Assert.assertEquals(2, items.size());
+		Assert.assertNull(items.get(0).getError());
+		Assert.assertEquals(RECIPIENT_MAIL, items.get(0).getResult().getRecipientMail());
+		Assert.assertEquals(ErrorEnum.WRONG_ENCLOSURE.getValue(), items.get(1).getError());
+		// admin tokens and recipients, then the recipient hashes
+		Assert.assertEquals(2, roundTrips.get());
+		Assert.assertFalse(readHashes.contains(RedisKeysEnum.FT_ENCLOSURE.getKey(ENCLOSURE_ID)));
+	}
+
+	@Test
+	public void downloadInfoDoesNotReadTheEnclosureHash() throws Exception {
+		Assert.assertNotNull(downloadServices.getDownloadInfo(ENCLOSURE_ID, RECIPIENT_ID, RECIPIENT_MAIL));
+		Assert.assertNotNull(downloadServices.getDownloadInfoConnect(ENCLOSURE_ID, RECIPIENT_MAIL));
+
+		// the connected recipient id is resolved from its mail
+		Assert.assertEquals(3, roundTrips.get());
+		// admin token, recipients and recipient of each request
+		Assert.assertEquals(6, pipelinedCommands.get());
+		Assert.assertFalse(readHashes.contains(RedisKeysEnum.FT_ENCLOSURE.getKey(ENCLOSURE_ID)));
+	}
+
+	@Test
+	public void batchPublicCountsAreReadInOneRoundTrip() throws Exception {
+		List<BatchItemRepresentation<String>> items = downloadServices.getNumberOfDownloadPublic(
+				List.of(new EnclosureTokenMetaData(ENCLOSURE_ID, "admin-token"),
+						new EnclosureTokenMetaData(OTHER_ENCLOSURE_ID, "wrong-token"),
+						new EnclosureTokenMetaData(ORPHAN_ENCLOSURE_ID, "admin-token")));
+
+		Assert.assertEquals("3", items.get(0).getResult());
+		Assert.assertEquals(ErrorEnum.WRONG_PASSWORD.getValue(), items.get(1).getError());
+		Assert.assertNull(items.get(2).getResult());
+		Assert.assertEquals(ErrorEnum.WRONG_ENCLOSURE.getValue(), items.get(2).getError());
+		Assert.assertEquals(1, roundTrips.get());
+	}
+
+	@Test
+	public void downloadInfoIsReadOnASyncedReplica() throws Exception {
+		AtomicInteger replicaRoundTrips = new AtomicInteger();
+		useReplica(replicaRoundTrips, true);
+
+		Assert.assertNotNull(downloadServices.getDownloadInfo(ENCLOSURE_ID, RECIPIENT_ID, RECIPIENT_MAIL));
+		Assert.assertEquals(1, downloadServices.getNumberOfDownloadPublic(
+				List.of(new EnclosureTokenMetaData(ENCLOSURE_ID, "admin-token"))).size());
+
+		Assert.assertEquals(2, replicaRoundTrips.get());
+		Assert.assertEquals(0, roundTrips.get());
+	}
+
+	@Test
+	public void enclosureNotReplicatedYetIsReadOnTheMaster() throws Exception {
+		AtomicInteger replicaRoundTrips = new AtomicInteger();
+		useReplica(replicaRoundTrips, false);
+
+		Assert.assertNotNull(downloadServices.getDownloadInfo(ENCLOSURE_ID, RECIPIENT_ID, RECIPIENT_MAIL));
+		List<BatchItemRepresentation<String>> counts = downloadServices
+				.getNumberOfDownloadPublic(List.of(new EnclosureTokenMetaData(ENCLOSURE_ID, "admin-token")));
+		Assert.assertEquals("3", counts.get(0).getResult());
+
+		Assert.assertEquals(2, replicaRoundTrips.get());
+		Assert.assertEquals(2, roundTrips.get());
+	}
+
+	@Test
+	public void passwordValidationIsReadOnTheMaster() throws Exception {
+		AtomicInteger replicaRoundTrips = new AtomicInteger();
+		useReplica(replicaRoundTrips, true);
+		DownloadPasswordMetaData downloadMeta = downloadMeta();
+		downloadMeta.setToken(RECIPIENT_ID);
+
+		downloadServices.generateDownloadUrlWithPassword(downloadMeta);
+
+		Assert.assertEquals(0, replicaRoundTrips.get());
+		Assert.assertEquals(1, roundTrips.get());
+	}
+
+	@Test
+	public void unchangedDownloadInfoIsNotRebuilt() throws Exception {
+		List<String> tags = new ArrayList<>();
+		DownloadRepresentation representation = downloadServices.getDownloadInfo(ENCLOSURE_ID, RECIPIENT_ID,
+				RECIPIENT_MAIL, tags::add);
+		Assert.assertNull(representation);
+
+		String tag = tags.get(0);
+		Assert.assertTrue(tag.startsWith("v1-"));
+		Assert.assertNotNull(downloadServices.getDownloadInfo(ENCLOSURE_ID, RECIPIENT_ID, RECIPIENT_MAIL,
+				clientTag -> !tag.equals(clientTag)));
+		// the recipient authorization is still checked
+		Assert.assertThrows(DownloadException.class,
+				() -> downloadServices.getDownloadInfo(ENCLOSURE_ID, "other-recipient", RECIPIENT_MAIL, tags::add));
+		Assert.assertEquals(1, tags.size());
+	}
+
+	@Test
+	public void unknownEnclosureIsOnlyReadOnce() throws Exception {
+		EnclosureCacheServices enclosureCacheServices = (EnclosureCacheServices) ReflectionTestUtils
+				.getField(downloadServices, "enclosureCacheServices");
+		for (int i = 0; i < 3; i++) {
+			Assert.assertThrows(UnauthorizedAccessException.class,
+					() -> downloadServices.validatePublic(OTHER_ENCLOSURE_ID));
+		}
+		DownloadException deleted = Assert.assertThrows(DownloadException.class,
+				() -> downloadServices.validatePassword(OTHER_ENCLOSURE_ID, "secret", RECIPIENT_MAIL));
+
+		Assert.assertEquals(ErrorEnum.DELETED_ENCLOSURE.getValue(), deleted.getMessage());
+		verify(enclosureCacheServices, times(1)).getEnclosureMetadata(OTHER_ENCLOSURE_ID);
+		Assert.assertEquals(0, roundTrips.get());
+	}
+
+	/**
+	 * Serve the read-only lookups by a replica, holding the same data as the
+	 * master unless the enclosure is not replicated yet
+	 */
+	private void useReplica(AtomicInteger replicaRoundTrips, boolean replicated) {
+		Pipeline pipeline = mock(Pipeline.class);
+		doAnswer(invocation -> replicaRoundTrips.incrementAndGet()).when(pipeline).sync();
+		when(pipeline.hgetAll(anyString()))
+				.thenAnswer(invocation -> mapResponse(replicated ? hash(invocation.getArgument(0)) : Map.of()));
+		when(pipeline.exists(anyString())).thenAnswer(invocation -> {
+			Response<Boolean> response = new Response<>(BuilderFactory.BOOLEAN);
+			response.set(replicated ? 1L : 0L);
+			return response;
+		});
+		Jedis jedis = mock(Jedis.class);
+		when(jedis.pipelined()).thenReturn(pipeline);
+		JedisPool replica = mock(JedisPool.class);
+		when(replica.getResource()).thenReturn(jedis);
+		ReflectionTestUtils.setField(metaloadReadServices, "healthyReplicas", List.of(replica));
+	}
+
+	private int redisCommands() {
+		return pipelinedCommands.get() + mockingDetails(redisManager).getInvocations().size()
+				+ mockingDetails(downloadGrantServices).getInvocations().size();
+	}
+
+	static ParallelLookupServices parallelLookupServices() {
+		ParallelLookupServices parallelLookupServices = new ParallelLookupServices();
+		ReflectionTestUtils.setField(parallelLookupServices, "threads", 4);
+		ReflectionTestUtils.setField(parallelLookupServices, "queueSize", 100);
+		ReflectionTestUtils.setField(parallelLookupServices, "meterRegistry", new SimpleMeterRegistry());
+		parallelLookupServices.init();
+		return parallelLookupServices;
+	}
+
+	static MissingEnclosureServices missingEnclosureServices() {
+		MissingEnclosureServices missingEnclosureServices = new MissingEnclosureServices();
+		ReflectionTestUtils.setField(missingEnclosureServices, "enabled", true);
+		ReflectionTestUtils.setField(missingEnclosureServices, "capacity", 1024);
+		ReflectionTestUtils.setField(missingEnclosureServices, "ttlMinutes", 60L);
+		ReflectionTestUtils.setField(missingEnclosureServices, "deletedChannel", "ft-enclosure-deleted");
+		ReflectionTestUtils.setField(missingEnclosureServices, "metaloadChannelServices",
+				mock(MetaloadChannelServices.class));
+		ReflectionTestUtils.setField(missingEnclosureServices, "meterRegistry", new SimpleMeterRegistry());
+		missingEnclosureServices.init();
+		return missingEnclosureServices;
+	}
+
+	private static DownloadPasswordMetaData downloadMeta() {
+		DownloadPasswordMetaData downloadMeta = new DownloadPasswordMetaData();
+		downloadMeta.setEnclosure(ENCLOSURE_ID);
+		downloadMeta.setRecipient(RECIPIENT_MAIL);
+		downloadMeta.setPassword("secret");
+		return downloadMeta;
+	}
+
+	private static Map<String, String> hash(String key) {
+		Map<String, String> hash = new HashMap<>();
+		if (RedisKeysEnum.FT_ENCLOSURE.getKey(ENCLOSURE_ID).equals(key)) {
+			hash.put(EnclosureKeysEnum.PASSWORD.getKey(), "encrypted");
+			hash.put(EnclosureKeysEnum.PUBLIC_DOWNLOAD_COUNT.getKey(), "3");
+		} else if (RedisKeysEnum.FT_ADMIN_TOKEN.getKey(ENCLOSURE_ID).equals(key)
+				|| RedisKeysEnum.FT_ADMIN_TOKEN.getKey(ORPHAN_ENCLOSURE_ID).equals(key)) {
+			hash.put(EnclosureKeysEnum.TOKEN.getKey(), "admin-token");
+		} else if (RedisKeysEnum.FT_RECIPIENTS.getKey(ENCLOSURE_ID).equals(key)) {
+			hash.put(RECIPIENT_MAIL, RECIPIENT_ID);
+		} else if (RedisKeysEnum.FT_RECIPIENT.getKey(RECIPIENT_ID).equals(key)) {
+			hash.put(RecipientKeysEnum.NB_DL.getKey(), "1");
+		}
+		return hash;
+	}
+
+	static Response<Map<String, String>> mapResponse(Map<String, String> hash) {
+		List<Object> raw = new ArrayList<>();
+		hash.forEach((field, value) -> {
+			raw.add(field.getBytes());
+			raw.add(value.getBytes());
+		});
+		Response<Map<String, String>> response = new Response<>(BuilderFactory.STRING_MAP);
+		response.set(raw);
+		return response;
+	}
+}
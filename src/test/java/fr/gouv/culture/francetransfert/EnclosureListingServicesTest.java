@@ -0,0 +1,138 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureListing;
+import fr.gouv.culture.francetransfert.application.services.EnclosureListingServices;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import redis.clients.jedis.BuilderFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Round trips of the pipelined enclosure listing : every sync is one round
+ * trip, their number must not grow with the number of root files.
+ */
+public class EnclosureListingServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private EnclosureListingServices enclosureListingServices;
+
+	private Jedis jedis;
+
+	private Pipeline pipeline;
+
+	private AtomicInteger roundTrips;
+
+	private AtomicInteger pipelinedCommands;
+
+	@Before
+	public void setUp() throws Exception {
+		roundTrips = new AtomicInteger();
+		pipelinedCommands = new AtomicInteger();
+		pipeline = mock(Pipeline.class);
+		doAnswer(invocation -> {
+			roundTrips.incrementAndGet();
+			return null;
+		}).when(pipeline).sync();
+		when(pipeline.hget(anyString(), anyString())).thenAnswer(invocation -> {
+			pipelinedCommands.incrementAndGet();
+			return stringResponse("42");
+		});
+
+		jedis = mock(Jedis.class);
+		when(jedis.pipelined()).thenReturn(pipeline);
+		@SuppressWarnings("unchecked")
+		Pool<Jedis> pool = mock(Pool.class);
+		when(pool.getResource()).thenReturn(jedis);
+
+		enclosureListingServices = new EnclosureListingServices();
+		ReflectionTestUtils.setField(enclosureListingServices, "metaloadReadServices",
+				MetaloadReadServicesTest.masterOnly(pool));
+		ReflectionTestUtils.setField(enclosureListingServices, "chunkSize", 1000);
+	}
+
+	@Test
+	public void listingRoundTripsStayFlat() throws Exception {
+		checkListing(1, 1);
+		int smallRoundTrips = roundTrips.getAndSet(0);
+		checkListing(800, 50);
+		int largeRoundTrips = roundTrips.getAndSet(0);
+
+		Assert.assertEquals(2, smallRoundTrips);
+		Assert.assertEquals(2, largeRoundTrips);
+		// every entry size is read in the pipeline, none by its own round trip
+		Assert.assertEquals(1 + 1 + 800 + 50, pipelinedCommands.get());
+		verify(jedis, never()).hget(anyString(), anyString());
+	}
+
+	@Test
+	public void hugeEnclosureIsReadInChunks() throws Exception {
+		EnclosureListing listing = listing(10000, 0);
+		Assert.assertEquals(10000, listing.getRootFiles().size());
+		Assert.assertEquals(42L, listing.getRootFiles().get(9999).getSize());
+		Assert.assertEquals(1 + 10, roundTrips.get());
+	}
+
+	private void checkListing(int files, int dirs) throws Exception {
+		EnclosureListing listing = listing(files, dirs);
+		Assert.assertEquals(files, listing.getRootFiles().size());
+		Assert.assertEquals(dirs, listing.getRootDirs().size());
+	}
+
+	private EnclosureListing listing(int files, int dirs) {
+		when(pipeline.lrange(anyString(), anyLong(), anyLong())).thenAnswer(invocation -> {
+			String key = invocation.getArgument(0);
+			return listResponse(RedisKeysEnum.FT_ROOT_DIRS.getKey(ENCLOSURE_ID).equals(key) ? names("dir", dirs)
+					: names("file", files));
+		});
+		return enclosureListingServices.getEnclosureListing(ENCLOSURE_ID);
+	}
+
+	private static List<String> names(String prefix, int count) {
+		List<String> names = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			names.add(prefix + i);
+		}
+		return names;
+	}
+
+	private static Response<String> stringResponse(String value) {
+		Response<String> response = new Response<>(BuilderFactory.STRING);
+		response.set(value.getBytes());
+		return response;
+	}
+
+	private static Response<List<String>> listResponse(List<String> values) {
+		List<Object> raw = new ArrayList<>(values.size());
+		values.forEach(value -> raw.add(value.getBytes()));
+		Response<List<String>> response = new Response<>(BuilderFactory.STRING_LIST);
+		response.set(raw);
+		return response;
+	}
+}
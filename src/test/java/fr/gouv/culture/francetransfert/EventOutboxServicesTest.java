@@ -0,0 +1,174 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.IntStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.services.EventOutboxServices;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.util.Pool;
+
+public class EventOutboxServicesTest {
+
+	private EventOutboxServices eventOutboxServices;
+
+	private Pool<Jedis> pool;
+
+	private Pipeline pipeline;
+
+	private Path spoolDir;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() throws Exception {
+		spoolDir = Files.createTempDirectory("outbox");
+		pipeline = mock(Pipeline.class);
+		Jedis jedis = mock(Jedis.class);
+		when(jedis.pipelined()).thenReturn(pipeline);
+		pool = mock(Pool.class);
+		when(pool.getResource()).thenThrow(new JedisConnectionException("Redis restarting")).thenReturn(jedis);
+		meterRegistry = new SimpleMeterRegistry();
+
+		eventOutboxServices = new EventOutboxServices();
+		ReflectionTestUtils.setField(eventOutboxServices, "metaloadPool", pool);
+		ReflectionTestUtils.setField(eventOutboxServices, "meterRegistry", meterRegistry);
+		ReflectionTestUtils.setField(eventOutboxServices, "capacity", 2);
+		ReflectionTestUtils.setField(eventOutboxServices, "batchSize", 10);
+		// flushes are triggered by the test only
+		ReflectionTestUtils.setField(eventOutboxServices, "flushIntervalMillis", 3600000L);
+		ReflectionTestUtils.setField(eventOutboxServices, "spoolDir", spoolDir.toString());
+		// Redis retried on the next flush, see redisIsLeftAloneDuringTheBackoff
+		ReflectionTestUtils.setField(eventOutboxServices, "minRetryBackoffMillis", 0L);
+		ReflectionTestUtils.setField(eventOutboxServices, "maxRetryBackoffMillis", 0L);
+		eventOutboxServices.init();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ReflectionTestUtils.setField(eventOutboxServices, "flushIntervalMillis", 1L);
+		eventOutboxServices.destroy();
+	}
+
+	@Test
+	public void eventsAreSpooledWhileRedisIsDownThenReplayed() throws Exception {
+		eventOutboxServices.publish("stat-queue", "DOWNLOAD;enclosure;recipient@gouv.fr");
+		eventOutboxServices.publish("stat-queue", "DOWNLOAD;enclosure");
+		// buffer full, goes straight to the spool
+		eventOutboxServices.publish("satisfaction-queue", "{\"satisfaction\":4}");
+		Assert.assertEquals(1, meterRegistry.counter("ft.outbox.spooled").count(), 0);
+
+		// Redis down : the batch is spooled
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+		Assert.assertEquals(3, meterRegistry.counter("ft.outbox.spooled").count(), 0);
+		verify(pipeline, never()).sync();
+
+		// Redis back : the spool is replayed, one pipelined batch per spool file
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+		verify(pipeline, times(2)).sync();
+		verify(pipeline).rpush(eq("stat-queue"), eq("DOWNLOAD;enclosure;recipient@gouv.fr"), eq("DOWNLOAD;enclosure"));
+		verify(pipeline).rpush(eq("satisfaction-queue"), eq("{\"satisfaction\":4}"));
+		Assert.assertFalse(Files.exists(spoolDir.resolve("outbox.spool")));
+		Assert.assertEquals(0, meterRegistry.counter("ft.outbox.dropped").count(), 0);
+	}
+
+	@Test
+	public void spoolIsReplayedBatchByBatch() throws Exception {
+		Jedis jedis = mock(Jedis.class);
+		when(jedis.pipelined()).thenReturn(pipeline);
+		JedisConnectionException down = new JedisConnectionException("Redis restarting");
+		doThrow(down).when(pool).getResource();
+		for (int i = 0; i < 25; i++) {
+			eventOutboxServices.publish("stat-queue", "DOWNLOAD;enclosure-" + i);
+		}
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+
+		// 23 overflowing events were spooled by publish, the 2 buffered ones by the flush
+		Assert.assertEquals(23, Files.readAllLines(spoolDir.resolve("outbox.replay")).size());
+		Assert.assertEquals(2, Files.readAllLines(spoolDir.resolve("outbox.spool")).size());
+
+		// Redis fails again after the first batch : the replay stops at its offset,
+		// nothing is copied back
+		doReturn(jedis).doThrow(down).doReturn(jedis).when(pool).getResource();
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+		verify(pipeline, times(1)).sync();
+		Assert.assertEquals(23, Files.readAllLines(spoolDir.resolve("outbox.replay")).size());
+		Assert.assertEquals(2, Files.readAllLines(spoolDir.resolve("outbox.spool")).size());
+		Assert.assertTrue(Long.parseLong(Files.readString(spoolDir.resolve("outbox.replay.offset"))) > 0);
+
+		// resumed after the pushed batch : 2 batches for the replay file, 1 for the spool
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+		verify(pipeline, times(4)).sync();
+		// each event pushed once, oldest spool first
+		InOrder inOrder = inOrder(pipeline);
+		inOrder.verify(pipeline).rpush("stat-queue", messages(2, 12));
+		inOrder.verify(pipeline).rpush("stat-queue", messages(12, 22));
+		inOrder.verify(pipeline).rpush("stat-queue", messages(22, 25));
+		inOrder.verify(pipeline).rpush("stat-queue", messages(0, 2));
+		Assert.assertFalse(Files.exists(spoolDir.resolve("outbox.spool")));
+		Assert.assertFalse(Files.exists(spoolDir.resolve("outbox.replay")));
+		Assert.assertFalse(Files.exists(spoolDir.resolve("outbox.replay.offset")));
+		Assert.assertEquals(25, meterRegistry.counter("ft.outbox.spooled").count(), 0);
+		Assert.assertEquals(0, meterRegistry.counter("ft.outbox.dropped").count(), 0);
+	}
+
+	@Test
+	public void redisIsLeftAloneDuringTheBackoff() throws Exception {
+		ReflectionTestUtils.setField(eventOutboxServices, "minRetryBackoffMillis", 60000L);
+		ReflectionTestUtils.setField(eventOutboxServices, "maxRetryBackoffMillis", 60000L);
+		eventOutboxServices.publish("stat-queue", "DOWNLOAD;enclosure-0");
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+		verify(pool, times(1)).getResource();
+
+		// newer events follow the spool without any push attempt
+		eventOutboxServices.publish("stat-queue", "DOWNLOAD;enclosure-1");
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+		eventOutboxServices.publish("stat-queue", "DOWNLOAD;enclosure-2");
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+		verify(pool, times(1)).getResource();
+		Assert.assertEquals(3, Files.readAllLines(spoolDir.resolve("outbox.spool")).size());
+
+		// backoff elapsed : the spool is replayed before the events buffered since
+		eventOutboxServices.publish("stat-queue", "DOWNLOAD;enclosure-3");
+		ReflectionTestUtils.setField(eventOutboxServices, "retryAt", System.nanoTime());
+		ReflectionTestUtils.invokeMethod(eventOutboxServices, "flush");
+		InOrder inOrder = inOrder(pipeline);
+		inOrder.verify(pipeline).rpush(eq("stat-queue"), eq("DOWNLOAD;enclosure-0"), eq("DOWNLOAD;enclosure-1"),
+				eq("DOWNLOAD;enclosure-2"));
+		inOrder.verify(pipeline).rpush(eq("stat-queue"), eq("DOWNLOAD;enclosure-3"));
+		Assert.assertFalse(Files.exists(spoolDir.resolve("outbox.spool")));
+		Assert.assertEquals(3, meterRegistry.counter("ft.outbox.spooled").count(), 0);
+	}
+
+	private static String[] messages(int from, int to) {
+		return IntStream.range(from, to).mapToObj(i -> "DOWNLOAD;enclosure-" + i).toArray(String[]::new);
+	}
+}
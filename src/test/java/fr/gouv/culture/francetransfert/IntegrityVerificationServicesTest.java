@@ -0,0 +1,110 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.services.EnclosureInvalidatedEvent;
+import fr.gouv.culture.francetransfert.application.services.IntegrityVerificationServices;
+import fr.gouv.culture.francetransfert.application.services.SingleFlightServices;
+import fr.gouv.culture.francetransfert.core.services.StorageManager;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The storage HEAD is done once per enclosure and Redis hash, never reused for
+ * another hash nor after a mismatch or an invalidation.
+ */
+public class IntegrityVerificationServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final String ZIP_NAME = ENCLOSURE_ID + ".zip";
+
+	private IntegrityVerificationServices integrityVerificationServices;
+
+	private StorageManager storageManager;
+
+	@Before
+	public void setUp() throws Exception {
+		storageManager = mock(StorageManager.class);
+		when(storageManager.getZippedEnclosureName(ENCLOSURE_ID)).thenReturn(ZIP_NAME);
+		when(storageManager.getEtag("bucket", ZIP_NAME)).thenReturn("etag-v1");
+
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		SingleFlightServices singleFlightServices = new SingleFlightServices();
+		ReflectionTestUtils.setField(singleFlightServices, "waitMillis", 5000L);
+		ReflectionTestUtils.setField(singleFlightServices, "meterRegistry", meterRegistry);
+
+		integrityVerificationServices = new IntegrityVerificationServices();
+		ReflectionTestUtils.setField(integrityVerificationServices, "ttlMinutes", 15L);
+		ReflectionTestUtils.setField(integrityVerificationServices, "maxSize", 100L);
+		ReflectionTestUtils.setField(integrityVerificationServices, "storageManager", storageManager);
+		ReflectionTestUtils.setField(integrityVerificationServices, "storageResilienceServices",
+				StorageResilienceServicesTest.storageResilienceServices());
+		ReflectionTestUtils.setField(integrityVerificationServices, "singleFlightServices", singleFlightServices);
+		ReflectionTestUtils.setField(integrityVerificationServices, "meterRegistry", meterRegistry);
+		integrityVerificationServices.init();
+	}
+
+	@Test
+	public void sameHashIsVerifiedOnce() throws Exception {
+		Assert.assertTrue(integrityVerificationServices.isIntegrityValid(metadata("etag-v1")));
+		Assert.assertTrue(integrityVerificationServices.isIntegrityValid(metadata("etag-v1")));
+
+		verify(storageManager, times(1)).getEtag("bucket", ZIP_NAME);
+	}
+
+	@Test
+	public void changedHashIsVerifiedAgain() throws Exception {
+		Assert.assertTrue(integrityVerificationServices.isIntegrityValid(metadata("etag-v1")));
+		when(storageManager.getEtag("bucket", ZIP_NAME)).thenReturn("etag-v2");
+
+		Assert.assertTrue(integrityVerificationServices.isIntegrityValid(metadata("etag-v2")));
+
+		verify(storageManager, times(2)).getEtag("bucket", ZIP_NAME);
+	}
+
+	@Test
+	public void mismatchIsNotCached() throws Exception {
+		Assert.assertFalse(integrityVerificationServices.isIntegrityValid(metadata("etag-v0")));
+		Assert.assertFalse(integrityVerificationServices.isIntegrityValid(metadata("etag-v0")));
+		verify(storageManager, times(2)).getEtag("bucket", ZIP_NAME);
+
+		// a verified hash is dropped by a later mismatch
+		Assert.assertTrue(integrityVerificationServices.isIntegrityValid(metadata("etag-v1")));
+		when(storageManager.getEtag("bucket", ZIP_NAME)).thenReturn("etag-v2");
+		Assert.assertFalse(integrityVerificationServices.isIntegrityValid(metadata("etag-v3")));
+		Assert.assertFalse(integrityVerificationServices.isIntegrityValid(metadata("etag-v1")));
+		verify(storageManager, times(5)).getEtag("bucket", ZIP_NAME);
+	}
+
+	@Test
+	public void invalidatedEnclosureIsVerifiedAgain() throws Exception {
+		Assert.assertTrue(integrityVerificationServices.isIntegrityValid(metadata("etag-v1")));
+
+		integrityVerificationServices.onEnclosureInvalidated(new EnclosureInvalidatedEvent(ENCLOSURE_ID));
+		Assert.assertTrue(integrityVerificationServices.isIntegrityValid(metadata("etag-v1")));
+		integrityVerificationServices.onEnclosureInvalidated(new EnclosureInvalidatedEvent(null));
+		Assert.assertTrue(integrityVerificationServices.isIntegrityValid(metadata("etag-v1")));
+
+		verify(storageManager, times(3)).getEtag("bucket", ZIP_NAME);
+	}
+
+	private static EnclosureMetadata metadata(String hashFile) {
+		return EnclosureMetadata.builder().enclosureId(ENCLOSURE_ID).bucketName("bucket").hashFile(hashFile).build();
+	}
+}
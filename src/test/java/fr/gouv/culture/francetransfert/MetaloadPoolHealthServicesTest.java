@@ -0,0 +1,64 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.services.MetaloadPoolHealthServices;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.util.Pool;
+
+public class MetaloadPoolHealthServicesTest {
+
+	private MetaloadPoolHealthServices metaloadPoolHealthServices;
+
+	private Pool<Jedis> pool;
+
+	private Jedis jedis;
+
+	private MeterRegistry meterRegistry;
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setUp() {
+		jedis = mock(Jedis.class);
+		pool = mock(Pool.class);
+		when(pool.getResource()).thenReturn(jedis);
+		meterRegistry = new SimpleMeterRegistry();
+
+		metaloadPoolHealthServices = new MetaloadPoolHealthServices();
+		ReflectionTestUtils.setField(metaloadPoolHealthServices, "metaloadPool", pool);
+		ReflectionTestUtils.setField(metaloadPoolHealthServices, "meterRegistry", meterRegistry);
+		metaloadPoolHealthServices.init();
+	}
+
+	@Test
+	public void healthyPoolIsKept() {
+		Assert.assertTrue(metaloadPoolHealthServices.probe());
+		verify(pool, never()).clear();
+	}
+
+	@Test
+	public void failedProbeDropsIdleConnections() {
+		when(jedis.ping()).thenThrow(new JedisConnectionException("connection reset"));
+		Assert.assertFalse(metaloadPoolHealthServices.probe());
+		verify(pool).clear();
+		Assert.assertEquals(1.0, meterRegistry.counter("ft.metaload.pool.probe.failures", "pool", "batch").count(), 0);
+	}
+}
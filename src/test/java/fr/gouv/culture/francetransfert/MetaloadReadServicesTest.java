@@ -0,0 +1,93 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.services.MetaloadReadServices;
+import fr.gouv.culture.francetransfert.core.enums.RedisKeysEnum;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.util.Pool;
+
+public class MetaloadReadServicesTest {
+
+	private static final String ENCLOSURE_KEY = RedisKeysEnum.FT_ENCLOSURE
+			.getKey("8ffd72f0-4432-4e07-b247-362b1eb4edfb");
+
+	private MetaloadReadServices metaloadReadServices;
+
+	private Jedis master;
+
+	private Jedis replica;
+
+	@Before
+	public void setUp() {
+		master = mock(Jedis.class);
+		when(master.hgetAll(anyString())).thenReturn(Collections.singletonMap("message", "master"));
+		@SuppressWarnings("unchecked")
+		Pool<Jedis> masterPool = mock(Pool.class);
+		when(masterPool.getResource()).thenReturn(master);
+
+		replica = mock(Jedis.class);
+		JedisPool replicaPool = mock(JedisPool.class);
+		when(replicaPool.getResource()).thenReturn(replica);
+
+		metaloadReadServices = masterOnly(masterPool);
+		ReflectionTestUtils.setField(metaloadReadServices, "healthyReplicas", Arrays.asList(replicaPool));
+	}
+
+	@Test
+	public void replicaServesReplicatedData() {
+		when(replica.hgetAll(anyString())).thenReturn(Collections.singletonMap("message", "replica"));
+		Assert.assertEquals("replica", read().get("message"));
+		verify(master, never()).hgetAll(anyString());
+	}
+
+	@Test
+	public void dataNotReplicatedYetIsReadOnMaster() {
+		when(replica.hgetAll(anyString())).thenReturn(Collections.emptyMap());
+		Assert.assertEquals("master", read().get("message"));
+	}
+
+	@Test
+	public void unreachableReplicaFallsBackToMaster() {
+		when(replica.hgetAll(anyString())).thenThrow(new JedisConnectionException("down"));
+		Assert.assertEquals("master", read().get("message"));
+	}
+
+	private Map<String, String> read() {
+		return metaloadReadServices.read(jedis -> jedis.hgetAll(ENCLOSURE_KEY), map -> !map.isEmpty());
+	}
+
+	/**
+	 * Read services without replicas, every read being served by the given pool
+	 */
+	static MetaloadReadServices masterOnly(Pool<Jedis> metaloadPool) {
+		MetaloadReadServices metaloadReadServices = new MetaloadReadServices();
+		ReflectionTestUtils.setField(metaloadReadServices, "metaloadPool", metaloadPool);
+		ReflectionTestUtils.setField(metaloadReadServices, "meterRegistry", new SimpleMeterRegistry());
+		metaloadReadServices.init();
+		return metaloadReadServices;
+	}
+}
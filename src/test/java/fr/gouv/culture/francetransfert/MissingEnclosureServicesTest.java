@@ -0,0 +1,77 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.Mockito.verify;
+
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.services.EnclosureInvalidatedEvent;
+import fr.gouv.culture.francetransfert.application.services.MetaloadChannelServices;
+import fr.gouv.culture.francetransfert.application.services.MissingEnclosureServices;
+
+public class MissingEnclosureServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private MissingEnclosureServices missingEnclosureServices;
+
+	@Before
+	public void setUp() {
+		missingEnclosureServices = EnclosureContextServicesTest.missingEnclosureServices();
+	}
+
+	@Test
+	public void missingEnclosureIsRememberedUntilForgotten() {
+		Assert.assertFalse(missingEnclosureServices.isMissing(ENCLOSURE_ID));
+		missingEnclosureServices.markMissing(ENCLOSURE_ID);
+		Assert.assertTrue(missingEnclosureServices.isMissing(ENCLOSURE_ID));
+
+		missingEnclosureServices.forget(ENCLOSURE_ID);
+		Assert.assertFalse(missingEnclosureServices.isMissing(ENCLOSURE_ID));
+
+		missingEnclosureServices.markMissing(ENCLOSURE_ID);
+		missingEnclosureServices.onEnclosureInvalidated(new EnclosureInvalidatedEvent(null));
+		Assert.assertFalse(missingEnclosureServices.isMissing(ENCLOSURE_ID));
+	}
+
+	@Test
+	public void deletionIsPublishedToTheOtherNodes() {
+		missingEnclosureServices.publishDeleted(ENCLOSURE_ID);
+		Assert.assertTrue(missingEnclosureServices.isMissing(ENCLOSURE_ID));
+		MetaloadChannelServices metaloadChannelServices = (MetaloadChannelServices) ReflectionTestUtils
+				.getField(missingEnclosureServices, "metaloadChannelServices");
+		verify(metaloadChannelServices).publish("ft-enclosure-deleted", ENCLOSURE_ID);
+	}
+
+	@Test
+	public void oldIdsAreDroppedWhenTheTableIsFull() {
+		missingEnclosureServices.markMissing(ENCLOSURE_ID);
+		// two generations of 1024 slots rotate at three quarters
+		for (int i = 0; i < 2000; i++) {
+			missingEnclosureServices.markMissing(UUID.randomUUID().toString());
+		}
+		Assert.assertFalse(missingEnclosureServices.isMissing(ENCLOSURE_ID));
+		Assert.assertTrue((int) ReflectionTestUtils.invokeMethod(missingEnclosureServices, "size") <= 2048);
+	}
+
+	@Test
+	public void liveEnclosuresAreNotReportedMissing() {
+		for (int i = 0; i < 700; i++) {
+			missingEnclosureServices.markMissing(UUID.randomUUID().toString());
+		}
+		for (int i = 0; i < 100000; i++) {
+			Assert.assertFalse(missingEnclosureServices.isMissing(UUID.randomUUID().toString()));
+		}
+	}
+}
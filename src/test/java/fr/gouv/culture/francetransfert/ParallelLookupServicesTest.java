@@ -0,0 +1,96 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.services.ParallelLookupServices;
+import fr.gouv.culture.francetransfert.domain.exceptions.DownloadException;
+
+/**
+ * Independent lookups must cost the slowest of them, not their sum, and keep
+ * their exception mapping.
+ */
+public class ParallelLookupServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final long LOOKUP_MILLIS = 50;
+
+	private ParallelLookupServices parallelLookupServices;
+
+	@Before
+	public void setUp() {
+		parallelLookupServices = EnclosureContextServicesTest.parallelLookupServices();
+	}
+
+	@After
+	public void tearDown() {
+		parallelLookupServices.destroy();
+	}
+
+	@Test
+	public void lookupsCostTheSlowestOne() throws Exception {
+		long start = System.nanoTime();
+		CompletableFuture<String> first = parallelLookupServices.submit(() -> slowLookup("first"));
+		CompletableFuture<String> second = parallelLookupServices.submit(() -> slowLookup("second"));
+		CompletableFuture<String> third = parallelLookupServices.submit(() -> slowLookup("third"));
+		String local = slowLookup("local");
+		Assert.assertEquals("local", local);
+		Assert.assertEquals("first", parallelLookupServices.join(ENCLOSURE_ID, first));
+		Assert.assertEquals("second", parallelLookupServices.join(ENCLOSURE_ID, second));
+		Assert.assertEquals("third", parallelLookupServices.join(ENCLOSURE_ID, third));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertTrue("four lookups took " + elapsed + "ms", elapsed < 3 * LOOKUP_MILLIS);
+	}
+
+	@Test
+	public void nestedLookupsRunInline() {
+		CompletableFuture<String> outer = parallelLookupServices.submit(() -> parallelLookupServices
+				.join(ENCLOSURE_ID, parallelLookupServices.submit(() -> Thread.currentThread().getName())));
+		Assert.assertTrue(parallelLookupServices.join(ENCLOSURE_ID, outer).startsWith("ft-lookup-"));
+	}
+
+	@Test
+	public void runtimeExceptionsAreRethrownAsIs() {
+		CompletableFuture<String> lookup = parallelLookupServices.submit(() -> {
+			throw new DownloadException(ErrorEnum.WRONG_ENCLOSURE.getValue(), ENCLOSURE_ID);
+		});
+		try {
+			parallelLookupServices.join(ENCLOSURE_ID, lookup);
+			Assert.fail();
+		} catch (DownloadException e) {
+			Assert.assertEquals(ErrorEnum.WRONG_ENCLOSURE.getValue(), e.getMessage());
+		}
+	}
+
+	@Test
+	public void checkedExceptionsAreTechnicalErrors() {
+		CompletableFuture<String> lookup = parallelLookupServices.submit(() -> {
+			throw new Exception("redis down");
+		});
+		try {
+			parallelLookupServices.join(ENCLOSURE_ID, lookup);
+			Assert.fail();
+		} catch (DownloadException e) {
+			Assert.assertEquals(ErrorEnum.TECHNICAL_ERROR.getValue(), e.getMessage());
+		}
+	}
+
+	private static String slowLookup(String value) throws InterruptedException {
+		TimeUnit.MILLISECONDS.sleep(LOOKUP_MILLIS);
+		return value;
+	}
+}
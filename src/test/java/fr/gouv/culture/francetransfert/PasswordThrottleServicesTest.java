@@ -0,0 +1,201 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.error.ErrorEnum;
+import fr.gouv.culture.francetransfert.application.error.PasswordException;
+import fr.gouv.culture.francetransfert.application.error.TooManyRequestsException;
+import fr.gouv.culture.francetransfert.application.services.PasswordThrottleServices;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+public class PasswordThrottleServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private PasswordThrottleServices passwordThrottleServices;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	@Before
+	public void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		passwordThrottleServices = new PasswordThrottleServices();
+		ReflectionTestUtils.setField(passwordThrottleServices, "enabled", true);
+		ReflectionTestUtils.setField(passwordThrottleServices, "stripes", 1024);
+		ReflectionTestUtils.setField(passwordThrottleServices, "keyBurst", 5);
+		ReflectionTestUtils.setField(passwordThrottleServices, "keyPerMinute", 1);
+		ReflectionTestUtils.setField(passwordThrottleServices, "ipBurst", 8);
+		ReflectionTestUtils.setField(passwordThrottleServices, "ipPerMinute", 1);
+		ReflectionTestUtils.setField(passwordThrottleServices, "meterRegistry", meterRegistry);
+		passwordThrottleServices.init();
+	}
+
+	@Test
+	public void burstOverTheKeyLimitIsRejected() {
+		for (int i = 0; i < 5; i++) {
+			passwordThrottleServices.acquire(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.1");
+		}
+		try {
+			passwordThrottleServices.acquire(ENCLOSURE_ID, "RECIPIENT@gouv.fr", "10.0.0.1");
+			Assert.fail();
+		} catch (TooManyRequestsException e) {
+			Assert.assertEquals(ENCLOSURE_ID, e.getId());
+			Assert.assertTrue(e.getRetryAfterSeconds() > 0 && e.getRetryAfterSeconds() <= 60);
+		}
+		// another client is not throttled
+		passwordThrottleServices.acquire(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.2");
+		Assert.assertEquals(1, meterRegistry.counter("ft.password.throttle.rejected", "scope", "key").count(), 0);
+	}
+
+	@Test
+	public void clientIsThrottledAcrossEnclosures() {
+		for (int i = 0; i < 8; i++) {
+			passwordThrottleServices.acquire("enclosure-" + i, null, "10.0.0.1");
+		}
+		try {
+			passwordThrottleServices.acquire("enclosure-8", null, "10.0.0.1");
+			Assert.fail();
+		} catch (TooManyRequestsException e) {
+			Assert.assertEquals(1, meterRegistry.counter("ft.password.throttle.rejected", "scope", "ip").count(), 0);
+		}
+	}
+
+	@Test
+	public void onlyWrongPasswordsAreCharged() {
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals("url", passwordThrottleServices.attempt(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.1",
+					() -> "url"));
+		}
+		for (int i = 0; i < 5; i++) {
+			Assert.assertThrows(PasswordException.class,
+					() -> passwordThrottleServices.attempt(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.1", () -> {
+						throw new PasswordException(ErrorEnum.WRONG_PASSWORD.getValue(), ENCLOSURE_ID, 1);
+					}));
+		}
+		Assert.assertThrows(TooManyRequestsException.class,
+				() -> passwordThrottleServices.attempt(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.1", () -> "url"));
+	}
+
+	@Test
+	public void successOfAnotherKeyOnTheSlotDoesNotCreditIt() {
+		String sharingRecipient = recipientSharingTheSlotOf("recipient@gouv.fr");
+		Assert.assertEquals("url", passwordThrottleServices.attempt(ENCLOSURE_ID, sharingRecipient, "10.0.0.1", () -> {
+			// wrong passwords of the other key while this check runs
+			for (int i = 0; i < 4; i++) {
+				Assert.assertThrows(PasswordException.class, () -> passwordThrottleServices.attempt(ENCLOSURE_ID,
+						"recipient@gouv.fr", "10.0.0.1", () -> {
+							throw new PasswordException(ErrorEnum.WRONG_PASSWORD.getValue(), ENCLOSURE_ID, 1);
+						}));
+			}
+			return "url";
+		}));
+
+		Assert.assertThrows(TooManyRequestsException.class,
+				() -> passwordThrottleServices.acquire(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.1"));
+	}
+
+	@Test
+	public void reactiveAttemptIsChargedOnWrongPassword() {
+		for (int i = 0; i < 20; i++) {
+			passwordThrottleServices.reactiveAttempt(ENCLOSURE_ID, null, "10.0.0.1", () -> Mono.just(true)).block();
+		}
+		for (int i = 0; i < 5; i++) {
+			Assert.assertThrows(PasswordException.class,
+					() -> passwordThrottleServices.reactiveAttempt(ENCLOSURE_ID, null, "10.0.0.1",
+							() -> Mono.error(new PasswordException(ErrorEnum.WRONG_PASSWORD.getValue(), ENCLOSURE_ID,
+									1)))
+							.block());
+		}
+		Assert.assertThrows(TooManyRequestsException.class,
+				() -> passwordThrottleServices.reactiveAttempt(ENCLOSURE_ID, null, "10.0.0.1", () -> Mono.just(true)).block());
+	}
+
+	@Test
+	public void rejectedKeyDoesNotChargeTheClient() {
+		for (int i = 0; i < 5; i++) {
+			passwordThrottleServices.acquire(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.1");
+		}
+		for (int i = 0; i < 20; i++) {
+			Assert.assertThrows(TooManyRequestsException.class,
+					() -> passwordThrottleServices.acquire(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.1"));
+		}
+		// 5 of the 8 ip tokens taken, the rejected attempts gave theirs back
+		for (int i = 0; i < 3; i++) {
+			passwordThrottleServices.acquire("enclosure-" + i, null, "10.0.0.1");
+		}
+		Assert.assertThrows(TooManyRequestsException.class,
+				() -> passwordThrottleServices.acquire("enclosure-3", null, "10.0.0.1"));
+	}
+
+	/**
+	 * A recipient whose key is hashed to the slot of the given one : on a
+	 * throttle of the same size allowing one attempt per key, the given
+	 * recipient is rejected after it
+	 */
+	private static String recipientSharingTheSlotOf(String recipient) {
+		for (int i = 0;; i++) {
+			String candidate = "recipient-" + i + "@gouv.fr";
+			PasswordThrottleServices probe = new PasswordThrottleServices();
+			ReflectionTestUtils.setField(probe, "enabled", true);
+			ReflectionTestUtils.setField(probe, "stripes", 1024);
+			ReflectionTestUtils.setField(probe, "keyBurst", 1);
+			ReflectionTestUtils.setField(probe, "keyPerMinute", 1);
+			ReflectionTestUtils.setField(probe, "ipBurst", 2);
+			ReflectionTestUtils.setField(probe, "ipPerMinute", 1);
+			ReflectionTestUtils.setField(probe, "meterRegistry", new SimpleMeterRegistry());
+			probe.init();
+			probe.acquire(ENCLOSURE_ID, candidate, "10.0.0.1");
+			try {
+				probe.acquire(ENCLOSURE_ID, recipient, "10.0.0.1");
+			} catch (TooManyRequestsException e) {
+				return candidate;
+			}
+		}
+	}
+
+	@Test
+	public void concurrentAttemptsNeverExceedTheBurst() throws Exception {
+		AtomicInteger accepted = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < 100; i++) {
+						try {
+							passwordThrottleServices.acquire(ENCLOSURE_ID, "recipient@gouv.fr", "10.0.0.1");
+							accepted.incrementAndGet();
+						} catch (TooManyRequestsException e) {
+							// expected
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(5, accepted.get());
+	}
+}
@@ -0,0 +1,156 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+
+import fr.gouv.culture.francetransfert.application.resources.NotModifiedCheck;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureListing;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.resources.model.FileRepresentation;
+import fr.gouv.culture.francetransfert.application.services.DownloadServices;
+import fr.gouv.culture.francetransfert.application.services.PublicInfoResponseServices;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class PublicInfoResponseServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private PublicInfoResponseServices publicInfoResponseServices;
+
+	private DownloadServices downloadServices;
+
+	private EnclosureMetadata metadata;
+
+	@Before
+	public void setUp() {
+		metadata = EnclosureMetadata.builder().enclosureId(ENCLOSURE_ID).expirationDate(LocalDate.of(2030, 1, 1))
+				.listing(new EnclosureListing(List.of(new FileRepresentation(42)), List.of())).version("v1").build();
+		downloadServices = mock(DownloadServices.class);
+		when(downloadServices.getDownloadInfoPublic(any(EnclosureMetadata.class)))
+				.thenAnswer(invocation -> DownloadRepresentation.builder().validUntilDate(LocalDate.of(2030, 1, 1))
+						.rootFiles(metadata.getListing().getRootFiles()).build());
+
+		publicInfoResponseServices = new PublicInfoResponseServices();
+		ReflectionTestUtils.setField(publicInfoResponseServices, "cacheEnabled", true);
+		ReflectionTestUtils.setField(publicInfoResponseServices, "maxBytes", 1024L * 1024);
+		ReflectionTestUtils.setField(publicInfoResponseServices, "ttlMinutes", 10L);
+		ReflectionTestUtils.setField(publicInfoResponseServices, "downloadServices", downloadServices);
+		ReflectionTestUtils.setField(publicInfoResponseServices, "objectMapper", new ObjectMapper()
+				.registerModule(new JavaTimeModule()).disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS));
+		ReflectionTestUtils.setField(publicInfoResponseServices, "meterRegistry", new SimpleMeterRegistry());
+		publicInfoResponseServices.init();
+	}
+
+	@Test
+	public void bodiesAreSerializedOncePerVersion() throws Exception {
+		MockHttpServletResponse identity = write(null, null);
+		MockHttpServletResponse gzip = write("gzip, deflate, br", null);
+
+		Assert.assertEquals(200, identity.getStatus());
+		Assert.assertNull(identity.getHeader(HttpHeaders.CONTENT_ENCODING));
+		Assert.assertTrue(identity.getContentAsString().contains("\"validUntilDate\":\"2030-01-01\""));
+		Assert.assertEquals("gzip", gzip.getHeader(HttpHeaders.CONTENT_ENCODING));
+		Assert.assertEquals(HttpHeaders.ACCEPT_ENCODING, gzip.getHeader(HttpHeaders.VARY));
+		try (GZIPInputStream body = new GZIPInputStream(new ByteArrayInputStream(gzip.getContentAsByteArray()))) {
+			Assert.assertEquals(identity.getContentAsString(), new String(body.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		verify(downloadServices, times(1)).getDownloadInfoPublic(any(EnclosureMetadata.class));
+
+		metadata.setVersion("v2");
+		write("gzip", null);
+		verify(downloadServices, times(2)).getDownloadInfoPublic(any(EnclosureMetadata.class));
+	}
+
+	@Test
+	public void upToDateClientGetsNotModified() throws Exception {
+		MockHttpServletResponse response = write("gzip", "\"v1\"");
+
+		Assert.assertEquals(304, response.getStatus());
+		Assert.assertEquals(0, response.getContentLength());
+		Assert.assertEquals("\"v1\"", response.getHeader(HttpHeaders.ETAG));
+		verify(downloadServices, times(0)).getDownloadInfoPublic(any(EnclosureMetadata.class));
+	}
+
+	@Test
+	public void asynchronousResponseIsLeftToMvc() throws Exception {
+		ResponseEntity<byte[]> upToDate = publicInfoResponseServices.response(metadata,
+				new NotModifiedCheck(webRequest("W/\"v0\", \"v1\"")), "gzip");
+		Assert.assertEquals(HttpStatus.NOT_MODIFIED, upToDate.getStatusCode());
+		Assert.assertEquals("\"v1\"", upToDate.getHeaders().getETag());
+		Assert.assertNull(upToDate.getBody());
+		verify(downloadServices, times(0)).getDownloadInfoPublic(any(EnclosureMetadata.class));
+
+		ResponseEntity<byte[]> outdated = publicInfoResponseServices.response(metadata,
+				new NotModifiedCheck(webRequest("\"v0\"")), "gzip");
+		Assert.assertEquals(HttpStatus.OK, outdated.getStatusCode());
+		Assert.assertEquals("\"v1\"", outdated.getHeaders().getETag());
+		Assert.assertEquals("gzip", outdated.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		Assert.assertEquals(write("gzip", null).getContentAsByteArray().length, outdated.getBody().length);
+	}
+
+	@Test
+	public void gzipMustBeAcceptedWithNonZeroQuality() {
+		Assert.assertTrue(accepts("gzip"));
+		Assert.assertTrue(accepts("deflate, GZIP;q=0.5"));
+		Assert.assertTrue(accepts("*"));
+		Assert.assertFalse(accepts("gzip;q=0, *"));
+		Assert.assertFalse(accepts("br, deflate"));
+		Assert.assertFalse(accepts("gzip;q=oops"));
+		Assert.assertFalse(accepts(""));
+	}
+
+	private MockHttpServletResponse write(String acceptEncoding, String ifNoneMatch) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/download-info-public");
+		if (acceptEncoding != null) {
+			request.addHeader(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+		}
+		if (ifNoneMatch != null) {
+			request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+		}
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		publicInfoResponseServices.write(metadata, new ServletWebRequest(request, response));
+		return response;
+	}
+
+	private static ServletWebRequest webRequest(String ifNoneMatch) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/download-info-public");
+		request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+		return new ServletWebRequest(request, new MockHttpServletResponse());
+	}
+
+	private static boolean accepts(String acceptEncoding) {
+		return ReflectionTestUtils.invokeMethod(PublicInfoResponseServices.class, "acceptsGzip", acceptEncoding);
+	}
+}
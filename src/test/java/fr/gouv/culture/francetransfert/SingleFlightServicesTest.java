@@ -0,0 +1,157 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import fr.gouv.culture.francetransfert.application.services.SingleFlightServices;
+import fr.gouv.culture.francetransfert.core.exception.StorageException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class SingleFlightServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final int CALLERS = 50;
+
+	private SingleFlightServices singleFlightServices;
+
+	private MeterRegistry meterRegistry;
+
+	private ExecutorService callers;
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	@Before
+	public void setUp() {
+		meterRegistry = new SimpleMeterRegistry();
+		singleFlightServices = new SingleFlightServices();
+		ReflectionTestUtils.setField(singleFlightServices, "waitMillis", 5000L);
+		ReflectionTestUtils.setField(singleFlightServices, "meterRegistry", meterRegistry);
+		callers = Executors.newFixedThreadPool(CALLERS);
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		callers.shutdownNow();
+	}
+
+	@Test
+	public void concurrentLoadsOfAnEnclosureShareOneCall() throws Exception {
+		List<Future<String>> results = startCallers(() -> {
+			loads.incrementAndGet();
+			release.await();
+			return "listing";
+		});
+		release.countDown();
+		for (Future<String> result : results) {
+			Assert.assertEquals("listing", result.get(5, TimeUnit.SECONDS));
+		}
+		Assert.assertEquals(1, loads.get());
+		Assert.assertEquals(CALLERS - 1,
+				meterRegistry.counter("ft.singleflight.calls", "flight", "enclosure", "role", "joined").count(), 0);
+
+		// nothing is kept once the flight is over
+		Assert.assertEquals("listing", singleFlightServices.execute("enclosure", ENCLOSURE_ID, () -> "listing"));
+	}
+
+	@Test
+	public void failureIsSharedByJoinedCallers() throws Exception {
+		List<Future<String>> results = startCallers(() -> {
+			loads.incrementAndGet();
+			release.await();
+			throw new StorageException("storage unreachable");
+		});
+		release.countDown();
+		Set<Throwable> errors = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Future<String> result : results) {
+			try {
+				result.get(5, TimeUnit.SECONDS);
+				Assert.fail();
+			} catch (ExecutionException e) {
+				Assert.assertTrue(e.getCause() instanceof StorageException);
+				Assert.assertEquals("storage unreachable", e.getCause().getMessage());
+				errors.add(e.getCause());
+			}
+		}
+		Assert.assertEquals(1, loads.get());
+		// every caller gets its own exception
+		Assert.assertEquals(CALLERS, errors.size());
+	}
+
+	@Test
+	public void stuckLeaderDoesNotHoldItsFollowers() throws Exception {
+		ReflectionTestUtils.setField(singleFlightServices, "waitMillis", 50L);
+		Future<String> stuck = callers.submit(() -> singleFlightServices.execute("enclosure", ENCLOSURE_ID, () -> {
+			loads.incrementAndGet();
+			release.await();
+			return "stuck";
+		}));
+		while (loads.get() == 0) {
+			TimeUnit.MILLISECONDS.sleep(1);
+		}
+		Assert.assertEquals("own", singleFlightServices.execute("enclosure", ENCLOSURE_ID, () -> "own"));
+		Assert.assertFalse(stuck.isDone());
+	}
+
+	@Test
+	public void forgottenFlightIsNotJoined() throws Exception {
+		Future<String> outdated = callers.submit(() -> singleFlightServices.execute("enclosure", ENCLOSURE_ID, () -> {
+			loads.incrementAndGet();
+			release.await();
+			return "outdated";
+		}));
+		while (loads.get() == 0) {
+			TimeUnit.MILLISECONDS.sleep(1);
+		}
+		singleFlightServices.forget("enclosure", ENCLOSURE_ID);
+		Assert.assertEquals("fresh", singleFlightServices.execute("enclosure", ENCLOSURE_ID, () -> "fresh"));
+		release.countDown();
+		Assert.assertEquals("outdated", outdated.get(5, TimeUnit.SECONDS));
+	}
+
+	private List<Future<String>> startCallers(SingleFlightServices.Flight<String, Exception> load)
+			throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(CALLERS);
+		List<Future<String>> results = new ArrayList<>(CALLERS);
+		for (int i = 0; i < CALLERS; i++) {
+			results.add(callers.submit(() -> {
+				started.countDown();
+				return singleFlightServices.execute("enclosure", ENCLOSURE_ID, load);
+			}));
+		}
+		started.await();
+		// let every caller reach the flight before it lands
+		while (meterRegistry.counter("ft.singleflight.calls", "flight", "enclosure", "role", "joined")
+				.count() < CALLERS - 1) {
+			TimeUnit.MILLISECONDS.sleep(1);
+		}
+		return results;
+	}
+}
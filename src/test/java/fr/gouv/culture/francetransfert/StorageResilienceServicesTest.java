@@ -0,0 +1,185 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+
+package fr.gouv.culture.francetransfert;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+
+import fr.gouv.culture.francetransfert.application.error.StorageUnavailableException;
+import fr.gouv.culture.francetransfert.application.services.StorageResilienceServices;
+import fr.gouv.culture.francetransfert.core.exception.StorageException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class StorageResilienceServicesTest {
+
+	private StorageResilienceServices storageResilienceServices;
+
+	private final CountDownLatch stalled = new CountDownLatch(1);
+
+	private final AtomicInteger calls = new AtomicInteger();
+
+	@Before
+	public void setUp() {
+		storageResilienceServices = storageResilienceServices();
+		ReflectionTestUtils.setField(storageResilienceServices, "timeoutMillis", 100L);
+		ReflectionTestUtils.setField(storageResilienceServices, "openSeconds", 1L);
+	}
+
+	@After
+	public void tearDown() {
+		stalled.countDown();
+		storageResilienceServices.destroy();
+	}
+
+	@Test
+	public void stalledCallIsAbandonedAtItsDeadline() {
+		long start = System.nanoTime();
+		try {
+			storageResilienceServices.call("getEtag", this::stall);
+			Assert.fail();
+		} catch (StorageUnavailableException | StorageException e) {
+			Assert.assertTrue(e instanceof StorageUnavailableException);
+		}
+		Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+	}
+
+	@Test
+	public void failingStorageOpensTheCircuitThenProbesIt() throws Exception {
+		for (int i = 0; i < 4; i++) {
+			try {
+				storageResilienceServices.call("getEtag", this::fail);
+			} catch (StorageException e) {
+				// expected
+			}
+		}
+		int callsWhenOpen = calls.get();
+		try {
+			storageResilienceServices.call("getEtag", this::succeed);
+			Assert.fail();
+		} catch (StorageUnavailableException e) {
+			Assert.assertEquals(callsWhenOpen, calls.get());
+		}
+
+		TimeUnit.MILLISECONDS.sleep(1100);
+		Assert.assertEquals("etag", storageResilienceServices.call("getEtag", this::succeed));
+		Assert.assertEquals("etag", storageResilienceServices.call("getEtag", this::succeed));
+		// closed again, a single failure does not reopen it
+		try {
+			storageResilienceServices.call("getEtag", this::fail);
+		} catch (StorageException e) {
+			// expected
+		}
+		Assert.assertEquals("etag", storageResilienceServices.call("getEtag", this::succeed));
+	}
+
+	@Test
+	public void backToBackCallsReuseTheReleasedSlot() throws Exception {
+		// single slot, no wait : a slot released before its worker is idle must not
+		// reject the next call
+		for (int i = 0; i < 500; i++) {
+			Assert.assertEquals("etag", storageResilienceServices.call("getEtag", this::succeed));
+		}
+	}
+
+	@Test
+	public void missingObjectsDoNotOpenTheCircuit() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			try {
+				storageResilienceServices.call("getEtag", this::notFound);
+				Assert.fail();
+			} catch (StorageException e) {
+				// expected
+			}
+		}
+		Assert.assertEquals("etag", storageResilienceServices.call("getEtag", this::succeed));
+	}
+
+	@Test
+	public void fullBulkheadRejectsAtOnce() throws Exception {
+		ReflectionTestUtils.setField(storageResilienceServices, "timeoutMillis", 10000L);
+		Thread stalledCaller = new Thread(() -> {
+			try {
+				storageResilienceServices.call("getEtag", this::stall);
+			} catch (Exception e) {
+				// released at tear down
+			}
+		});
+		stalledCaller.start();
+		while (calls.get() == 0) {
+			TimeUnit.MILLISECONDS.sleep(5);
+		}
+		try {
+			storageResilienceServices.call("getEtag", this::succeed);
+			Assert.fail();
+		} catch (StorageUnavailableException e) {
+			Assert.assertEquals(1, calls.get());
+		}
+		stalled.countDown();
+		stalledCaller.join();
+	}
+
+	private String stall() {
+		calls.incrementAndGet();
+		try {
+			stalled.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return "etag";
+	}
+
+	private String fail() throws StorageException {
+		calls.incrementAndGet();
+		StorageException e = new StorageException("storage unreachable");
+		e.initCause(new SdkClientException("Unable to execute HTTP request: Connection refused"));
+		throw e;
+	}
+
+	private String notFound() throws StorageException {
+		calls.incrementAndGet();
+		AmazonServiceException notFound = new AmazonServiceException("Not Found");
+		notFound.setStatusCode(404);
+		StorageException e = new StorageException("object not found");
+		e.initCause(notFound);
+		throw e;
+	}
+
+	private String succeed() {
+		calls.incrementAndGet();
+		return "etag";
+	}
+
+	/**
+	 * Single slot bulkhead, the circuit opening after half of 4 calls failed
+	 */
+	static StorageResilienceServices storageResilienceServices() {
+		StorageResilienceServices storageResilienceServices = new StorageResilienceServices();
+		ReflectionTestUtils.setField(storageResilienceServices, "enabled", true);
+		ReflectionTestUtils.setField(storageResilienceServices, "timeoutMillis", 2000L);
+		ReflectionTestUtils.setField(storageResilienceServices, "maxConcurrent", 1);
+		ReflectionTestUtils.setField(storageResilienceServices, "maxWaitMillis", 0L);
+		ReflectionTestUtils.setField(storageResilienceServices, "window", 10);
+		ReflectionTestUtils.setField(storageResilienceServices, "minCalls", 4);
+		ReflectionTestUtils.setField(storageResilienceServices, "failureRatePercent", 50);
+		ReflectionTestUtils.setField(storageResilienceServices, "openSeconds", 30L);
+		ReflectionTestUtils.setField(storageResilienceServices, "halfOpenCalls", 2);
+		ReflectionTestUtils.setField(storageResilienceServices, "meterRegistry", new SimpleMeterRegistry());
+		storageResilienceServices.init();
+		return storageResilienceServices;
+	}
+}
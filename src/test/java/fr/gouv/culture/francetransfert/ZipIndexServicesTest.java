@@ -0,0 +1,276 @@
+/*
+  * Copyright (c) Ministère de la Culture (2022) 
+  * 
+  * SPDX-License-Identifier: Apache-2.0 
+  * License-Filename: LICENSE.txt 
+  */
+package fr.gouv.culture.francetransfert;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.sun.net.httpserver.HttpServer;
+
+import fr.gouv.culture.francetransfert.application.resources.model.Download;
+import fr.gouv.culture.francetransfert.application.resources.model.DownloadPasswordMetaData;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureListing;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureMetadata;
+import fr.gouv.culture.francetransfert.application.resources.model.EnclosureZipIndex;
+import fr.gouv.culture.francetransfert.application.resources.model.FileRepresentation;
+import fr.gouv.culture.francetransfert.application.resources.model.ZipEntryRepresentation;
+import fr.gouv.culture.francetransfert.application.services.DownloadProxyServices;
+import fr.gouv.culture.francetransfert.application.services.DownloadServices;
+import fr.gouv.culture.francetransfert.application.services.EnclosureCacheServices;
+import fr.gouv.culture.francetransfert.application.services.SingleFlightServices;
+import fr.gouv.culture.francetransfert.application.services.ZipIndexServices;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.util.Pool;
+
+/**
+ * Central directory index and single entry extraction against a local storage
+ * serving byte ranges of the zipped enclosure.
+ */
+public class ZipIndexServicesTest {
+
+	private static final String ENCLOSURE_ID = "8ffd72f0-4432-4e07-b247-362b1eb4edfb";
+
+	private static final byte[] REPORT = "rapport annuel ".repeat(20000).getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] PHOTO = new byte[50000];
+
+	private byte[] zip;
+
+	private HttpServer storage;
+
+	private AtomicInteger storageRequests;
+
+	private volatile CountDownLatch storageGate;
+
+	private SimpleMeterRegistry meterRegistry;
+
+	private ZipIndexServices zipIndexServices;
+
+	@Before
+	public void setUp() throws Exception {
+		Arrays.fill(PHOTO, (byte) 7);
+		zip = zip(0);
+		storageRequests = new AtomicInteger();
+		storage = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		storage.createContext("/bucket/enclosure.zip", exchange -> {
+			storageRequests.incrementAndGet();
+			if (storageGate != null) {
+				try {
+					storageGate.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			String range = exchange.getRequestHeaders().getFirst("Range").substring("bytes=".length());
+			String first = range.substring(0, range.indexOf('-'));
+			String last = range.substring(range.indexOf('-') + 1);
+			int start = first.isEmpty() ? Math.max(0, zip.length - Integer.parseInt(last)) : Integer.parseInt(first);
+			int end = first.isEmpty() || last.isEmpty() ? zip.length - 1
+					: Math.min(zip.length - 1, Integer.parseInt(last));
+			exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + zip.length);
+			exchange.sendResponseHeaders(206, end - start + 1);
+			try (OutputStream body = exchange.getResponseBody()) {
+				body.write(zip, start, end - start + 1);
+			}
+		});
+		storage.start();
+
+		DownloadServices downloadServices = mock(DownloadServices.class);
+		Download download = new Download(
+				"http://127.0.0.1:" + storage.getAddress().getPort() + "/bucket/enclosure.zip?X-Amz-Signature=1");
+		when(downloadServices.generateDownloadUrlWithPassword(any(), anyBoolean())).thenReturn(download);
+		when(downloadServices.generateDownloadUrlWithPassword(any(), any(Predicate.class))).thenReturn(download);
+		Jedis jedis = mock(Jedis.class);
+		when(jedis.exists(anyString())).thenReturn(false);
+		@SuppressWarnings("unchecked")
+		Pool<Jedis> metaloadPool = mock(Pool.class);
+		when(metaloadPool.getResource()).thenReturn(jedis);
+		EnclosureCacheServices enclosureCacheServices = mock(EnclosureCacheServices.class);
+		when(enclosureCacheServices.getEnclosureMetadata(ENCLOSURE_ID)).thenReturn(EnclosureMetadata.builder()
+				.enclosureId(ENCLOSURE_ID).listing(new EnclosureListing(
+						List.of(rootFile("rapport.txt", REPORT.length), rootFile("photo.raw", PHOTO.length)),
+						List.of()))
+				.build());
+
+		DownloadProxyServices downloadProxyServices = new DownloadProxyServices();
+		ReflectionTestUtils.setField(downloadProxyServices, "bufferSize", 8192);
+		ReflectionTestUtils.setField(downloadProxyServices, "maxBuffers", 4);
+		ReflectionTestUtils.setField(downloadProxyServices, "bufferWaitMillis", 10L);
+		ReflectionTestUtils.setField(downloadProxyServices, "connectTimeoutSeconds", 5L);
+		ReflectionTestUtils.setField(downloadProxyServices, "requestTimeoutSeconds", 5L);
+		ReflectionTestUtils.setField(downloadProxyServices, "readTimeoutSeconds", 30L);
+		ReflectionTestUtils.setField(downloadProxyServices, "resumeMinutes", 60L);
+		ReflectionTestUtils.setField(downloadProxyServices, "downloadServices", downloadServices);
+		ReflectionTestUtils.setField(downloadProxyServices, "storageResilienceServices",
+				StorageResilienceServicesTest.storageResilienceServices());
+		ReflectionTestUtils.setField(downloadProxyServices, "metaloadPool", metaloadPool);
+		ReflectionTestUtils.setField(downloadProxyServices, "meterRegistry", new SimpleMeterRegistry());
+		downloadProxyServices.init();
+
+		meterRegistry = new SimpleMeterRegistry();
+		SingleFlightServices singleFlightServices = new SingleFlightServices();
+		ReflectionTestUtils.setField(singleFlightServices, "waitMillis", 5000L);
+		ReflectionTestUtils.setField(singleFlightServices, "meterRegistry", meterRegistry);
+
+		zipIndexServices = new ZipIndexServices();
+		ReflectionTestUtils.setField(zipIndexServices, "maxEntries", 1000000L);
+		ReflectionTestUtils.setField(zipIndexServices, "ttlMinutes", 60L);
+		ReflectionTestUtils.setField(zipIndexServices, "downloadProxyServices", downloadProxyServices);
+		ReflectionTestUtils.setField(zipIndexServices, "downloadServices", downloadServices);
+		ReflectionTestUtils.setField(zipIndexServices, "enclosureCacheServices", enclosureCacheServices);
+		ReflectionTestUtils.setField(zipIndexServices, "singleFlightServices", singleFlightServices);
+		ReflectionTestUtils.setField(zipIndexServices, "meterRegistry", meterRegistry);
+		zipIndexServices.init();
+	}
+
+	@After
+	public void tearDown() {
+		storage.stop(0);
+	}
+
+	@Test
+	public void singleEntriesAreExtracted() throws Exception {
+		Assert.assertArrayEquals(REPORT, streamEntry("rapport.txt").getContentAsByteArray());
+		Assert.assertArrayEquals(PHOTO, streamEntry("photo.raw").getContentAsByteArray());
+		// end of the zip once, then a local header and the data per entry
+		Assert.assertEquals(1 + 2 * 2, storageRequests.get());
+	}
+
+	@Test
+	public void rootFileEntriesGiveTheirRecordRange() throws Exception {
+		List<ZipEntryRepresentation> entries = zipIndexServices.getRootFileEntries(downloadMeta());
+
+		Assert.assertEquals(2, entries.size());
+		ZipEntryRepresentation report = entries.get(0);
+		Assert.assertEquals("rapport.txt", report.getName());
+		Assert.assertEquals(REPORT.length, report.getSize());
+		Assert.assertEquals(ZipEntry.DEFLATED, report.getMethod());
+		Assert.assertTrue(report.getCompressedSize() < REPORT.length);
+		// local header signature
+		Assert.assertEquals(0x50, zip[(int) report.getRangeStart()]);
+		Assert.assertEquals(0x4b, zip[(int) report.getRangeStart() + 1]);
+		Assert.assertEquals(0x50, zip[(int) report.getRangeEnd() + 1]);
+	}
+
+	@Test
+	public void zip64CentralDirectoryIsRead() throws Exception {
+		zip = zip(70000);
+		EnclosureZipIndex index = zipIndexServices.getIndex(ENCLOSURE_ID,
+				"http://127.0.0.1:" + storage.getAddress().getPort() + "/bucket/enclosure.zip");
+
+		Assert.assertEquals(70000 + 3, index.size());
+		Assert.assertTrue(index.indexOf("dir/file-69999.txt") >= 0);
+		// the central directory does not fit in the end of the zip
+		Assert.assertEquals(2, storageRequests.get());
+		Assert.assertArrayEquals(PHOTO, streamEntry("photo.raw").getContentAsByteArray());
+	}
+
+	@Test
+	public void concurrentMissesReadTheIndexOnce() throws Exception {
+		String downloadUrl = "http://127.0.0.1:" + storage.getAddress().getPort() + "/bucket/enclosure.zip";
+		storageGate = new CountDownLatch(1);
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<EnclosureZipIndex>> indexes = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				indexes.add(callers.submit(() -> zipIndexServices.getIndex(ENCLOSURE_ID, downloadUrl)));
+			}
+			// the leader waits for the storage while the others join it
+			while (meterRegistry.counter("ft.singleflight.calls", "flight", "zip-index", "role", "joined")
+					.count() < 7) {
+				Thread.sleep(10);
+			}
+			storageGate.countDown();
+			for (Future<EnclosureZipIndex> index : indexes) {
+				Assert.assertEquals(3, index.get(5, TimeUnit.SECONDS).size());
+			}
+		} finally {
+			callers.shutdownNow();
+		}
+		Assert.assertEquals(1, storageRequests.get());
+	}
+
+	@Test
+	public void unknownEntryIsRejected() throws Exception {
+		try {
+			streamEntry("dir/");
+			Assert.fail();
+		} catch (Exception e) {
+			Assert.assertEquals("WRONG_FILE", e.getMessage());
+		}
+	}
+
+	private MockHttpServletResponse streamEntry(String fileName) throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		zipIndexServices.streamEntry(downloadMeta(), fileName, response);
+		return response;
+	}
+
+	private static DownloadPasswordMetaData downloadMeta() {
+		DownloadPasswordMetaData downloadMeta = new DownloadPasswordMetaData();
+		downloadMeta.setEnclosure(ENCLOSURE_ID);
+		downloadMeta.setRecipient("recipient@gouv.fr");
+		return downloadMeta;
+	}
+
+	private static FileRepresentation rootFile(String name, long size) {
+		FileRepresentation rootFile = new FileRepresentation(size);
+		rootFile.setName(name);
+		return rootFile;
+	}
+
+	private static byte[] zip(int smallFiles) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(new ZipEntry("rapport.txt"));
+			zip.write(REPORT);
+			ZipEntry photo = new ZipEntry("photo.raw");
+			photo.setMethod(ZipEntry.STORED);
+			photo.setSize(PHOTO.length);
+			CRC32 crc = new CRC32();
+			crc.update(PHOTO);
+			photo.setCrc(crc.getValue());
+			zip.putNextEntry(photo);
+			zip.write(PHOTO);
+			zip.putNextEntry(new ZipEntry("dir/"));
+			for (int i = 0; i < smallFiles; i++) {
+				zip.putNextEntry(new ZipEntry("dir/file-" + i + ".txt"));
+				zip.write(i);
+			}
+		}
+		return bytes.toByteArray();
+	}
+}
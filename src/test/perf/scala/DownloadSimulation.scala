@@ -0,0 +1,100 @@
+package spring.boot.api.simulation
+
+import io.gatling.core.Predef._
+import io.gatling.http.Predef._
+import scala.concurrent.duration._
+import scala.util.Try
+import spring.boot.api.simulation.PerfTestConfig._
+import spring.boot.api.simulation.support.{EnclosureSeeder, S3Stub}
+
+/**
+ * Download traffic against a local api : a mail blast (every recipient of the
+ * seeded enclosures opens the mail within a few minutes), a viral public link
+ * and the senders polling their public download count.
+ */
+class DownloadSimulation extends Simulation {
+
+  require(mailBlastRecipients <= seedEnclosures * seedRecipientsPerEnclosure,
+    "mailBlastRecipients must not exceed the seeded recipients")
+
+  private val s3Stub = if (s3StubPort > 0) Some(new S3Stub(s3StubPort).start()) else None
+
+  private val seeded = EnclosureSeeder.seed(redisHost, redisPort, seedEnclosures, seedPublicEnclosures,
+    seedRecipientsPerEnclosure, seedRootFiles, seedPassword, seedEncryptedPassword)
+
+  val httpConf = http
+    .baseUrl(baseUrl + apiPath)
+    .contentTypeHeader("application/json")
+    .acceptHeader("application/json")
+
+  // every recipient downloads once, well under the download limit
+  val mailBlast = scenario("Mail blast")
+    .feed(seeded.recipients.queue)
+    .exec(http("download-info")
+      .get("/download-info")
+      .queryParam("enclosure", "#{enclosureId}")
+      .queryParam("recipient", "#{recipientMail}")
+      .queryParam("token", "#{recipientId}")
+      .check(status.is(200)))
+    .pause(2.seconds, 5.seconds)
+    .exec(http("validate-password")
+      .post("/validate-password")
+      .body(StringBody("""{ "enclosureId": "#{enclosureId}", "recipientId": "#{recipientMail}", "password": "#{password}" }"""))
+      .check(status.is(200)))
+    .exec(http("generate-download-url")
+      .post("/generate-download-url")
+      .body(StringBody("""{ "enclosure": "#{enclosureId}", "recipient": "#{recipientMail}", "token": "#{recipientId}", "password": "#{password}" }"""))
+      .check(status.is(200), jsonPath("$.downloadURL").exists))
+
+  val viralPublicLink = scenario("Viral public link")
+    .feed(seeded.publicEnclosures.random)
+    .exec(http("download-info-public")
+      .get("/download-info-public")
+      .queryParam("enclosure", "#{enclosureId}")
+      .check(status.is(200)))
+    .pause(1.second, 3.seconds)
+    .exec(http("generate-download-url-public")
+      .post("/generate-download-url-public")
+      .body(StringBody("""{ "enclosure": "#{enclosureId}", "password": "#{password}" }"""))
+      .check(status.is(200), jsonPath("$.downloadURL").exists))
+
+  val senderPolling = scenario("Sender polling")
+    .feed(seeded.adminTokens.random)
+    .exec(http("download-count-public")
+      .get("/download-count-public")
+      .queryParam("enclosure", "#{enclosureId}")
+      .queryParam("token", "#{adminToken}")
+      .check(status.is(200)))
+
+  // sender tokens are issued by the upload api : data/connect-tokens.csv (enclosure,recipient,token)
+  val connect = Try(csv("connect-tokens.csv").circular).toOption.map(feeder =>
+    scenario("Connected recipient")
+      .feed(feeder)
+      .exec(http("download-info-connect")
+        .get("/download-info-connect")
+        .queryParam("enclosure", "#{enclosure}")
+        .queryParam("recipient", "#{recipient}")
+        .queryParam("token", "#{token}")
+        .check(status.is(200))))
+
+  val injections = List(
+    mailBlast.inject(stressPeakUsers(mailBlastRecipients) during (mailBlastPeakMin minutes)),
+    viralPublicLink.inject(
+      rampUsersPerSec(1) to viralUsersPerSec during (durationMin / 2 minutes),
+      constantUsersPerSec(viralUsersPerSec) during (durationMin / 2 minutes)),
+    senderPolling.inject(constantUsersPerSec(senderPollingPerSec) during (durationMin minutes))
+  ) ++ connect.map(_.inject(constantUsersPerSec(requestPerSecond) during (durationMin minutes)))
+
+  setUp(injections)
+    .protocols(httpConf)
+    .assertions(
+      global.responseTime.max.lt(maxResponseTimeMs),
+      global.responseTime.mean.lt(meanResponseTimeMs),
+      global.responseTime.percentile3.lt(percentile95ResponseTimeMs),
+      global.successfulRequests.percent.gt(responseSuccessPercentage)
+    )
+
+  after {
+    s3Stub.foreach(_.stop())
+  }
+}
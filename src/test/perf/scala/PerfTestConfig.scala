@@ -9,4 +9,24 @@ object PerfTestConfig {
   val meanResponseTimeMs = getAsIntOrElse("meanResponseTimeMs", System.getProperty("maxResponseTimeMs").toInt)
   val maxResponseTimeMs = getAsIntOrElse("maxResponseTimeMs", System.getProperty("meanResponseTimeMs").toInt)
   val responseSuccessPercentage = System.getProperty("responseSuccessPercentage").toInt
+  val percentile95ResponseTimeMs = getAsIntOrElse("percentile95ResponseTimeMs", 300)
+
+  // download traffic model
+  val apiPath = getAsStringOrElse("apiPath", "/api-private/download-module")
+  val mailBlastRecipients = getAsIntOrElse("mailBlastRecipients", 2000)
+  val mailBlastPeakMin = getAsDoubleOrElse("mailBlastPeakMin", 2.0)
+  val viralUsersPerSec = getAsDoubleOrElse("viralUsersPerSec", 50.0)
+  val senderPollingPerSec = getAsDoubleOrElse("senderPollingPerSec", 2.0)
+
+  // local stand-ins, the S3 stub is disabled with a port <= 0
+  val redisHost = getAsStringOrElse("redisHost", "localhost")
+  val redisPort = getAsIntOrElse("redisPort", 6379)
+  val seedEnclosures = getAsIntOrElse("seedEnclosures", 200)
+  val seedPublicEnclosures = getAsIntOrElse("seedPublicEnclosures", 3)
+  val seedRecipientsPerEnclosure = getAsIntOrElse("seedRecipientsPerEnclosure", 20)
+  val seedRootFiles = getAsIntOrElse("seedRootFiles", 20)
+  val seedPassword = getAsStringOrElse("seedPassword", "Perf-Test-Password-1")
+  // seedPassword encrypted with the key of the api under test
+  val seedEncryptedPassword = getAsStringOrElse("seedEncryptedPassword", seedPassword)
+  val s3StubPort = getAsIntOrElse("s3StubPort", 9000)
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+package spring.boot.api.simulation.support
+
+import java.time.LocalDateTime
+import java.util.UUID
+
+import fr.gouv.culture.francetransfert.core.enums.{EnclosureKeysEnum, RecipientKeysEnum, RedisKeysEnum,
+  RootFileKeysEnum, SenderKeysEnum}
+import fr.gouv.culture.francetransfert.core.utils.RedisUtils
+import redis.clients.jedis.Jedis
+
+import scala.collection.mutable.ListBuffer
+
+/**
+ * Fills a local Redis with synthetic enclosures, recipients and root files,
+ * and returns the feeder records of the simulations. Enclosures carry the
+ * sender and the hash of the S3Stub objects, their bucket is derived by the api
+ * from the timestamp : downloads go through the integrity validation.
+ */
+object EnclosureSeeder {
+
+  private val ttlSeconds = 24 * 3600L
+
+  case class Seeded(recipients: IndexedSeq[Map[String, Any]], publicEnclosures: IndexedSeq[Map[String, Any]],
+                    adminTokens: IndexedSeq[Map[String, Any]])
+
+  def seed(host: String, port: Int, enclosures: Int, publicEnclosures: Int, recipientsPerEnclosure: Int,
+           rootFiles: Int, password: String, encryptedPassword: String): Seeded = {
+    val recipients = ListBuffer[Map[String, Any]]()
+    val publics = ListBuffer[Map[String, Any]]()
+    val adminTokens = ListBuffer[Map[String, Any]]()
+    val jedis = new Jedis(host, port)
+    try {
+      for (i <- 0 until enclosures + publicEnclosures) {
+        val publicLink = i >= enclosures
+        val enclosureId = UUID.randomUUID().toString
+        val adminToken = UUID.randomUUID().toString
+        val pipeline = jedis.pipelined()
+        def hset(key: String, field: String, value: String): Unit = {
+          pipeline.hset(key, field, value)
+          pipeline.expire(key, ttlSeconds)
+        }
+
+        val enclosureKey = RedisKeysEnum.FT_ENCLOSURE.getKey(enclosureId)
+        hset(enclosureKey, EnclosureKeysEnum.TIMESTAMP.getKey, LocalDateTime.now().toString)
+        hset(enclosureKey, EnclosureKeysEnum.EXPIRED_TIMESTAMP.getKey, LocalDateTime.now().plusDays(30).toString)
+        hset(enclosureKey, EnclosureKeysEnum.PASSWORD.getKey, encryptedPassword)
+        hset(enclosureKey, EnclosureKeysEnum.PUBLIC_LINK.getKey, publicLink.toString)
+        hset(enclosureKey, EnclosureKeysEnum.MESSAGE.getKey, s"perf test enclosure $i")
+        hset(enclosureKey, EnclosureKeysEnum.HASH_FILE.getKey, S3Stub.etag)
+        hset(RedisKeysEnum.FT_SENDER.getKey(enclosureId), SenderKeysEnum.EMAIL.getKey,
+          s"sender-$i@perf.francetransfert.fr")
+        hset(RedisKeysEnum.FT_ADMIN_TOKEN.getKey(enclosureId), EnclosureKeysEnum.TOKEN.getKey, adminToken)
+
+        for (f <- 0 until rootFiles) {
+          val rootFileName = s"file-$f.pdf"
+          val rootFilesKey = RedisKeysEnum.FT_ROOT_FILES.getKey(enclosureId)
+          pipeline.rpush(rootFilesKey, rootFileName)
+          pipeline.expire(rootFilesKey, ttlSeconds)
+          hset(RedisKeysEnum.FT_ROOT_FILE.getKey(RedisUtils.generateHashsha1(enclosureId + ":" + rootFileName)),
+            RootFileKeysEnum.SIZE.getKey, (1024L * (f + 1)).toString)
+        }
+
+        if (publicLink) {
+          publics += Map("enclosureId" -> enclosureId, "password" -> password)
+        } else {
+          for (r <- 0 until recipientsPerEnclosure) {
+            val recipientId = UUID.randomUUID().toString
+            val recipientMail = s"recipient-$i-$r@perf.francetransfert.fr"
+            hset(RedisKeysEnum.FT_RECIPIENTS.getKey(enclosureId), recipientMail, recipientId)
+            hset(RedisKeysEnum.FT_RECIPIENT.getKey(recipientId), RecipientKeysEnum.NB_DL.getKey, "0")
+            hset(RedisKeysEnum.FT_RECIPIENT.getKey(recipientId), RecipientKeysEnum.PASSWORD_TRY_COUNT.getKey, "0")
+            recipients += Map("enclosureId" -> enclosureId, "recipientMail" -> recipientMail,
+              "recipientId" -> recipientId, "password" -> password)
+          }
+        }
+        adminTokens += Map("enclosureId" -> enclosureId, "adminToken" -> adminToken)
+        pipeline.sync()
+      }
+    } finally {
+      jedis.close()
+    }
+    Seeded(recipients.toIndexedSeq, publics.toIndexedSeq, adminTokens.toIndexedSeq)
+  }
+}
@@ -0,0 +1,70 @@
+package spring.boot.api.simulation.support
+
+import java.net.InetSocketAddress
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.Executors
+
+import com.sun.net.httpserver.{HttpExchange, HttpServer}
+
+/**
+ * Minimal S3 compatible endpoint for local runs (path style, point
+ * storage.endpoint to http://127.0.0.1:port) : every bucket exists, including
+ * the dated ones (bucket.prefix + yyyyMMdd of the enclosure timestamp) the api
+ * derives, every listing returns one zip named after the requested prefix and
+ * every object exists with the same ETag.
+ */
+class S3Stub(port: Int) {
+
+  import S3Stub.etag
+
+  private val server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0)
+  server.setExecutor(Executors.newFixedThreadPool(16))
+  server.createContext("/", (exchange: HttpExchange) => handle(exchange))
+
+  def start(): S3Stub = {
+    server.start()
+    this
+  }
+
+  def stop(): Unit = server.stop(0)
+
+  private def handle(exchange: HttpExchange): Unit = {
+    val query = Option(exchange.getRequestURI.getRawQuery).getOrElse("")
+    val bucket = exchange.getRequestURI.getPath.split("/").find(_.nonEmpty).getOrElse("")
+    exchange.getResponseHeaders.add("ETag", "\"" + etag + "\"")
+    exchange.getResponseHeaders.add("Last-Modified", "Mon, 17 Oct 2022 12:00:00 GMT")
+    if (exchange.getRequestMethod == "HEAD") {
+      exchange.sendResponseHeaders(200, -1)
+      exchange.close()
+    } else if (query.contains("list-type") || query.contains("prefix")) {
+      val prefix = query.split("&").find(_.startsWith("prefix=")).map(_.substring("prefix=".length)).getOrElse("")
+      reply(exchange, "application/xml",
+        s"""<?xml version="1.0" encoding="UTF-8"?>
+           |<ListBucketResult xmlns="http://s3.amazonaws.com/doc/2006-03-01/">
+           |<Name>$bucket</Name><Prefix>$prefix</Prefix><KeyCount>1</KeyCount><MaxKeys>1000</MaxKeys><IsTruncated>false</IsTruncated>
+           |<Contents><Key>$prefix.zip</Key><LastModified>2022-10-17T12:00:00.000Z</LastModified><ETag>&quot;$etag&quot;</ETag><Size>22</Size><StorageClass>STANDARD</StorageClass></Contents>
+           |</ListBucketResult>""".stripMargin)
+    } else {
+      // empty zip archive
+      val body = Array[Byte](0x50, 0x4b, 0x05, 0x06) ++ Array.fill[Byte](18)(0)
+      exchange.getResponseHeaders.add("Content-Type", "application/zip")
+      exchange.sendResponseHeaders(200, body.length)
+      exchange.getResponseBody.write(body)
+      exchange.close()
+    }
+  }
+
+  private def reply(exchange: HttpExchange, contentType: String, body: String): Unit = {
+    val bytes = body.getBytes(StandardCharsets.UTF_8)
+    exchange.getResponseHeaders.add("Content-Type", contentType)
+    exchange.sendResponseHeaders(200, bytes.length)
+    exchange.getResponseBody.write(bytes)
+    exchange.close()
+  }
+}
+
+object S3Stub {
+
+  /** ETag of every object, seeded as the enclosure hash */
+  val etag = "d41d8cd98f00b204e9800998ecf8427e"
+}